@@ -15,9 +15,11 @@ export class NSRESTService {
   }
 
   get(
-    type: string, id): Observable<any[]> {
+    type: string, id, expand = ''): Observable<any[]> {
 
-    return this.http.get('/rest/api/' + type + '/' + id).pipe(
+    return this.http.get('/rest/api/' + type + '/' + id, {
+      params: new HttpParams().set('expand', expand)
+    }).pipe(
       // tslint:disable-next-line:no-string-literal
       map(res => res['results'].map(r => JSOG.decode(r)))
     );
@@ -25,7 +27,7 @@ export class NSRESTService {
 
   find(
     type: string, filter = '', sortOrder = '',
-    start = 0, rows = 3): Observable<[]> {
+    start = 0, rows = 3, expand = ''): Observable<[]> {
 
     return this.http.get('/rest/api/' + type, {
       params: new HttpParams()
@@ -33,6 +35,7 @@ export class NSRESTService {
         .set('sortOrder', sortOrder)
         .set('start', start.toString())
         .set('rows', rows.toString())
+        .set('expand', expand)
     }).pipe(
       catchError(err => {
         if (err.status === 401) {
@@ -36,7 +36,7 @@ export class RoleDataSourceService {
 
     this.loadingSubject.next(true);
 
-    return this.rest.find('Role', filter, sort, start, rows)
+    return this.rest.find('Role', filter, sort, start, rows, 'grants')
       .pipe(
         catchError(() => of([])),
         tap(roles => this.rolesSubject.next(roles))
@@ -63,7 +63,7 @@ export class RoleDetailComponent implements OnInit {
   private updateRole() {
     this.REST.update('Role', this.role).subscribe(() => {
       this.updated.emit(this.role);
-      this.REST.get('Role', this.role.id).subscribe((u) => this.role = u[0]);
+      this.REST.get('Role', this.role.id, 'grants').subscribe((u) => this.role = u[0]);
     });
   }
 
@@ -83,7 +83,7 @@ export class UserDetailComponent implements OnInit {
   private updateUser() {
     this.REST.update('AppUser', this.user).subscribe(() => {
       this.updated.emit(this.user);
-      this.REST.get('AppUser', this.user.id).subscribe((u) => this.user = u[0]);
+      this.REST.get('AppUser', this.user.id, 'roles,intrinsicPermissions').subscribe((u) => this.user = u[0]);
       this.roleSource.loadRoles().toPromise().then((roles) => this.allRoles = roles);
     });
   }
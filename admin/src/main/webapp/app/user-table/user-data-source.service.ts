@@ -34,7 +34,7 @@ export class UserDataSourceService {
             rows = 5, filter = '', sort = 'asc'): Observable<User[]> {
 
     this.loadingSubject.next(true);
-    return this.rest.find('AppUser', filter, sort, start, rows)
+    return this.rest.find('AppUser', filter, sort, start, rows, 'roles,intrinsicPermissions')
       .pipe(
         catchError(() => of([])),
         finalize(() => this.loadingSubject.next(false)),
@@ -84,7 +84,7 @@
   <button id="addSomeThings">Add some TestThings to above TestThing</button>
   <button id="reverseThings">Reverse Action</button>
 
-  <table id="ttTable" data-type="TestThing" data-post-render="ttTableHighlight">
+  <table id="ttTable" data-type="TestThing" data-expand="someThings" data-post-render="ttTableHighlight">
     <thead>
     <tr>
       <th></th>
@@ -0,0 +1,162 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.service.impl;
+
+import com.needhamsoftware.nslogin.model.AccountRequest;
+import com.needhamsoftware.nslogin.model.Action;
+import com.needhamsoftware.nslogin.model.AppUser;
+import com.needhamsoftware.nslogin.model.AppUserRef;
+import com.needhamsoftware.nslogin.model.Notification;
+import com.needhamsoftware.nslogin.model.NotificationType;
+import com.needhamsoftware.nslogin.model.Permission;
+import com.needhamsoftware.nslogin.model.Role;
+import com.needhamsoftware.nslogin.model.TestThing;
+import com.needhamsoftware.nslogin.model.UserSecurity;
+import com.needhamsoftware.nslogin.model.action.ReverseThings;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Updating a role with a large membership where the client has dropped a few members and added a few others,
+ * with the {@link CollectionMerger} working out the difference from ids, and with hibernate's merge alone as
+ * updates were made before there was a merger. Run with {@code gradle :core:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollectionMergerBenchmark {
+
+  private static final AtomicInteger DATABASES = new AtomicInteger();
+  private static final int CHANGED = 10;
+
+  @Param({"10000"})
+  public int members;
+
+  private SessionFactory sessionFactory;
+  private long roleId;
+  private final List<Long> userIds = new ArrayList<>();
+  private boolean shifted;
+
+  @Setup
+  public void setUp() throws Exception {
+    StandardServiceRegistryBuilder registry = new StandardServiceRegistryBuilder()
+        .applySetting("hibernate.connection.url", "jdbc:h2:mem:merge" + DATABASES.incrementAndGet())
+        .applySetting("hibernate.hbm2ddl.auto", "create")
+        // as persistence.xml
+        .applySetting("hibernate.jdbc.batch_size", "50")
+        .applySetting("hibernate.order_inserts", "true")
+        .applySetting("hibernate.order_updates", "true")
+        .applySetting("hibernate.jdbc.batch_versioned_data", "true");
+    MetadataSources sources = new MetadataSources(registry.build());
+    for (Class<?> c : Arrays.asList(AppUser.class, AppUserRef.class, Role.class, Permission.class, Action.class,
+        UserSecurity.class, AccountRequest.class, Notification.class, NotificationType.class, TestThing.class,
+        ReverseThings.class)) {
+      sources.addAnnotatedClass(c);
+    }
+    sessionFactory = sources.buildMetadata().buildSessionFactory();
+    try (Session s = sessionFactory.openSession()) {
+      s.getTransaction().begin();
+      for (int i = 0; i < members + CHANGED; i++) {
+        AppUser user = new AppUser();
+        s.persist(user);
+        userIds.add(user.getId());
+        if (i % 500 == 0) {
+          s.flush();
+          s.clear();
+        }
+      }
+      Role role = new Role();
+      role.setName("everyone");
+      role.setMembers(new ArrayList<>());
+      s.persist(role);
+      s.flush();
+      roleId = role.getId();
+      CollectionMerger.joinTable(s, Role.class, Role.class.getDeclaredField("members"))
+          .add(roleId, userIds.subList(0, members));
+      s.getTransaction().commit();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    sessionFactory.close();
+  }
+
+  @Benchmark
+  public Role idDifference() {
+    return update(true);
+  }
+
+  @Benchmark
+  public Role hibernateMerge() {
+    return update(false);
+  }
+
+  /**
+   * Send the membership with the first few members dropped and as many new ones added, or the other way
+   * about on alternate calls, so every call changes the same number of rows.
+   */
+  private Role update(boolean merger) {
+    shifted = !shifted;
+    List<Long> sent = shifted ? userIds.subList(CHANGED, members + CHANGED) : userIds.subList(0, members);
+    try (Session s = sessionFactory.openSession()) {
+      s.getTransaction().begin();
+      Role stored = s.find(Role.class, roleId);
+      Role incoming = new Role();
+      incoming.setId(roleId);
+      incoming.setVersion(stored.getVersion());
+      incoming.setCreated(stored.getCreated());
+      incoming.setName(stored.getName());
+      List<AppUser> users = new ArrayList<>(sent.size());
+      for (Long id : sent) {
+        AppUser user = new AppUser();
+        user.setId(id);
+        users.add(user);
+      }
+      incoming.setMembers(users);
+      if (merger) {
+        new CollectionMerger(s).merge(incoming, stored);
+      }
+      Role merged = (Role) s.merge(incoming);
+      s.getTransaction().commit();
+      return merged;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.service.impl;
+
+import com.needhamsoftware.nslogin.hibernate.HibernateUtil;
+import com.needhamsoftware.nslogin.model.AccountRequest;
+import com.needhamsoftware.nslogin.model.Action;
+import com.needhamsoftware.nslogin.model.AppUser;
+import com.needhamsoftware.nslogin.model.AppUserRef;
+import com.needhamsoftware.nslogin.model.Notification;
+import com.needhamsoftware.nslogin.model.NotificationType;
+import com.needhamsoftware.nslogin.model.Permission;
+import com.needhamsoftware.nslogin.model.Persisted;
+import com.needhamsoftware.nslogin.model.Role;
+import com.needhamsoftware.nslogin.model.TestThing;
+import com.needhamsoftware.nslogin.model.UserSecurity;
+import com.needhamsoftware.nslogin.model.action.ReverseThings;
+import com.needhamsoftware.nslogin.service.ObjectService;
+import com.needhamsoftware.nslogin.service.PermissionService;
+import com.needhamsoftware.nslogin.service.PermittedIds;
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.inject.Provider;
+import javax.persistence.EntityManager;
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second written by {@link ObjectServiceImpl#save} against an in memory H2 database, with and without
+ * JDBC batching, and by one {@link ObjectServiceImpl#insert} per transaction as a batch was saved before there
+ * was a save. H2 in memory has no network round trip to save, so the batching gains against a real database
+ * server are larger than these. Run with {@code gradle :core:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveBenchmark {
+
+  private static final int ROWS = 1000;
+
+  @Param({"1", "50"})
+  public int batchSize;
+
+  private SessionFactory sessionFactory;
+  private Session request;
+  private ObjectServiceImpl objectService;
+
+  @Setup
+  public void setUp() throws Exception {
+    StandardServiceRegistryBuilder registry = new StandardServiceRegistryBuilder()
+        .applySetting("hibernate.connection.url", "jdbc:h2:mem:save" + batchSize)
+        .applySetting("hibernate.hbm2ddl.auto", "create")
+        // as persistence.xml
+        .applySetting("hibernate.jdbc.batch_size", String.valueOf(batchSize))
+        .applySetting("hibernate.order_inserts", "true")
+        .applySetting("hibernate.order_updates", "true")
+        .applySetting("hibernate.jdbc.batch_versioned_data", "true");
+    MetadataSources sources = new MetadataSources(registry.build());
+    for (Class<?> c : Arrays.asList(AppUser.class, AppUserRef.class, Role.class, Permission.class, Action.class,
+        UserSecurity.class, AccountRequest.class, Notification.class, NotificationType.class, TestThing.class,
+        ReverseThings.class)) {
+      sources.addAnnotatedClass(c);
+    }
+    sessionFactory = sources.buildMetadata().buildSessionFactory();
+    AppUser user = new AppUser();
+    user.setUsername("saver");
+    try (Session s = sessionFactory.openSession()) {
+      s.getTransaction().begin();
+      // references to users are a view of the user table, as import.sql makes them on MariaDB
+      s.createNativeQuery("drop table AppUserRef cascade").executeUpdate();
+      s.createNativeQuery("create view AppUserRef as select id, username, created, modified, modifiedBy_id, " +
+          "createdBy_id, owner_id, version from AppUser").executeUpdate();
+      s.persist(user);
+      s.getTransaction().commit();
+    }
+    objectService = new ObjectServiceImpl();
+    Provider<EntityManager> requestEntityManager = () -> request;
+    FieldUtils.writeField(objectService, "entityManagerProvider", requestEntityManager, true);
+    FieldUtils.writeField(objectService, "permissionService", new PermitAll(user), true);
+    FieldUtils.writeField(objectService, "persistenceUtil", new HibernateUtil(), true);
+  }
+
+  @TearDown
+  public void tearDown() {
+    sessionFactory.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public List<Persisted> save() throws Exception {
+    request = sessionFactory.openSession();
+    try {
+      request.getTransaction().begin();
+      List<Persisted> saved = objectService.save(things());
+      request.getTransaction().commit();
+      return saved;
+    } finally {
+      request.close();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public List<Persisted> insertEach() throws Exception {
+    request = sessionFactory.openSession();
+    try {
+      List<Persisted> saved = new ArrayList<>();
+      for (TestThing thing : things()) {
+        request.getTransaction().begin();
+        saved.add(objectService.insert(thing));
+        request.getTransaction().commit();
+      }
+      return saved;
+    } finally {
+      request.close();
+    }
+  }
+
+  private static List<TestThing> things() {
+    List<TestThing> things = new ArrayList<>(ROWS);
+    for (int i = 0; i < ROWS; i++) {
+      TestThing thing = new TestThing();
+      thing.setAnInt(i);
+      thing.setaString("thing " + i);
+      things.add(thing);
+    }
+    return things;
+  }
+
+  private static class PermitAll implements PermissionService {
+    private final AppUser principal;
+
+    private PermitAll(AppUser principal) {
+      this.principal = principal;
+    }
+
+    @Override
+    public AppUser lookUpPrincipal(HttpServletRequest req, ObjectService objectService) {
+      return principal;
+    }
+
+    @Override
+    public void checkPerms(List<Permission> permissions) {
+    }
+
+    @Override
+    public AppUser lookUpUserByEmail(ObjectService objectService, String userEmail) {
+      return null;
+    }
+
+    @Override
+    public <T extends Persisted> PermittedIds checkPermsAndFilter(Class<T> clazz, String action) {
+      return PermittedIds.ALL;
+    }
+
+    @Override
+    public AppUser getTopPrincipal() {
+      return principal;
+    }
+
+    @Override
+    public void objectWritten(Persisted written) {
+    }
+  }
+}
@@ -20,6 +20,17 @@ package com.needhamsoftware.nslogin;/*
  * Date: 10/23/16
  */
 
+import javax.persistence.EntityManager;
+
 public interface PersistenceUtil {
   <T> T initializeAndUnproxy(T entity);
+
+  /**
+   * Run an action once the transaction in which the entity manager is taking part has completed, whether it
+   * committed or not. If there is no such transaction the action runs immediately.
+   *
+   * @param entityManager the entity manager in use
+   * @param action the action to run
+   */
+  void afterCompletion(EntityManager entityManager, Runnable action);
 }
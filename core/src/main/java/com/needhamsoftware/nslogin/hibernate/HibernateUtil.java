@@ -18,8 +18,11 @@ package com.needhamsoftware.nslogin.hibernate;
 
 import com.needhamsoftware.nslogin.PersistenceUtil;
 import org.hibernate.Hibernate;
+import org.hibernate.engine.spi.SessionImplementor;
 import org.hibernate.proxy.HibernateProxy;
 
+import javax.persistence.EntityManager;
+
 
 /**
  * Class to isolate dependencies on hibernate
@@ -40,4 +43,14 @@ public class HibernateUtil implements PersistenceUtil {
     }
     return entity;
   }
+
+  @Override
+  public void afterCompletion(EntityManager entityManager, Runnable action) {
+    if (!entityManager.isJoinedToTransaction()) {
+      action.run();
+      return;
+    }
+    entityManager.unwrap(SessionImplementor.class).getActionQueue()
+        .registerProcess((success, session) -> action.run());
+  }
 }
@@ -0,0 +1,76 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.keyring;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Keys shared via the database, so that any number of login nodes behind a load balancer can sign and
+ * serve keys for each other.
+ */
+public class JpaKeyRingStore implements KeyRingStore {
+
+  private final EntityManagerFactory emf;
+
+  public JpaKeyRingStore(EntityManagerFactory emf) {
+    this.emf = emf;
+  }
+
+  @Override
+  public List<SigningKey> loadActive(Instant now) {
+    EntityManager em = emf.createEntityManager();
+    try {
+      return em.createQuery("select k from SigningKey k where k.expires > :now", SigningKey.class)
+          .setParameter("now", now)
+          .getResultList();
+    } finally {
+      em.close();
+    }
+  }
+
+  @Override
+  public void save(SigningKey key) {
+    inTransaction(em -> em.persist(key));
+  }
+
+  @Override
+  public void purgeExpired(Instant now) {
+    inTransaction(em -> em.createQuery("delete from SigningKey k where k.expires <= :now")
+        .setParameter("now", now)
+        .executeUpdate());
+  }
+
+  private void inTransaction(Consumer<EntityManager> work) {
+    EntityManager em = emf.createEntityManager();
+    EntityTransaction tx = em.getTransaction();
+    try {
+      tx.begin();
+      work.accept(em);
+      tx.commit();
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+      em.close();
+    }
+  }
+}
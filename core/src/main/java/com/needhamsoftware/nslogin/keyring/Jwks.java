@@ -0,0 +1,103 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.keyring;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reading and writing of JSON Web Key Sets (RFC 7517) containing RSA signature verification keys. This
+ * lets a verifier obtain every currently valid key in a single request.
+ */
+public final class Jwks {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+  private Jwks() {
+  }
+
+  /**
+   * @param keys public keys by key id
+   * @param algorithm the JWA name of the signature algorithm the keys are used with (e.g. RS256)
+   * @return the UTF-8 encoded key set.
+   */
+  public static byte[] write(Map<String, PublicKey> keys, String algorithm) throws IOException {
+    List<Map<String, String>> jwkList = new ArrayList<>();
+    for (Map.Entry<String, PublicKey> entry : keys.entrySet()) {
+      if (!(entry.getValue() instanceof RSAPublicKey)) {
+        continue;
+      }
+      RSAPublicKey key = (RSAPublicKey) entry.getValue();
+      Map<String, String> jwk = new LinkedHashMap<>();
+      jwk.put("kty", "RSA");
+      jwk.put("use", "sig");
+      jwk.put("alg", algorithm);
+      jwk.put("kid", entry.getKey());
+      jwk.put("n", ENCODER.encodeToString(unsigned(key.getModulus())));
+      jwk.put("e", ENCODER.encodeToString(unsigned(key.getPublicExponent())));
+      jwkList.add(jwk);
+    }
+    Map<String, Object> set = new HashMap<>();
+    set.put("keys", jwkList);
+    return MAPPER.writeValueAsBytes(set);
+  }
+
+  /**
+   * @param json a key set as produced by {@link #write(Map, String)}
+   * @return the RSA keys found in the set by key id. Keys of other types are ignored.
+   */
+  public static Map<String, PublicKey> read(byte[] json) throws IOException, GeneralSecurityException {
+    Map<String, PublicKey> result = new HashMap<>();
+    KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+    JsonNode keys = MAPPER.readTree(json).path("keys");
+    for (JsonNode jwk : keys) {
+      if (!"RSA".equals(jwk.path("kty").asText()) || !jwk.hasNonNull("kid")) {
+        continue;
+      }
+      BigInteger modulus = new BigInteger(1, DECODER.decode(jwk.path("n").asText()));
+      BigInteger exponent = new BigInteger(1, DECODER.decode(jwk.path("e").asText()));
+      result.put(jwk.get("kid").asText(), keyFactory.generatePublic(new RSAPublicKeySpec(modulus, exponent)));
+    }
+    return result;
+  }
+
+  // JWK wants the minimal big endian encoding, BigInteger adds a sign byte when the top bit is set.
+  private static byte[] unsigned(BigInteger value) {
+    byte[] bytes = value.toByteArray();
+    if (bytes.length > 1 && bytes[0] == 0) {
+      return Arrays.copyOfRange(bytes, 1, bytes.length);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.keyring;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The set of key pairs currently valid for signing and verifying tokens. Keys live in a
+ * {@link KeyRingStore} so that several login nodes sharing a store all sign with the same key, and can
+ * all serve the public half of any key that another node created.
+ * <p>
+ * Each node periodically re-reads the store. If the newest key is older than the rotation interval the
+ * node that notices first creates a replacement, and the other nodes adopt it on their next check. Should
+ * two nodes happen to rotate at the same moment both keys are valid, and the newer one wins. Keys expire
+ * after the expiration interval, which must exceed the rotation interval (plus the check interval) so
+ * that a token signed just before a rotation can still be verified.
+ */
+public class KeyRing {
+
+  private static final Logger log = LogManager.getLogger();
+
+  // an unknown kid causes a re-read of the store, but not more often than this, so that a flood of
+  // bogus key ids can't be turned into a flood of queries.
+  private static final long MIN_RELOAD_MILLIS = 5000;
+
+  private final KeyRingStore store;
+  private final SignatureAlgorithm algorithm;
+  private final Duration rotateAfter;
+  private final Duration expireAfter;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "nslogin-key-rotation");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // replaced wholesale on each reload, never modified, so readers need no locking
+  private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap(), null, new byte[0], System.nanoTime());
+  private volatile long lastReload;
+
+  // request threads reloading for an unknown kid wait only for each other (one read of the store), never
+  // for a rotation, which may be generating a key.
+  private final Object reloadLock = new Object();
+  private final Object snapshotLock = new Object();
+
+  public KeyRing(KeyRingStore store, SignatureAlgorithm algorithm, Duration rotateAfter, Duration expireAfter) {
+    if (expireAfter.compareTo(rotateAfter) <= 0) {
+      throw new IllegalArgumentException("Keys must live longer than the rotation interval");
+    }
+    this.store = store;
+    this.algorithm = algorithm;
+    this.rotateAfter = rotateAfter;
+    this.expireAfter = expireAfter;
+  }
+
+  /**
+   * Load (or create) the current key and begin checking for rotation.
+   *
+   * @param checkInterval how often to consult the store.
+   */
+  public void start(Duration checkInterval) {
+    rotateIfNeeded();
+    long millis = checkInterval.toMillis();
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        rotateIfNeeded();
+      } catch (RuntimeException e) {
+        // keep the schedule alive, we will still have our existing keys and will try again.
+        log.error("Key rotation check failed", e);
+      }
+    }, millis, millis, TimeUnit.MILLISECONDS);
+  }
+
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * @return the key with which new tokens should be signed, or null if no key could be loaded or created.
+   */
+  public ActiveKey current() {
+    return snapshot.current;
+  }
+
+  /**
+   * Look up the public key for a key id, consulting the store if the key is unknown to this node (it
+   * may have been created by another node since our last check).
+   *
+   * @return the key, or null if it is unknown or expired.
+   */
+  public PublicKey publicKey(String kid) {
+    ActiveKey key = snapshot.keys.get(kid);
+    if (key == null && System.currentTimeMillis() - lastReload > MIN_RELOAD_MILLIS) {
+      reload();
+      key = snapshot.keys.get(kid);
+    }
+    if (key == null || !key.expires.isAfter(Instant.now())) {
+      return null;
+    }
+    return key.pair.getPublic();
+  }
+
+  /**
+   * @return a JSON Web Key Set holding all currently valid public keys.
+   */
+  public byte[] jwks() {
+    return snapshot.jwks;
+  }
+
+  synchronized void rotateIfNeeded() {
+    Instant now = Instant.now();
+    store.purgeExpired(now);
+    long readAt = System.nanoTime();
+    List<SigningKey> active = new ArrayList<>(store.loadActive(now));
+    SigningKey newest = active.stream().max(Comparator.comparing(SigningKey::getCreated)).orElse(null);
+    if (newest == null || !newest.getCreated().plus(rotateAfter).isAfter(now)) {
+      SigningKey created = generate(now);
+      store.save(created);
+      active.add(created);
+      // a reload that read the store before this save lacks the new key, and must not win
+      readAt = System.nanoTime();
+      log.info("Created signing key {}", created.getKid());
+    }
+    install(active, readAt);
+  }
+
+  private void reload() {
+    synchronized (reloadLock) {
+      // others waiting here for the same unknown kid will find that we just looked
+      if (System.currentTimeMillis() - lastReload <= MIN_RELOAD_MILLIS) {
+        return;
+      }
+      long readAt = System.nanoTime();
+      List<SigningKey> loaded = store.loadActive(Instant.now());
+      install(loaded, readAt);
+    }
+  }
+
+  /**
+   * Replace the snapshot, unless one made from a later read of the store has been installed meanwhile (a
+   * reload and a rotation may overlap, and the reload must not put back a ring without the new key).
+   *
+   * @param readAt {@link System#nanoTime()} just before the store was read
+   */
+  private void install(List<SigningKey> loaded, long readAt) {
+    lastReload = System.currentTimeMillis();
+    List<SigningKey> stored = new ArrayList<>(loaded);
+    stored.sort(Comparator.comparing(SigningKey::getCreated));
+    Map<String, ActiveKey> keys = new LinkedHashMap<>();
+    Map<String, PublicKey> publicKeys = new LinkedHashMap<>();
+    ActiveKey current = null;
+    for (SigningKey sk : stored) {
+      try {
+        ActiveKey key = decode(sk);
+        keys.put(key.kid, key);
+        publicKeys.put(key.kid, key.pair.getPublic());
+        current = key; // sorted oldest first, so we end with the newest
+      } catch (GeneralSecurityException e) {
+        log.error("Unusable signing key {} in store, ignoring it", sk.getKid(), e);
+      }
+    }
+    byte[] jwks;
+    try {
+      jwks = Jwks.write(publicKeys, algorithm.getValue());
+    } catch (IOException e) {
+      log.error("Could not encode key set", e);
+      jwks = snapshot.jwks;
+    }
+    synchronized (snapshotLock) {
+      if (readAt - snapshot.readAt >= 0) {
+        snapshot = new Snapshot(keys, current, jwks, readAt);
+      }
+    }
+  }
+
+  private SigningKey generate(Instant now) {
+    KeyPair pair = Keys.keyPairFor(algorithm);
+    return new SigningKey(UUID.randomUUID().toString(),
+        pair.getPublic().getEncoded(),
+        pair.getPrivate().getEncoded(),
+        now,
+        now.plus(expireAfter));
+  }
+
+  private ActiveKey decode(SigningKey stored) throws GeneralSecurityException {
+    KeyFactory keyFactory = KeyFactory.getInstance(algorithm.getFamilyName());
+    PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(stored.getPublicKey()));
+    PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(stored.getPrivateKey()));
+    return new ActiveKey(stored.getKid(), new KeyPair(publicKey, privateKey), stored.getExpires());
+  }
+
+  /**
+   * A decoded key ready for use.
+   */
+  public static final class ActiveKey {
+    private final String kid;
+    private final KeyPair pair;
+    private final Instant expires;
+
+    private ActiveKey(String kid, KeyPair pair, Instant expires) {
+      this.kid = kid;
+      this.pair = pair;
+      this.expires = expires;
+    }
+
+    public String getKid() {
+      return kid;
+    }
+
+    public PrivateKey getPrivateKey() {
+      return pair.getPrivate();
+    }
+
+    public PublicKey getPublicKey() {
+      return pair.getPublic();
+    }
+
+    public Instant getExpires() {
+      return expires;
+    }
+  }
+
+  private static final class Snapshot {
+    private final Map<String, ActiveKey> keys;
+    private final ActiveKey current;
+    private final byte[] jwks;
+    private final long readAt;
+
+    private Snapshot(Map<String, ActiveKey> keys, ActiveKey current, byte[] jwks, long readAt) {
+      this.keys = keys;
+      this.current = current;
+      this.jwks = jwks;
+      this.readAt = readAt;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.keyring;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Storage for the keys held by a {@link KeyRing}. Login nodes that share a store can all sign tokens and
+ * serve the public key for any token signed by another node.
+ */
+public interface KeyRingStore {
+
+  /**
+   * @param now the current time
+   * @return all keys that have not expired as of <code>now</code>, in no particular order.
+   */
+  List<SigningKey> loadActive(Instant now);
+
+  void save(SigningKey key);
+
+  /**
+   * Remove keys that expired before <code>now</code>. Expired keys are never used, this just keeps
+   * the store from growing.
+   */
+  void purgeExpired(Instant now);
+}
@@ -0,0 +1,54 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.keyring;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keys held only in this JVM. Suitable for a single login node, or for installations that don't want
+ * private keys written to the database. Tokens signed by one node can't be verified by any other node
+ * using this store.
+ */
+public class LocalKeyRingStore implements KeyRingStore {
+
+  private final Map<String, SigningKey> keys = new ConcurrentHashMap<>();
+
+  @Override
+  public List<SigningKey> loadActive(Instant now) {
+    List<SigningKey> result = new ArrayList<>();
+    for (SigningKey key : keys.values()) {
+      if (key.getExpires().isAfter(now)) {
+        result.add(key);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void save(SigningKey key) {
+    keys.put(key.getKid(), key);
+  }
+
+  @Override
+  public void purgeExpired(Instant now) {
+    keys.values().removeIf(key -> !key.getExpires().isAfter(now));
+  }
+}
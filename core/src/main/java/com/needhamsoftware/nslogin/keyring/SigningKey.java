@@ -0,0 +1,97 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.keyring;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import java.time.Instant;
+
+/**
+ * A token signing key pair as stored by {@link JpaKeyRingStore}. This deliberately does not extend
+ * {@link com.needhamsoftware.nslogin.model.Persisted} and does not live in the model package so that it can
+ * never be reached via the REST api. The table holding these rows contains private keys and deserves
+ * the same protection as the password hashes.
+ */
+@Entity
+public class SigningKey {
+
+  @Id
+  @Column(length = 36)
+  private String kid;
+
+  @Lob
+  private byte[] publicKey;  // X.509 encoding
+
+  @Lob
+  private byte[] privateKey; // PKCS#8 encoding
+
+  private Instant created;
+  private Instant expires;
+
+  public SigningKey() {
+  }
+
+  public SigningKey(String kid, byte[] publicKey, byte[] privateKey, Instant created, Instant expires) {
+    this.kid = kid;
+    this.publicKey = publicKey;
+    this.privateKey = privateKey;
+    this.created = created;
+    this.expires = expires;
+  }
+
+  public String getKid() {
+    return kid;
+  }
+
+  public void setKid(String kid) {
+    this.kid = kid;
+  }
+
+  public byte[] getPublicKey() {
+    return publicKey;
+  }
+
+  public void setPublicKey(byte[] publicKey) {
+    this.publicKey = publicKey;
+  }
+
+  public byte[] getPrivateKey() {
+    return privateKey;
+  }
+
+  public void setPrivateKey(byte[] privateKey) {
+    this.privateKey = privateKey;
+  }
+
+  public Instant getCreated() {
+    return created;
+  }
+
+  public void setCreated(Instant created) {
+    this.created = created;
+  }
+
+  public Instant getExpires() {
+    return expires;
+  }
+
+  public void setExpires(Instant expires) {
+    this.expires = expires;
+  }
+}
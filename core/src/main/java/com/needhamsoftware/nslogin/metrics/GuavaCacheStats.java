@@ -0,0 +1,56 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.metrics;
+
+import com.google.common.cache.Cache;
+
+/**
+ * Publishes the statistics of a guava cache, which must have been built with <code>recordStats()</code>.
+ */
+public class GuavaCacheStats implements CacheMXBean {
+
+  private final Cache<?, ?> cache;
+
+  public GuavaCacheStats(Cache<?, ?> cache) {
+    this.cache = cache;
+  }
+
+  @Override
+  public long getSize() {
+    return cache.size();
+  }
+
+  @Override
+  public long getHits() {
+    return cache.stats().hitCount();
+  }
+
+  @Override
+  public long getMisses() {
+    return cache.stats().missCount();
+  }
+
+  @Override
+  public double getHitRate() {
+    return cache.stats().hitRate();
+  }
+
+  @Override
+  public long getEvictions() {
+    return cache.stats().evictionCount();
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.metrics;
+
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+
+/**
+ * Publishes the statistics hibernate keeps for a second level cache region. These are only gathered
+ * while statistics are enabled on the session factory.
+ */
+public class HibernateCacheStats implements CacheRegionMXBean {
+
+  private final Statistics statistics;
+  private final String region;
+
+  public HibernateCacheStats(Statistics statistics, String region) {
+    this.statistics = statistics;
+    this.region = region;
+  }
+
+  private CacheRegionStatistics stats() {
+    return statistics.getCacheRegionStatistics(region);
+  }
+
+  /**
+   * @return the number of entries, or -1 if the cache provider doesn't say (JCache doesn't).
+   */
+  @Override
+  public long getSize() {
+    long size = stats().getElementCountInMemory();
+    return size == CacheRegionStatistics.NO_EXTENDED_STAT_SUPPORT_RETURN ? -1 : size;
+  }
+
+  @Override
+  public long getHits() {
+    return stats().getHitCount();
+  }
+
+  @Override
+  public long getMisses() {
+    return stats().getMissCount();
+  }
+
+  @Override
+  public long getPuts() {
+    return stats().getPutCount();
+  }
+
+  @Override
+  public double getHitRate() {
+    long hits = getHits();
+    long total = hits + getMisses();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cheap, lock free latency recorder. Samples are counted in power of two microsecond buckets so
+ * percentiles are approximate (reported as the upper bound of the bucket containing the percentile)
+ * but recording a sample never allocates and never blocks, which makes it safe for hot paths.
+ */
+public class LatencyRecorder {
+
+  // 2^26 microseconds is just over a minute, anything slower lands in the last bucket.
+  private static final int BUCKETS = 27;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder totalNanos = new LongAdder();
+
+  public void record(long nanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+    int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+    counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    totalNanos.add(nanos);
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  public double getMeanMillis() {
+    long count = getCount();
+    return count == 0 ? 0 : totalNanos.sum() / (count * 1_000_000.0);
+  }
+
+  /**
+   * Approximate the requested percentile.
+   *
+   * @param percentile a value between 0 and 100
+   * @return the upper bound in milliseconds of the bucket in which the percentile falls, or 0 if nothing
+   * has been recorded yet.
+   */
+  public double getPercentileMillis(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(count * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return (1L << i) / 1000.0;
+      }
+    }
+    return (1L << (BUCKETS - 1)) / 1000.0;
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    totalNanos.reset();
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registration of our statistics with the platform MBean server so that they can be watched with
+ * jconsole, or scraped by whatever monitoring the container already has in place. Failure to register
+ * is logged but never fatal, statistics are not worth failing a deployment over.
+ */
+public final class MBeans {
+
+  private static final Logger log = LogManager.getLogger();
+  private static final String DOMAIN = "com.needhamsoftware.nslogin";
+
+  private MBeans() {
+  }
+
+  /**
+   * Register a bean, replacing any bean left behind under the same name (typically by a previous
+   * deployment of the same web application).
+   *
+   * @param type the kind of statistics, becomes the type key of the object name
+   * @param name distinguishes multiple instances of the same type (context path for example)
+   * @param bean an object implementing an interface that follows the MXBean naming convention
+   * @return the name under which the bean was registered or null if registration failed.
+   */
+  public static ObjectName register(String type, String name, Object bean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(bean, objectName);
+      return objectName;
+    } catch (JMException e) {
+      log.warn("Could not register statistics for {} {}", type, name, e);
+      return null;
+    }
+  }
+
+  public static void unregister(ObjectName objectName) {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      log.warn("Could not unregister statistics {}", objectName, e);
+    }
+  }
+}
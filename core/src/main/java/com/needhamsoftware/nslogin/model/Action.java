@@ -20,13 +20,18 @@ import com.fasterxml.jackson.annotation.JsonIdentityInfo;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.needhamsoftware.nslogin.service.ActionVisitor;
 import com.voodoodyne.jackson.jsog.JSOGGenerator;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.persistence.Column;
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.ManyToMany;
 import java.util.List;
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @JsonIdentityInfo(generator = JSOGGenerator.class)
 @JsonIgnoreProperties(ignoreUnknown=true)
 public abstract class Action extends Persisted {
@@ -35,6 +40,7 @@ public abstract class Action extends Persisted {
   @RestFilterEnable
   private String name;
   @ManyToMany
+  @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
   private List<Permission> requires;
 
   protected Action() {
@@ -19,11 +19,16 @@ package com.needhamsoftware.nslogin.model;
 import com.fasterxml.jackson.annotation.JsonIdentityInfo;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.voodoodyne.jackson.jsog.JSOGGenerator;
+import org.hibernate.annotations.BatchSize;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
 
 @Entity
+// not in the second level cache: this is a view of AppUser (see import.sql), and writes to AppUser
+// would never invalidate it
+// references not joined into a query (see ObjectServiceImpl) are loaded many ids at a time
+@BatchSize(size = 100)
 @JsonIdentityInfo(generator= JSOGGenerator.class)
 @JsonIgnoreProperties(ignoreUnknown=true)
 public class AppUserRef extends Persisted {
@@ -19,11 +19,15 @@ package com.needhamsoftware.nslogin.model;
 import com.fasterxml.jackson.annotation.JsonIdentityInfo;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.voodoodyne.jackson.jsog.JSOGGenerator;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.persistence.*;
 import java.util.List;
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @JsonIdentityInfo(generator = JSOGGenerator.class)
 @JsonIgnoreProperties(ignoreUnknown=true)
 public class Role extends Persisted {
@@ -32,7 +36,8 @@ public class Role extends Persisted {
   @Column(name = "keyName")
   private String key;
 
-  @ManyToMany(cascade = {CascadeType.MERGE}, fetch = FetchType.EAGER)
+  @ManyToMany(cascade = {CascadeType.MERGE})
+  @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
   private List<Permission> grants;
 
   @ManyToMany
@@ -16,6 +16,8 @@
 
 package com.needhamsoftware.nslogin.model;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.needhamsoftware.nslogin.servlet.Messages;
 
 import java.time.Instant;
@@ -53,6 +55,20 @@ public interface Validatable {
   // is an excrcise left to the reader
   boolean validateMap(Map<String,Object>  map);
 
+  /**
+   * Check incoming json that has already been parsed to a tree, before it is bound to this type. By default
+   * this walks the tree into the map expected by {@link #validateMap(Map)}, which is still much cheaper than
+   * parsing the text again. Implementations can override this to inspect the tree directly.
+   *
+   * @param tree the incoming json object
+   * @param mapper the mapper that parsed it
+   * @return true if validation was successful
+   */
+  @SuppressWarnings("unchecked")
+  default boolean validateTree(ObjectNode tree, ObjectMapper mapper) {
+    return validateMap(mapper.convertValue(tree, Map.class));
+  }
+
 
   default boolean isValidated() { return false; }
 
@@ -0,0 +1,212 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.needhamsoftware.nslogin.model.Persisted;
+import org.apache.commons.lang3.reflect.FieldUtils;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A position in a sorted list of objects: the values of the sort fields and the id of the last object
+ * seen. Listing the objects after a keyset lets the database seek straight to the next page via an index
+ * instead of counting its way past every earlier row as it must for an offset. The id breaks ties so every
+ * object has a distinct position.
+ *
+ * <p>Keysets travel to clients as opaque tokens. Tampering with a token can only select a different page,
+ * the values are always bound as parameters and the usual permission filtering still applies.</p>
+ */
+public final class Keyset {
+
+  private static final ObjectMapper JSON = new ObjectMapper();
+  // the types parse() can read back, besides enums
+  private static final Set<Class<?>> CURSOR_TYPES = Set.of(String.class, Integer.class, Integer.TYPE, Long.class,
+      Long.TYPE, Boolean.class, Boolean.TYPE, Double.class, Double.TYPE, Instant.class, Date.class);
+
+  private final List<Object> values;
+  private final long id;
+
+  public Keyset(List<Object> values, long id) {
+    this.values = Collections.unmodifiableList(new ArrayList<>(values));
+    this.id = id;
+  }
+
+  /**
+   * @return the values of the sort fields, in the order of the sorts
+   */
+  public List<Object> getValues() {
+    return values;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * The position of an object in a list with the given sorts.
+   *
+   * @param last  the last object on a page
+   * @param sorts the sorts with which the page was listed, as validated for {@link ObjectService}
+   * @return the keyset with which to request the following page
+   * @throws IllegalArgumentException if a sort field of the object is null, null sort order differs
+   *                                  between databases so such lists can only be paged by offset.
+   */
+  public static Keyset after(Persisted last, List<String> sorts) {
+    List<Object> values = new ArrayList<>();
+    for (String field : sortFields(sorts)) {
+      try {
+        Object value = FieldUtils.readField(last, field, true);
+        if (value == null) {
+          throw new IllegalArgumentException("Can't page past a null value for " + field + " by cursor");
+        }
+        values.add(value);
+      } catch (IllegalAccessException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+    return new Keyset(values, last.getId());
+  }
+
+  /**
+   * @return an opaque url safe token for this keyset
+   */
+  public String encode() {
+    List<String> parts = new ArrayList<>();
+    parts.add(String.valueOf(id));
+    for (Object value : values) {
+      if (value instanceof Instant) {
+        parts.add(value.toString());
+      } else if (value instanceof Date) {
+        parts.add(String.valueOf(((Date) value).getTime()));
+      } else if (value instanceof Enum) {
+        parts.add(((Enum<?>) value).name());
+      } else if (!canPageBy(value.getClass())) {
+        throw new IllegalArgumentException("Can't page by cursor when sorting on a " +
+            value.getClass().getSimpleName());
+      } else {
+        parts.add(String.valueOf(value));
+      }
+    }
+    try {
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(JSON.writeValueAsBytes(parts));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Read a token produced by {@link #encode()}.
+   *
+   * @param token the token
+   * @param clazz the type being listed
+   * @param sorts the sorts the list is using
+   * @return the keyset
+   * @throws IllegalArgumentException if the token is damaged or doesn't match the sorts
+   */
+  public static Keyset decode(String token, Class<? extends Persisted> clazz, List<String> sorts) {
+    List<String> parts;
+    try {
+      parts = JSON.readValue(Base64.getUrlDecoder().decode(token), new TypeReference<List<String>>() {});
+    } catch (IOException | IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid cursor", e);
+    }
+    List<String> fields = sortFields(sorts);
+    if (parts == null || parts.size() != fields.size() + 1) {
+      throw new IllegalArgumentException("Cursor does not match the requested sort");
+    }
+    List<Object> values = new ArrayList<>();
+    for (int i = 0; i < fields.size(); i++) {
+      Field field = FieldUtils.getField(clazz, fields.get(i), true);
+      if (field == null) {
+        throw new IllegalArgumentException("Cursor does not match the requested sort");
+      }
+      try {
+        values.add(parse(parts.get(i + 1), field.getType()));
+      } catch (RuntimeException e) {
+        throw new IllegalArgumentException("Invalid cursor", e);
+      }
+    }
+    try {
+      return new Keyset(values, Long.parseLong(parts.get(0)));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid cursor", e);
+    }
+  }
+
+  /**
+   * @param sorts sorts such as "name asc"
+   * @return the names of the fields sorted on
+   */
+  public static List<String> sortFields(List<String> sorts) {
+    List<String> fields = new ArrayList<>();
+    if (sorts != null) {
+      for (String sort : sorts) {
+        fields.add(sort.trim().split("\\s+")[0]);
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * @param type the type of a sort field
+   * @return true if a value of the type can be carried in a token, false if lists sorted on it can only be
+   * paged by offset
+   */
+  public static boolean canPageBy(Class<?> type) {
+    return CURSOR_TYPES.contains(type) || type.isEnum();
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static Object parse(String s, Class<?> type) {
+    if (type == String.class) {
+      return s;
+    }
+    if (type == Integer.class || type == Integer.TYPE) {
+      return Integer.valueOf(s);
+    }
+    if (type == Long.class || type == Long.TYPE) {
+      return Long.valueOf(s);
+    }
+    if (type == Boolean.class || type == Boolean.TYPE) {
+      return Boolean.valueOf(s);
+    }
+    if (type == Double.class || type == Double.TYPE) {
+      return Double.valueOf(s);
+    }
+    if (type == Instant.class) {
+      return Instant.parse(s);
+    }
+    if (type == Date.class) {
+      return new Date(Long.parseLong(s));
+    }
+    if (type.isEnum()) {
+      return Enum.valueOf((Class<Enum>) type, s);
+    }
+    throw new IllegalArgumentException("Can't page by cursor when sorting on a " + type.getSimpleName());
+  }
+}
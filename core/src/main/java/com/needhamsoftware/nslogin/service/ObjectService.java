@@ -21,6 +21,8 @@ import com.needhamsoftware.nslogin.model.Persisted;
 import com.needhamsoftware.nslogin.service.impl.ObjectAlreadyHasIdException;
 
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 @SuppressWarnings("SameParameterValue")
 public interface ObjectService {
@@ -33,6 +35,57 @@ public interface ObjectService {
 
     Persisted getFresh(Class<? extends Persisted> clazz, Long identifier, boolean privileged);
 
+    /**
+     * Look up only the version of an object, without loading it, e.g. to tell if a client's copy is current.
+     *
+     * @return the version or null if there is no such object
+     */
+    Long version(Class<? extends Persisted> clazz, Long identifier);
+
+    /**
+     * Load associations of objects already read, with one query per association rather than one per object.
+     * Associations that are not expanded (or otherwise loaded) are left out of json.
+     *
+     * @param paths names of associations of the class, dotted paths reach associations of the associated
+     *              objects (e.g. roles.grants for a user)
+     * @throws IllegalArgumentException if a path does not name an association visible in json
+     */
+    <T extends Persisted> void expand(Class<T> clazz, List<T> objects, List<String> paths);
+
+    /**
+     * A page of the objects in a collection, ordered by id and read by a query so that the collection itself
+     * is never loaded. Requires permission to read the object holding the collection, and only members the
+     * user may read are listed.
+     *
+     * @param after the last member of the previous page, or null to page by start
+     * @throws IllegalArgumentException if the collection is not an association visible in json
+     * @throws javax.persistence.EntityNotFoundException if there is no such object
+     */
+    List<Persisted> listMembers(Class<? extends Persisted> clazz, Long id, String collection, Keyset after, int start, int rows) throws AuthzException;
+
+    /**
+     * The number of members {@link #listMembers} would list in total.
+     */
+    Long countMembers(Class<? extends Persisted> clazz, Long id, String collection) throws AuthzException;
+
+    /**
+     * Add an object to a many to many collection by inserting the row in the join table, without loading
+     * the collection. Requires permission to update the object holding the collection.
+     *
+     * @return false if it was already a member
+     * @throws IllegalArgumentException if the collection is not a many to many without an order column
+     * @throws javax.persistence.EntityNotFoundException if either object doesn't exist
+     */
+    boolean addMember(Class<? extends Persisted> clazz, Long id, String collection, Long memberId) throws AuthzException;
+
+    /**
+     * Remove an object from a many to many collection by deleting the row in the join table, as for
+     * {@link #addMember}.
+     *
+     * @return false if it was not a member
+     */
+    boolean removeMember(Class<? extends Persisted> clazz, Long id, String collection, Long memberId) throws AuthzException;
+
     <T extends Persisted> List<T> list(Class<T> clazz, int start, int rows) throws AuthzException;
 
     <T extends Persisted> List<T> list(Class<T> clazz, int start, int rows, boolean privileged) throws AuthzException;
@@ -41,6 +94,36 @@ public interface ObjectService {
 
     <T extends Persisted> List<T> list(Class<T> clazz, int start, int rows, List<Filter> filters, List<String> sorts, boolean privileged) throws AuthzException;
 
+    /**
+     * List objects by position rather than offset. The objects are ordered by the sorts and then by id, and
+     * only objects after the keyset are returned, which the database can find by seeking an index no matter
+     * how deep into the list the page is.
+     *
+     * @param after the position of the last object of the previous page (see {@link Keyset#after}), or null
+     *              for the first page
+     * @throws IllegalArgumentException if a sort is on a field that may be null, rows holding null would be
+     *                                  skipped so such lists must be paged by offset, or on a field whose
+     *                                  type a cursor can't carry
+     */
+    <T extends Persisted> List<T> list(Class<T> clazz, Keyset after, int rows, List<Filter> filters, List<String> sorts) throws AuthzException;
+
+    /**
+     * List only some fields of the objects, as a map of field name to value for each object. Only those
+     * columns are read from the database, and associated objects are not loaded at all.
+     *
+     * @param fields names of fields on the class, which must be simple values (not associations or
+     *               collections) and not hidden from json. The id is always included.
+     */
+    List<Map<String, Object>> list(Class<? extends Persisted> clazz, int start, int rows, List<Filter> filters, List<String> sorts, List<String> fields) throws AuthzException;
+
+    /**
+     * Like {@link #list(Class, int, int, List, List)} but objects are read from the database as the stream
+     * is consumed rather than all at once, and objects already consumed are detached from the persistence
+     * context so that they can be garbage collected. Consume the stream before starting any other work in
+     * the same EntityManager, and close it when done.
+     */
+    <T extends Persisted> Stream<T> stream(Class<T> clazz, int start, int rows, List<Filter> filters, List<String> sorts) throws AuthzException;
+
     Long count(Class<? extends Persisted> clazz, List<Filter> filters) throws AuthzException;
 
     Long count(Class<? extends Persisted> clazz, List<Filter> filters, boolean privileged) throws AuthzException;
@@ -49,6 +132,19 @@ public interface ObjectService {
 
     Persisted update(Persisted persisted) throws AuthzException;
 
+    /**
+     * Insert the objects that have no id and update those that do, exactly as {@link #insert} and {@link #update}
+     * would, but flushing to the database every {@code hibernate.jdbc.batch_size} objects so that the statements
+     * go to the database in JDBC batches. Each flushed batch is detached from the persistence context to keep
+     * memory flat however many objects there are. Hibernate clears the persistence context when a transaction
+     * rolls back, so a failed save leaves nothing behind to be written by later saves on the same entity manager.
+     *
+     * @return the saved objects, in the same order
+     * @throws AuthzException if any of the objects may not be saved by the current user, in which case the
+     *                        transaction should be rolled back.
+     */
+    List<Persisted> save(List<? extends Persisted> objects) throws AuthzException;
+
 
     void delete(Class clazz, Long identifer);
 
@@ -43,17 +43,19 @@ public interface PermissionService {
   AppUser lookUpUserByEmail(ObjectService objectService, String userEmail) throws AuthzException;
 
   /**
-   * Check the permissions and return a comma separated list of object ID's that the user has explicit permission
-   * to view. The result of this method is meant to be substituted into a JPQL clause such as
-   * <pre>where t.id in ( {return value} )</pre>
+   * Check the permissions and return the object ID's that the user has explicit permission to act on. The
+   * result is meant to be bound as a parameter in a JPQL clause such as
+   * <pre>where t.id in ( :ids )</pre>
    *
    * @param clazz the persistent type for which the action may or may not be permissible
    * @param action the action that may or may not be permitted
    * @param <T> the persistent type that will be filtered
-   * @return A comma separated list of ids for which access IS granted.
+   * @return The ids for which access IS granted, or {@link PermittedIds#ALL}. Other objects may only be acted
+   * on if they have no owner or are owned by the user, so an empty set (e.g. when the only qualifiers granted
+   * are domain names) restricts the user to those.
    * @throws AuthzException if the current user doesn't have sufficient permissions for the action/type combination
    */
-  <T extends Persisted> String checkPermsAndFilter(Class<T> clazz, String action) throws AuthzException;
+  <T extends Persisted> PermittedIds checkPermsAndFilter(Class<T> clazz, String action) throws AuthzException;
 
   /**
    * Get the currently relevant principal. Some implementations such as shiro can track multiple principals
@@ -62,4 +64,14 @@ public interface PermissionService {
    * @return The user which the system should use for permitting and attributing work.
    */
   AppUser getTopPrincipal();
+
+  /**
+   * Notification that an object has been inserted or updated via {@link ObjectService}. Implementations that
+   * cache users, roles or permissions should drop anything the write may have made stale. This is called
+   * when the write is made and again once its transaction has completed, so that nothing read in between
+   * outlives the transaction.
+   *
+   * @param written the object that was written
+   */
+  void objectWritten(Persisted written);
 }
@@ -0,0 +1,161 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The object ids for which a user has been granted permission individually, as opposed to by type. Either
+ * all objects are permitted (a wild card grant) or a set of specific ids, which may be empty. Ids are held
+ * in an open addressed hash table of primitive longs, so membership is checked in constant time without
+ * boxing, and the instance is immutable once built.
+ */
+public final class PermittedIds {
+
+  public static final PermittedIds ALL = new PermittedIds(true, new long[0], 0);
+  public static final PermittedIds NONE = new PermittedIds(false, new long[0], 0);
+
+  private static final long EMPTY = Long.MIN_VALUE; // marks an unused slot, never a valid database id
+
+  private final boolean all;
+  private final long[] table;
+  private final int size;
+
+  private PermittedIds(boolean all, long[] table, int size) {
+    this.all = all;
+    this.table = table;
+    this.size = size;
+  }
+
+  /**
+   * @param ids the permitted ids, duplicates are ignored
+   * @return the set of ids
+   */
+  public static PermittedIds of(long... ids) {
+    if (ids.length == 0) {
+      return NONE;
+    }
+    int capacity = Integer.highestOneBit(Math.max(4, ids.length * 2 - 1)) << 1; // load factor under 1/2
+    long[] table = new long[capacity];
+    Arrays.fill(table, EMPTY);
+    int size = 0;
+    for (long id : ids) {
+      if (id == EMPTY) {
+        continue;
+      }
+      int slot = slot(table, id);
+      if (table[slot] == EMPTY) {
+        table[slot] = id;
+        size++;
+      }
+    }
+    return new PermittedIds(false, table, size);
+  }
+
+  private static int slot(long[] table, long id) {
+    int mask = table.length - 1;
+    int i = Long.hashCode(id * 0x9E3779B97F4A7C15L) & mask;
+    while (table[i] != EMPTY && table[i] != id) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /**
+   * @return true if the user may act on every object of the type
+   */
+  public boolean isAll() {
+    return all;
+  }
+
+  /**
+   * @return true if no individual objects have been granted (and not all are permitted)
+   */
+  public boolean isEmpty() {
+    return !all && size == 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param id an object id
+   * @return true if all objects are permitted or this id was granted individually
+   */
+  public boolean contains(long id) {
+    if (all) {
+      return true;
+    }
+    if (size == 0 || id == EMPTY) {
+      return false;
+    }
+    return table[slot(table, id)] == id;
+  }
+
+  /**
+   * @return the individually granted ids in no particular order, empty if all objects are permitted
+   */
+  public List<Long> toList() {
+    List<Long> ids = new ArrayList<>(size);
+    for (long id : table) {
+      if (id != EMPTY) {
+        ids.add(id);
+      }
+    }
+    return ids;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof PermittedIds)) {
+      return false;
+    }
+    PermittedIds that = (PermittedIds) o;
+    if (all != that.all || size != that.size) {
+      return false;
+    }
+    for (long id : table) {
+      if (id != EMPTY && !that.contains(id)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    // independent of the order of the table, which depends on the order ids were added
+    int hash = Boolean.hashCode(all);
+    for (long id : table) {
+      if (id != EMPTY) {
+        hash += Long.hashCode(id);
+      }
+    }
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return all ? "*" : toList().toString();
+  }
+}
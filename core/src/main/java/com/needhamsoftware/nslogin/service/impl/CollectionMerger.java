@@ -0,0 +1,303 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.service.impl;
+
+import com.copyright.easiertest.AnnotationUtil;
+import com.needhamsoftware.nslogin.model.Persisted;
+import org.hibernate.Hibernate;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.collection.QueryableCollection;
+import org.hibernate.query.NativeQuery;
+
+import javax.persistence.CascadeType;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.ManyToMany;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Brings the collections of an object sent by a client together with those already stored, before the
+ * object is handed to {@link EntityManager#merge}. A collection that was not sent (null) is left as it
+ * is. A many to many collection is changed by deleting and inserting only the rows of its join table that
+ * differ, worked out from the ids on each side, so neither the stored collection nor its members need to
+ * be loaded. Anything else (ordered or inverse collections, new objects, a change of order only) is left
+ * for hibernate's merge, which replaces the whole collection.
+ */
+class CollectionMerger {
+
+  /**
+   * Rows per statement when inserting into or deleting from a join table.
+   */
+  private static final int CHUNK = 100;
+
+  private static final ClassValue<List<Association>> ASSOCIATIONS = new ClassValue<List<Association>>() {
+    @Override
+    protected List<Association> computeValue(Class<?> type) {
+      List<Association> associations = new ArrayList<>();
+      for (Class<?> c : AnnotationUtil.listSupers(type)) {
+        for (Field f : c.getDeclaredFields()) {
+          Association association = Association.of(f);
+          if (association != null) {
+            associations.add(association);
+          }
+        }
+      }
+      return associations;
+    }
+  };
+
+  private final EntityManager entityManager;
+
+  CollectionMerger(EntityManager entityManager) {
+    this.entityManager = entityManager;
+  }
+
+  /**
+   * @param incoming the object as sent by the client, its collections are replaced where the merger has
+   *                 dealt with them
+   * @param stored   the managed copy of the same object, which {@link EntityManager#merge} will copy
+   *                 the incoming state onto
+   */
+  void merge(Persisted incoming, Persisted stored) {
+    Set<Persisted> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    visited.add(incoming);
+    for (Association association : ASSOCIATIONS.get(incoming.getClass())) {
+      Object value = association.get(incoming);
+      if (association.collection) {
+        mergeCollection(association, incoming, stored, (Collection<?>) value, visited);
+      } else if (association.cascadesMerge) {
+        keepUnsent((Persisted) value, visited);
+      }
+    }
+  }
+
+  private void mergeCollection(Association association, Persisted incoming, Persisted stored,
+                               Collection<?> sent, Set<Persisted> visited) {
+    Collection<?> current = (Collection<?>) association.get(stored);
+    if (sent == null) {
+      association.set(incoming, current);
+      return;
+    }
+    if (association.cascadesMerge) {
+      for (Object o : sent) {
+        keepUnsent((Persisted) o, visited);
+      }
+    }
+    JoinTable table = joinTable(entityManager, Hibernate.getClass(stored), association.field);
+    if (table == null || Hibernate.isInitialized(current)) {
+      return;
+    }
+    List<Long> sentIds = new ArrayList<>(sent.size());
+    for (Object o : sent) {
+      Long id = ((Persisted) o).getId();
+      if (id == null) {
+        return;
+      }
+      sentIds.add(id);
+    }
+    List<Long> storedIds = table.memberIds(stored.getId());
+    if (!storedIds.equals(sentIds)) {
+      Set<Long> sentSet = new HashSet<>(sentIds);
+      Set<Long> storedSet = new HashSet<>(storedIds);
+      if (sentSet.size() != sentIds.size() || sentSet.equals(storedSet)) {
+        // duplicates or a new order, which a bag can only get by being rewritten
+        return;
+      }
+      table.remove(stored.getId(), storedIds.stream().filter(id -> !sentSet.contains(id)).collect(Collectors.toList()));
+      table.add(stored.getId(), sentIds.stream().filter(id -> !storedSet.contains(id)).collect(Collectors.toList()));
+    }
+    association.set(incoming, current);
+    if (association.cascadesMerge) {
+      // the stored collection no longer leads the merge to the members, so changes to them are merged here
+      for (Object o : sent) {
+        entityManager.merge(o);
+      }
+    }
+  }
+
+  /**
+   * Collections that were not expanded when the object was read are null in the json sent back, and mean
+   * "unchanged" rather than "empty" (send an empty list to remove everything). This also applies to
+   * objects the merge cascades to, such as the roles of a user.
+   */
+  private void keepUnsent(Persisted persistMe, Set<Persisted> visited) {
+    if (persistMe == null || persistMe.getId() == null || !visited.add(persistMe)) {
+      return;
+    }
+    Persisted stored = null;
+    for (Association association : ASSOCIATIONS.get(persistMe.getClass())) {
+      Object value = association.get(persistMe);
+      if (association.collection && value == null) {
+        if (stored == null) {
+          stored = entityManager.find(persistMe.getClass(), persistMe.getId());
+          if (stored == null) {
+            return;
+          }
+        }
+        association.set(persistMe, association.get(stored));
+      } else if (association.cascadesMerge) {
+        if (value instanceof Collection) {
+          for (Object o : (Collection<?>) value) {
+            keepUnsent((Persisted) o, visited);
+          }
+        } else {
+          keepUnsent((Persisted) value, visited);
+        }
+      }
+    }
+  }
+
+  /**
+   * The join table behind a collection, or null if the collection isn't one that can be changed a row at
+   * a time (it has no join table, is ordered, or is maintained from the other side).
+   */
+  static JoinTable joinTable(EntityManager entityManager, Class<?> clazz, Field field) {
+    Class<?> declaring = field.getDeclaringClass().isAnnotationPresent(Entity.class) ? field.getDeclaringClass() : clazz;
+    QueryableCollection persister = (QueryableCollection) entityManager.getEntityManagerFactory()
+        .unwrap(SessionFactoryImplementor.class)
+        .getMetamodel()
+        .collectionPersister(declaring.getName() + "." + field.getName());
+    if (!persister.isManyToMany() || persister.hasIndex() || persister.isInverse()) {
+      return null;
+    }
+    return new JoinTable(entityManager, persister.getTableName(), persister.getKeyColumnNames()[0],
+        persister.getElementColumnNames()[0]);
+  }
+
+  static final class JoinTable {
+    private final EntityManager entityManager;
+    private final String table;
+    private final String key;
+    private final String element;
+
+    private JoinTable(EntityManager entityManager, String table, String key, String element) {
+      this.entityManager = entityManager;
+      this.table = table;
+      this.key = key;
+      this.element = element;
+    }
+
+    List<Long> memberIds(Long owner) {
+      List<?> ids = entityManager
+          .createNativeQuery("select " + element + " from " + table + " where " + key + " = :owner")
+          .setParameter("owner", owner)
+          .getResultList();
+      return ids.stream().map(id -> ((Number) id).longValue()).collect(Collectors.toList());
+    }
+
+    boolean contains(Long owner, Long member) {
+      Number present = (Number) entityManager
+          .createNativeQuery("select count(*) from " + table + " where " + key + " = :owner and " + element + " = :member")
+          .setParameter("owner", owner)
+          .setParameter("member", member)
+          .getSingleResult();
+      return present.longValue() > 0;
+    }
+
+    void add(Long owner, List<Long> members) {
+      for (int i = 0; i < members.size(); i += CHUNK) {
+        List<Long> chunk = members.subList(i, Math.min(members.size(), i + CHUNK));
+        StringBuilder sql = new StringBuilder("insert into " + table + " (" + key + ", " + element + ") values ");
+        for (int j = 0; j < chunk.size(); j++) {
+          sql.append(j == 0 ? "" : ", ").append("(:owner, :m").append(j).append(")");
+        }
+        NativeQuery<?> insert = update(sql.toString()).setParameter("owner", owner);
+        for (int j = 0; j < chunk.size(); j++) {
+          insert.setParameter("m" + j, chunk.get(j));
+        }
+        insert.executeUpdate();
+      }
+    }
+
+    void remove(Long owner, List<Long> members) {
+      for (int i = 0; i < members.size(); i += CHUNK) {
+        update("delete from " + table + " where " + key + " = :owner and " + element + " in (:members)")
+            .setParameter("owner", owner)
+            .setParameterList("members", members.subList(i, Math.min(members.size(), i + CHUNK)))
+            .executeUpdate();
+      }
+    }
+
+    private NativeQuery<?> update(String sql) {
+      return entityManager.createNativeQuery(sql)
+          .unwrap(NativeQuery.class)
+          // only cached data read from this table is invalidated, not the whole second level cache
+          .addSynchronizedQuerySpace(table);
+    }
+  }
+
+  private static final class Association {
+    private final Field field;
+    private final boolean collection;
+    private final boolean cascadesMerge;
+
+    private Association(Field field, boolean collection, boolean cascadesMerge) {
+      this.field = field;
+      this.collection = collection;
+      this.cascadesMerge = cascadesMerge;
+    }
+
+    static Association of(Field f) {
+      CascadeType[] cascade;
+      boolean many = false;
+      if (f.isAnnotationPresent(ManyToMany.class)) {
+        cascade = f.getAnnotation(ManyToMany.class).cascade();
+        many = true;
+      } else if (f.isAnnotationPresent(OneToMany.class)) {
+        cascade = f.getAnnotation(OneToMany.class).cascade();
+        many = true;
+      } else if (f.isAnnotationPresent(ManyToOne.class)) {
+        cascade = f.getAnnotation(ManyToOne.class).cascade();
+      } else if (f.isAnnotationPresent(OneToOne.class)) {
+        cascade = f.getAnnotation(OneToOne.class).cascade();
+      } else {
+        return null;
+      }
+      f.setAccessible(true);
+      return new Association(f, many && Collection.class.isAssignableFrom(f.getType()),
+          Arrays.stream(cascade).anyMatch((t) -> t == CascadeType.MERGE || t == CascadeType.ALL));
+    }
+
+    Object get(Object o) {
+      try {
+        return field.get(o);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    void set(Object o, Object value) {
+      try {
+        field.set(o, value);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
@@ -16,42 +16,82 @@
 
 package com.needhamsoftware.nslogin.service.impl;
 
-import com.copyright.easiertest.AnnotatedElementAction;
 import com.copyright.easiertest.AnnotationUtil;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.needhamsoftware.nslogin.AuthzException;
 import com.needhamsoftware.nslogin.FieldUtil;
 import com.needhamsoftware.nslogin.PasswordStandards;
+import com.needhamsoftware.nslogin.PersistenceUtil;
+import com.needhamsoftware.nslogin.metrics.GuavaCacheStats;
+import com.needhamsoftware.nslogin.metrics.MBeans;
 import com.needhamsoftware.nslogin.model.*;
 import com.needhamsoftware.nslogin.model.action.ReverseThings;
 import com.needhamsoftware.nslogin.service.Filter;
+import com.needhamsoftware.nslogin.service.Keyset;
 import com.needhamsoftware.nslogin.service.ObjectService;
 import com.needhamsoftware.nslogin.service.PermissionService;
+import com.needhamsoftware.nslogin.service.PermittedIds;
 import com.needhamsoftware.nslogin.servlet.ObjectPropertyFilter;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.annotations.QueryHints;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.query.Query;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
+import javax.management.ObjectName;
 import javax.persistence.*;
+import javax.persistence.metamodel.SingularAttribute;
 import javax.transaction.Transactional;
-import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Singleton
 public class ObjectServiceImpl implements ObjectService {
 
   private static final String OWNER_ID_PARAM = "owner_id";
+  private static final String PERMITTED_IDS_PARAM = "permitted_ids";
+  private static final int COUNT_SECONDS = 10;
+  private static final int STREAM_BATCH = 100;
+  private static final int FLUSH_EVERY = 50; // bounds the session when hibernate.jdbc.batch_size isn't set
+  private static final String LOAD_GRAPH = "javax.persistence.loadgraph";
+  private static final String FETCH_GRAPH = "javax.persistence.fetchgraph";
+  private static final String MEMBERS_OF_PARAM = "members_of";
+  private static final int EXPAND_CHUNK = 512;
+  private static final String KEY_PARAM = "k";
+  private static final String KEY_ID_PARAM = "k_id";
+  // keeps each IN list within the limits of every database we might reasonably run on, even once padded
+  private static final int PERMITTED_ID_CHUNK = 512;
   private static Logger log = LogManager.getLogger();
   private static final Pattern POS_INTEGER = Pattern.compile("\\d+");
 
@@ -62,6 +102,37 @@ public class ObjectServiceImpl implements ObjectService {
   @Inject
   private PermissionService permissionService;
 
+  @Inject
+  private PersistenceUtil persistenceUtil;
+
+  // Validated HQL for each shape of query we have been asked for, see QueryShape
+  private final Cache<QueryShape, QueryPlan> queryPlans = CacheBuilder.newBuilder()
+      .maximumSize(2000)
+      .recordStats()
+      .build();
+
+  // Recent counts, so paging through a list doesn't repeat the count(*) for every page. Entries are
+  // dropped when an object of the type is written, and otherwise only live long enough to cover a burst
+  // of paging, since writes on other nodes can't reach us.
+  private final Cache<CountKey, Long> counts = CacheBuilder.newBuilder()
+      .maximumSize(10000)
+      .expireAfterWrite(COUNT_SECONDS, TimeUnit.SECONDS)
+      .recordStats()
+      .build();
+
+  /**
+   * Publish the statistics of the query plan and count caches. Left to the web application, which knows
+   * its context path and when to unregister them.
+   *
+   * @param name distinguishes this instance from those of other applications, typically the context path
+   * @return the names registered, to be passed to {@link MBeans#unregister} on shutdown
+   */
+  public List<ObjectName> registerStats(String name) {
+    return Arrays.asList(
+        MBeans.register("QueryPlans", name, new GuavaCacheStats(queryPlans)),
+        MBeans.register("QueryCounts", name, new GuavaCacheStats(counts)));
+  }
+
   @Override
   public void initSystem() {
     // this is for testing, a proper system should replace this with a
@@ -255,14 +326,11 @@ public class ObjectServiceImpl implements ObjectService {
   @Override
   public <T extends Persisted> List<T> get(Class<T> clazz, List<Long> identifiers) {
     EntityManager entityManager = entityManagerProvider.get();
-    @SuppressWarnings("JpaQlInspection")
-    String qlString = "from " + clazz.getName() +
-        " where id in :ids";
-    TypedQuery<T> q = entityManager
-        .createQuery(qlString, clazz)
-        .setParameter("ids", identifiers);
-
-    return q.getResultList();
+    // unlike a query this checks the persistence context and the second level cache before the database
+    List<T> found = entityManager.unwrap(Session.class)
+        .byMultipleIds(clazz)
+        .multiLoad(identifiers);
+    return found.stream().filter(Objects::nonNull).collect(Collectors.toList());
   }
 
   @Override
@@ -270,19 +338,266 @@ public class ObjectServiceImpl implements ObjectService {
     return get(clazz, identifier, true);
   }
 
+  @Override
+  public <T extends Persisted> void expand(Class<T> clazz, List<T> objects, List<String> paths) {
+    expand(entityManagerProvider.get(), clazz, objects, paths);
+  }
+
+  /**
+   * Fetch each named association for all of the objects that don't have it loaded yet. Collections are
+   * fetched one association per query, since joining several would multiply the rows read (and hibernate
+   * refuses to fetch more than one list at a time). Then recurse into the associated objects for the
+   * remainder of any dotted paths.
+   */
+  private void expand(EntityManager entityManager, Class<?> clazz, Collection<?> objects, List<String> paths) {
+    if (objects.isEmpty()) {
+      return;
+    }
+    Map<String, List<String>> byField = new LinkedHashMap<>();
+    for (String path : paths) {
+      int dot = path.indexOf('.');
+      List<String> remainder = byField.computeIfAbsent(dot < 0 ? path : path.substring(0, dot), (k) -> new ArrayList<>());
+      if (dot >= 0) {
+        remainder.add(path.substring(dot + 1));
+      }
+    }
+    javax.persistence.PersistenceUtil loaded = Persistence.getPersistenceUtil();
+    for (Map.Entry<String, List<String>> entry : byField.entrySet()) {
+      String name = entry.getKey();
+      Field field = association(clazz, name);
+      List<Long> ids = objects.stream()
+          .filter((o) -> !loaded.isLoaded(o, name))
+          .map((o) -> ((Persisted) o).getId())
+          .collect(Collectors.toList());
+      if (!ids.isEmpty()) {
+        @SuppressWarnings("unchecked")
+        EntityGraph<?> graph = entityManager.createEntityGraph((Class<Object>) clazz);
+        graph.addAttributeNodes(name);
+        @SuppressWarnings("JpaQlInspection")
+        String qlString = "select x from " + clazz.getName() + " x where x.id in :ids";
+        for (int i = 0; i < ids.size(); i += EXPAND_CHUNK) {
+          // the objects are already in the persistence context, this only fills in the association
+          entityManager.createQuery(qlString, clazz)
+              .setParameter("ids", ids.subList(i, Math.min(ids.size(), i + EXPAND_CHUNK)))
+              .setHint(FETCH_GRAPH, graph)
+              .getResultList();
+        }
+      }
+      if (!entry.getValue().isEmpty()) {
+        Set<Object> associated = new LinkedHashSet<>();
+        field.setAccessible(true);
+        try {
+          for (Object o : objects) {
+            Object value = field.get(o);
+            if (value instanceof Collection) {
+              associated.addAll((Collection<?>) value);
+            } else if (value != null) {
+              associated.add(value);
+            }
+          }
+        } catch (IllegalAccessException e) {
+          throw new RuntimeException(e);
+        }
+        expand(entityManager, associatedType(field), associated, entry.getValue());
+      }
+    }
+  }
+
+  @Override
+  public List<Persisted> listMembers(Class<? extends Persisted> clazz, Long id, String collection, Keyset after,
+                                    int start, int rows) throws AuthzException {
+    EntityManager entityManager = entityManagerProvider.get();
+    Class<? extends Persisted> memberType = memberQuerySetup(entityManager, clazz, id, collection);
+    return new ArrayList<>(listMembers(entityManager, clazz, id, collection, memberType, after, start, rows));
+  }
+
+  private <M extends Persisted> List<M> listMembers(EntityManager entityManager, Class<? extends Persisted> clazz,
+                                                    Long id, String collection, Class<M> memberType, Keyset after,
+                                                    int start, int rows) throws AuthzException {
+    PermittedIds permitted = permissionService.checkPermsAndFilter(memberType, "read");
+    StringBuilder qlString = new StringBuilder("from " + memberType.getName());
+    memberWhere(clazz, collection, qlString, permitted);
+    addSeek(after, null, qlString, memberType);
+    addSorts(null, qlString, memberType, true);
+    TypedQuery<M> q = entityManager.createQuery(qlString.toString(), memberType);
+    q.setParameter(MEMBERS_OF_PARAM, id);
+    q.setParameter(OWNER_ID_PARAM, topPrincipalId());
+    applyPermittedIds(permitted, q);
+    applyKeyset(after, null, q);
+    q.setFirstResult(start);
+    q.setMaxResults(rows);
+    q.setHint(LOAD_GRAPH, auditGraph(entityManager, memberType));
+    return q.getResultList();
+  }
+
+  @Override
+  public Long countMembers(Class<? extends Persisted> clazz, Long id, String collection) throws AuthzException {
+    EntityManager entityManager = entityManagerProvider.get();
+    Class<? extends Persisted> memberType = memberQuerySetup(entityManager, clazz, id, collection);
+    PermittedIds permitted = permissionService.checkPermsAndFilter(memberType, "read");
+    StringBuilder qlString = new StringBuilder("select count(*) from " + memberType.getName());
+    memberWhere(clazz, collection, qlString, permitted);
+    TypedQuery<Long> q = entityManager.createQuery(qlString.toString(), Long.class);
+    q.setParameter(MEMBERS_OF_PARAM, id);
+    q.setParameter(OWNER_ID_PARAM, topPrincipalId());
+    applyPermittedIds(permitted, q);
+    return q.getSingleResult();
+  }
+
+  /**
+   * Check that the collection may be read, and that the object holding it exists and may be read.
+   *
+   * @return the type of the members
+   */
+  private Class<? extends Persisted> memberQuerySetup(EntityManager entityManager, Class<? extends Persisted> clazz, Long id,
+                                    String collection) throws AuthzException {
+    Field field = association(clazz, collection);
+    if (!Collection.class.isAssignableFrom(field.getType())) {
+      throw new IllegalArgumentException(collection + " is not a collection of " + clazz.getSimpleName());
+    }
+    Persisted holder = entityManager.find(clazz, id);
+    if (holder == null) {
+      throw new EntityNotFoundException(clazz.getSimpleName() + " " + id + " not found");
+    }
+    checkAccess(clazz, holder, "read");
+    return associatedType(field).asSubclass(Persisted.class);
+  }
+
+  /**
+   * The usual restriction to objects the user may see, and to members of the collection. The collection is
+   * only named in a sub-query, so it is never loaded.
+   */
+  private void memberWhere(Class<? extends Persisted> clazz, String collection, StringBuilder qlString,
+                           PermittedIds permitted) {
+    universalWhere(clazz, qlString, permitted);
+    qlString.append(" and id in (select m.id from ").append(clazz.getName()).append(" o join o.")
+        .append(collection).append(" m where o.id = :").append(MEMBERS_OF_PARAM).append(")");
+  }
+
+  /**
+   * The same rule as {@link #universalWhere}: objects with no owner, those owned by the user, and those
+   * specifically permitted.
+   */
+  private void checkAccess(Class<? extends Persisted> clazz, Persisted object, String action) throws AuthzException {
+    checkAccess(permissionService.checkPermsAndFilter(clazz, action), object);
+  }
+
+  private void checkAccess(PermittedIds permitted, Persisted object) throws AuthzException {
+    if (permitted.isAll() || permitted.contains(object.getId())) {
+      return;
+    }
+    AppUserRef owner = object.getOwner();
+    if (owner != null && owner.getId() != topPrincipalId()) {
+      throw new AuthzException();
+    }
+  }
+
+  @Override
+  public boolean addMember(Class<? extends Persisted> clazz, Long id, String collection, Long memberId)
+      throws AuthzException {
+    return changeMember(clazz, id, collection, memberId, true);
+  }
+
+  @Override
+  public boolean removeMember(Class<? extends Persisted> clazz, Long id, String collection, Long memberId)
+      throws AuthzException {
+    return changeMember(clazz, id, collection, memberId, false);
+  }
+
+  /**
+   * Insert or delete one row of a join table. Neither the collection nor the member's side of the
+   * relationship is loaded, so this costs the same for a collection of any size. The holder's version is
+   * still incremented (as it would be by a change to the collection through hibernate) so that copies
+   * held by clients become stale.
+   */
+  private boolean changeMember(Class<? extends Persisted> clazz, Long id, String collection, Long memberId,
+                               boolean add) throws AuthzException {
+    EntityManager entityManager = entityManagerProvider.get();
+    Field field = association(clazz, collection);
+    CollectionMerger.JoinTable table = CollectionMerger.joinTable(entityManager, clazz, field);
+    if (table == null) {
+      throw new IllegalArgumentException(collection + " of " + clazz.getSimpleName() +
+          " can only be changed by updating the whole object");
+    }
+    Persisted holder = entityManager.find(clazz, id);
+    Object member = entityManager.find(associatedType(field), memberId);
+    if (holder == null || member == null) {
+      throw new EntityNotFoundException("No " + (holder == null ? clazz.getSimpleName() + " " + id :
+          associatedType(field).getSimpleName() + " " + memberId));
+    }
+    checkAccess(clazz, holder, "update");
+
+    if (table.contains(id, memberId) == add) {
+      return false;
+    }
+    if (add) {
+      table.add(id, Collections.singletonList(memberId));
+    } else {
+      table.remove(id, Collections.singletonList(memberId));
+    }
+
+    holder.setModified(Instant.now());
+    holder.setModifiedBy(permissionService.getTopPrincipal().asRef());
+    written(entityManager, Arrays.asList(holder, (Persisted) member));
+    return true;
+  }
+
+  /**
+   * Find an association that may be expanded, it must be a relationship to other entities and not hidden
+   * from json.
+   */
+  private static Field association(Class<?> clazz, String name) {
+    for (Class<?> c : AnnotationUtil.listSupers(clazz)) {
+      for (Field f : c.getDeclaredFields()) {
+        if (f.getName().equals(name) && !f.isAnnotationPresent(JsonIgnore.class) &&
+            (f.isAnnotationPresent(ManyToMany.class) ||
+                f.isAnnotationPresent(OneToMany.class) ||
+                f.isAnnotationPresent(ManyToOne.class) ||
+                f.isAnnotationPresent(OneToOne.class))) {
+          return f;
+        }
+      }
+    }
+    throw new IllegalArgumentException(name + " is not an association of " + clazz.getSimpleName() +
+        " that can be expanded");
+  }
+
+  private static Class<?> associatedType(Field field) {
+    if (Collection.class.isAssignableFrom(field.getType())) {
+      return (Class<?>) ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
+    }
+    return field.getType();
+  }
+
+  @Override
+  public Long version(Class<? extends Persisted> clazz, Long identifier) {
+    EntityManager entityManager = entityManagerProvider.get();
+    @SuppressWarnings("JpaQlInspection")
+    String qlString = "select version from " + clazz.getName() +
+        " where id=:id";
+    List<Long> versions = entityManager
+        .createQuery(qlString, Long.class)
+        .setParameter("id", identifier)
+        .getResultList();
+    return versions.isEmpty() ? null : versions.get(0);
+  }
+
   private <T extends Persisted> T get(Class<T> clazz, Long identifier, boolean fresh) {
     EntityManager entityManager = entityManagerProvider.get();
+    if (!fresh) {
+      // may be answered from the persistence context or the second level cache
+      return entityManager.find(clazz, identifier);
+    }
 
+    // a query always goes to the database, though an instance already in the persistence context is
+    // returned as it was, not updated from the row read.
     @SuppressWarnings("JpaQlInspection")
     String qlString = "from " + clazz.getName() +
         " where id=:id";
     TypedQuery<T> q = entityManager
         .createQuery(qlString, clazz)
         .setParameter("id", identifier);
-    if (fresh) {
-      // this doesn't seem to be effective... not sure why
-      q.setHint("javax.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS);
-    }
+    q.setHint("javax.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS);
 
     List<T> resultList = q.getResultList();
     if (resultList.size() > 1) {
@@ -308,7 +623,12 @@ public class ObjectServiceImpl implements ObjectService {
 
   @Override
   public <T extends Persisted> List<T> list(Class<T> clazz, int start, int rows, List<Filter> filters, List<String> sorts, boolean privileged) throws AuthzException {
-    return list(clazz, start, rows, filters, sorts, privileged, false);
+    return list(clazz, start, rows, filters, sorts, privileged, false, false, null);
+  }
+
+  @Override
+  public <T extends Persisted> List<T> list(Class<T> clazz, Keyset after, int rows, List<Filter> filters, List<String> sorts) throws AuthzException {
+    return list(clazz, 0, rows, filters, sorts, false, false, true, after);
   }
 
   @SuppressWarnings("SameParameterValue")
@@ -318,22 +638,31 @@ public class ObjectServiceImpl implements ObjectService {
       List<Filter> filters,
       List<String> sorts,
       boolean privileged,
-      boolean fresh) throws AuthzException {
+      boolean fresh,
+      boolean keyed,
+      Keyset after) throws AuthzException {
     EntityManager entityManager = entityManagerProvider.get();
+    if (keyed) {
+      checkKeysetSorts(entityManager, clazz, sorts);
+    }
     TypedQuery<T> q;
     if (privileged) {
       // for use in internal system queries
-      q = buildQuery(clazz, filters, entityManager, sorts, false, clazz);
+      q = buildQuery(clazz, filters, entityManager, sorts, false, clazz, keyed, after);
     } else {
       // user initiated actions...
-      q = buildSecureQuery(clazz, filters, entityManager, sorts, false, clazz, "read");
+      q = buildSecureQuery(clazz, filters, entityManager, sorts, false, clazz, "read", keyed, after, null);
     }
 
     q.setMaxResults(rows);
     q.setFirstResult(start);
+    q.setHint(LOAD_GRAPH, auditGraph(entityManager, clazz));
     if (fresh) {
       // this doesn't seem to always be effective, not sure why...
       q.setHint("javax.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS);
+    } else if (clazz.isAnnotationPresent(Cacheable.class)) {
+      // rarely changing types, any write to the table invalidates the cached results
+      q.setHint(QueryHints.CACHEABLE, true);
     }
     @SuppressWarnings("UnnecessaryLocalVariable") // useful for debugging
         List<T> resultList = q.getResultList();
@@ -341,6 +670,76 @@ public class ObjectServiceImpl implements ObjectService {
   }
 
 
+  /**
+   * Every object refers to up to three users, which would otherwise be selected one at a time after the
+   * list is read. Joining them to the list query keeps a page at one select however many rows it has.
+   */
+  private static <T extends Persisted> EntityGraph<T> auditGraph(EntityManager entityManager, Class<T> clazz) {
+    EntityGraph<T> graph = entityManager.createEntityGraph(clazz);
+    graph.addAttributeNodes("owner", "createdBy", "modifiedBy");
+    return graph;
+  }
+
+  @Override
+  public <T extends Persisted> Stream<T> stream(Class<T> clazz, int start, int rows, List<Filter> filters, List<String> sorts) throws AuthzException {
+    EntityManager entityManager = entityManagerProvider.get();
+    TypedQuery<T> q = buildSecureQuery(clazz, filters, entityManager, sorts, false, clazz, "read", false, null, null);
+    q.setMaxResults(rows);
+    q.setFirstResult(start);
+    q.setHint(LOAD_GRAPH, auditGraph(entityManager, clazz));
+    ScrollableResults scroll = q.unwrap(Query.class)
+        .setFetchSize(STREAM_BATCH)
+        .setReadOnly(true)
+        .scroll(ScrollMode.FORWARD_ONLY);
+    Iterator<T> detaching = new Iterator<T>() {
+      private Boolean advanced;
+      private int sinceClear;
+
+      @Override
+      public boolean hasNext() {
+        if (advanced == null) {
+          // The consumer is done with the objects it has had once it asks for more, so this is where we
+          // let go of a batch, before the next row is loaded into the persistence context.
+          if (sinceClear >= STREAM_BATCH) {
+            entityManager.clear();
+            sinceClear = 0;
+          }
+          advanced = scroll.next();
+        }
+        return advanced;
+      }
+
+      @Override
+      public T next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        advanced = null;
+        sinceClear++;
+        return clazz.cast(scroll.get(0));
+      }
+    };
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(detaching, Spliterator.ORDERED), false)
+        .onClose(scroll::close);
+  }
+
+  @Override
+  public List<Map<String, Object>> list(Class<? extends Persisted> clazz, int start, int rows, List<Filter> filters,
+                                        List<String> sorts, List<String> fields) throws AuthzException {
+    EntityManager entityManager = entityManagerProvider.get();
+    @SuppressWarnings("rawtypes")
+    TypedQuery<Map> q = buildSecureQuery(clazz, filters, entityManager, sorts, false, Map.class, "read", false, null, fields);
+    q.setMaxResults(rows);
+    q.setFirstResult(start);
+    List<Map<String, Object>> resultList = new ArrayList<>();
+    for (Map<?, ?> row : q.getResultList()) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> fieldValues = (Map<String, Object>) row;
+      resultList.add(fieldValues);
+    }
+    return resultList;
+  }
+
   @Override
   public Long count(Class<? extends Persisted> clazz, List<Filter> filters) throws AuthzException {
     return count(clazz, filters, false);
@@ -349,13 +748,24 @@ public class ObjectServiceImpl implements ObjectService {
   @Override
   public Long count(Class<? extends Persisted> clazz, List<Filter> filters, boolean privileged) throws AuthzException {
     EntityManager entityManager = entityManagerProvider.get();
-    TypedQuery<Long> q;
-    if (privileged) {
-      q = buildQuery(clazz, filters, entityManager, null, true, Long.class);
-    } else {
-      q = buildSecureQuery(clazz, filters, entityManager, null, true, Long.class, "read");
+    Object[] values = filterValues(filters);
+    // the count depends on whose permissions filter it as well as on the query
+    PermittedIds permitted = privileged ? PermittedIds.ALL : permissionService.checkPermsAndFilter(clazz, "read");
+    long owner = privileged ? -1 : topPrincipalId();
+    CountKey key = new CountKey(new QueryShape(clazz, filters, values, null, true, !privileged, 0, false, false, null),
+        Arrays.asList(values), owner, permitted);
+    Long count = counts.getIfPresent(key);
+    if (count == null) {
+      TypedQuery<Long> q;
+      if (privileged) {
+        q = buildQuery(clazz, filters, entityManager, null, true, Long.class, false, null);
+      } else {
+        q = buildSecureQuery(clazz, filters, entityManager, null, true, Long.class, permitted, false, null, null);
+      }
+      count = q.getSingleResult();
+      counts.put(key, count);
     }
-    return q.getSingleResult();
+    return count;
   }
 
 
@@ -367,6 +777,12 @@ public class ObjectServiceImpl implements ObjectService {
       throw new ObjectAlreadyHasIdException("It is not permitted to specify the ID of a new object. Use update() for existing objects");
     }
     EntityManager entityManager = entityManagerProvider.get();
+    persist(entityManager, persisted);
+    written(entityManager, persisted);
+    return persisted;
+  }
+
+  private void persist(EntityManager entityManager, Persisted persisted) {
     AppUser actor;
     actor = permissionService.getTopPrincipal();
     log.debug("{} created by {}", persisted.getClass().getName(), actor);
@@ -376,55 +792,31 @@ public class ObjectServiceImpl implements ObjectService {
     persisted.setModifiedBy(actor.asRef());
     persisted.setOwner(actor.asRef());
     entityManager.persist(persisted);
-    return persisted;
   }
 
 
   @Override
   @Transactional
   public Persisted update(Persisted persistMe) throws AuthzException {
-    String onlyUpdate = permissionService.checkPermsAndFilter(persistMe.getClass(), "update");
-    if (!StringUtils.isBlank(onlyUpdate) && !onlyUpdate.contains("*")) {
-      if (Stream.of(onlyUpdate.split(",")).noneMatch(persistMe.getId().toString()::equals)) {
-        throw new AuthzException();
-      }
-    }
-
-    log.debug("updating {}", persistMe);
     EntityManager entityManager = entityManagerProvider.get();
-    //TODO: guard against sub-object user edits creation
+    Persisted merged = merge(entityManager, persistMe);
+    written(entityManager, merged);
+    return merged;
+  }
 
-    // collections and fields that are ignored during JSON
-    AnnotationUtil.doToAnnotatedElement(persistMe, new AnnotatedElementAction() {
-      Persisted parent;
+  private Persisted merge(EntityManager entityManager, Persisted persistMe) throws AuthzException {
+    PermittedIds onlyUpdate = permissionService.checkPermsAndFilter(persistMe.getClass(), "update");
 
-      @Override
-      public void doTo(Field f, Annotation a) {
-        if (Collection.class.isAssignableFrom(f.getType()) &&
-            f.isAnnotationPresent(ManyToMany.class) ||
-            f.isAnnotationPresent(OneToMany.class)) {
-          if (parent == null) {
-            parent = get(persistMe.getClass(), persistMe.getId());
-          }
-          try {
-            f.setAccessible(true);
-            Collection fromJson = (Collection) f.get(persistMe);
-            Collection loaded = (Collection) f.get(parent);
-            // make sure we don't miss any updates, note that we are not handling deletes here.
-            for (Object j : fromJson) {
-              if (!loaded.contains(j)) {
-                //noinspection unchecked
-                loaded.add(j);
-              }
-            }
-            f.set(persistMe, loaded);
+    log.debug("updating {}", persistMe);
+    //TODO: guard against sub-object user edits creation
 
-          } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-          }
-        }
-      }
-    }, JsonIgnore.class);
+    // the row merge() would load anyway, found here so the collections sent can be compared to it, and so
+    // that access is decided by the stored owner rather than whatever owner the client sent
+    Persisted stored = entityManager.find(persistMe.getClass(), persistMe.getId());
+    if (stored != null) {
+      checkAccess(onlyUpdate, stored);
+      new CollectionMerger(entityManager).merge(persistMe, stored);
+    }
 
     Instant now = Instant.now();
     persistMe.setModified(now);
@@ -432,7 +824,61 @@ public class ObjectServiceImpl implements ObjectService {
 
     // new state introduced to the session here, hibernate will update DB if required
     return entityManager.merge(persistMe);
+  }
 
+  @Override
+  @Transactional
+  public List<Persisted> save(List<? extends Persisted> objects) throws AuthzException {
+    EntityManager entityManager = entityManagerProvider.get();
+    List<Persisted> saved = new ArrayList<>(objects.size());
+    int flushEvery = jdbcBatchSize(entityManager);
+    for (Persisted persisted : objects) {
+      if (persisted.getId() == null) {
+        permissionService.checkPermsAndFilter(persisted.getClass(), "create");
+        persist(entityManager, persisted);
+        saved.add(persisted);
+      } else {
+        saved.add(merge(entityManager, persisted));
+      }
+      if (saved.size() % flushEvery == 0) {
+        // hibernate orders and batches the statements for everything pending (hibernate.order_inserts etc.)
+        entityManager.flush();
+        entityManager.clear();
+      }
+    }
+    entityManager.flush(); // so that the saved objects have their final versions
+    written(entityManager, saved);
+    return saved;
+  }
+
+  /**
+   * @return hibernate.jdbc.batch_size as configured for the persistence unit, so that each flush fills whole
+   * batches, or {@link #FLUSH_EVERY} if batching is off
+   */
+  private static int jdbcBatchSize(EntityManager entityManager) {
+    Object size = entityManager.getEntityManagerFactory().getProperties().get(AvailableSettings.STATEMENT_BATCH_SIZE);
+    int batch = size == null ? 0 : Integer.parseInt(size.toString().trim());
+    return batch > 1 ? batch : FLUSH_EVERY;
+  }
+
+  private void written(EntityManager entityManager, Persisted written) {
+    written(entityManager, Collections.singletonList(written));
+  }
+
+  private void written(EntityManager entityManager, List<Persisted> written) {
+    Runnable notify = () -> {
+      for (Persisted persisted : written) {
+        permissionService.objectWritten(persisted);
+      }
+      forgetCounts(written);
+    };
+    notify.run();
+    persistenceUtil.afterCompletion(entityManager, notify);
+  }
+
+  private void forgetCounts(List<Persisted> written) {
+    Set<Class<?>> types = written.stream().map(Object::getClass).collect(Collectors.toSet());
+    counts.asMap().keySet().removeIf(key -> types.stream().anyMatch(key.shape.clazz::isAssignableFrom));
   }
 
   @Override
@@ -446,16 +892,25 @@ public class ObjectServiceImpl implements ObjectService {
       EntityManager entityManager,
       List<String> sorts,
       boolean count,
-      Class<R> retClazz) {
-
-    StringBuilder qlString = new StringBuilder((count ? "select count(*) " : "") + "from " + clazz.getName());
-    if (filters.size() > 0) {
-      qlString.append(" where 1=1 ");
-    }
-    addFilters(filters, qlString, clazz);
-    addSorts(sorts, qlString, clazz);
-    TypedQuery<R> q = entityManager.createQuery(qlString.toString(), retClazz);
-    applyParameterValues(filters, q);
+      Class<R> retClazz,
+      boolean keyed,
+      Keyset after) {
+
+    Object[] values = filterValues(filters);
+    QueryShape shape = new QueryShape(clazz, filters, values, sorts, count, false, 0, keyed, after != null, null);
+    QueryPlan plan = plan(shape, () -> {
+      StringBuilder qlString = new StringBuilder((count ? "select count(*) " : "") + "from " + clazz.getName());
+      if (filters.size() > 0 || after != null) {
+        qlString.append(" where 1=1 ");
+      }
+      addFilters(filters, values, qlString, clazz);
+      addSeek(after, sorts, qlString, clazz);
+      addSorts(sorts, qlString, clazz, keyed);
+      return qlString.toString();
+    });
+    TypedQuery<R> q = entityManager.createQuery(plan.hql, retClazz);
+    applyParameterValues(plan, filters, values, q);
+    applyKeyset(after, sorts, q);
     return q;
   }
 
@@ -467,87 +922,235 @@ public class ObjectServiceImpl implements ObjectService {
       List<String> sorts,
       boolean count,
       Class<R> retClazz,
-      String action) throws AuthzException {
-
-    String specificPermittedIds = permissionService.checkPermsAndFilter(clazz, action);
+      String action,
+      boolean keyed,
+      Keyset after,
+      List<String> fields) throws AuthzException {
+    PermittedIds specificPermittedIds = permissionService.checkPermsAndFilter(clazz, action);
+    return buildSecureQuery(clazz, filters, entityManager, sorts, count, retClazz, specificPermittedIds, keyed, after, fields);
+  }
 
-    StringBuilder qlString = new StringBuilder((count ? "select count(*) " : "") + "from " + clazz.getName());
+  private <T extends Persisted, R> TypedQuery<R> buildSecureQuery(
+      Class<T> clazz,
+      List<Filter> filters,
+      EntityManager entityManager,
+      List<String> sorts,
+      boolean count,
+      Class<R> retClazz,
+      PermittedIds specificPermittedIds,
+      boolean keyed,
+      Keyset after,
+      List<String> fields) {
+
+    Object[] values = filterValues(filters);
+    int idChunks = specificPermittedIds.isAll() ? -1 : permittedIdChunks(specificPermittedIds);
+    QueryShape shape = new QueryShape(clazz, filters, values, sorts, count, true, idChunks, keyed, after != null, fields);
+    QueryPlan plan = plan(shape, () -> {
+      StringBuilder qlString = new StringBuilder(select(count, fields, clazz) + "from " + clazz.getName());
+
+      universalWhere(clazz, qlString, specificPermittedIds);
+      addFilters(filters, values, qlString, clazz);
+      addSeek(after, sorts, qlString, clazz);
+      addSorts(sorts, qlString, clazz, keyed);
+      return qlString.toString();
+    });
+    TypedQuery<R> q = entityManager.createQuery(plan.hql, retClazz);
+    applyParameterValues(plan, filters, values, q);
+    applyPermittedIds(specificPermittedIds, q);
+    applyKeyset(after, sorts, q);
+    q.setParameter(OWNER_ID_PARAM, topPrincipalId());
+    return q;
+  }
 
-    universalWhere(clazz, qlString, specificPermittedIds);
-    addFilters(filters, qlString, clazz);
-    addSorts(sorts, qlString, clazz);
-    TypedQuery<R> q = entityManager.createQuery(qlString.toString(), retClazz);
-    applyParameterValues(filters, q);
+  private long topPrincipalId() {
     long id = -1;
     AppUser principal1 = permissionService.getTopPrincipal();
     if (principal1 != null) {
       id = principal1.getId();
     }
-    q.setParameter(OWNER_ID_PARAM, id);
-    return q;
+    return id;
   }
 
-  private <T extends Persisted> void universalWhere(Class<T> clazz, StringBuilder qlString, String specificPermittedIds) {
+  /**
+   * Find the plan for a query of this shape, building (and validating) the HQL only if we haven't seen
+   * the shape before. Shapes that fail validation throw and are never cached.
+   */
+  private QueryPlan plan(QueryShape shape, Supplier<String> hql) {
+    QueryPlan plan = queryPlans.getIfPresent(shape);
+    if (plan == null) {
+      plan = new QueryPlan(hql.get(), shape.boundFilters());
+      queryPlans.put(shape, plan);
+    }
+    return plan;
+  }
 
-    if (specificPermittedIds.contains("*")) {
-      qlString.append(" where (:" + OWNER_ID_PARAM + " = :" + OWNER_ID_PARAM + ") "); // still need to have this param
-      return;
+  private Object[] filterValues(List<Filter> filters) {
+    if (filters == null) {
+      return new Object[0];
     }
-    String idInClause = "";
-    if (StringUtils.isNotBlank(specificPermittedIds)) {
-      List<Long> allowedIds = new ArrayList<>();
+    Object[] values = new Object[filters.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = filters.get(i).getValue(this);
+    }
+    return values;
+  }
 
-      String[] idStrs = specificPermittedIds.split(",");
+  private static int permittedIdChunks(PermittedIds permittedIds) {
+    return (permittedIds.size() + PERMITTED_ID_CHUNK - 1) / PERMITTED_ID_CHUNK;
+  }
 
-      for (String id : idStrs) {
-        allowedIds.add(Long.parseLong(id)); // parse them to ensure we can't be injected even if someone fools us!
-      }
+  private <T extends Persisted> void universalWhere(Class<T> clazz, StringBuilder qlString, PermittedIds specificPermittedIds) {
 
-      if (allowedIds.size() > 0) {
-        // injection safe... came from our DB permissions and checked to be numeric above (just in case REST got fooled)
-        idInClause = " OR ( id in (" + String.join(",", idStrs) + " ) )";
-      }
+    if (specificPermittedIds.isAll()) {
+      qlString.append(" where (:" + OWNER_ID_PARAM + " = :" + OWNER_ID_PARAM + ") "); // still need to have this param
+      return;
     }
     qlString
         .append(" where (")
-        .append(" owner is null OR owner.id = :" + OWNER_ID_PARAM + " ")
-        .append(idInClause) // e.g. " OR (id in (1,2,3)"
-        .append(" )");
-  }
-
-
-  private void applyParameterValues(List<Filter> filters, TypedQuery q) {
-    int count = 0;
-    Set<Parameter<?>> parameters = q.getParameters();
-    for (Filter filter : filters) {
-      Object value = filter.getValue(this);
-      String operator = filter.getOperator();
-      int tmp = count;
-      if (value != null && parameters.stream().anyMatch((parameter) -> ("f" + tmp).equals(parameter.getName()))) {
-        if (operator.contains("in")) { // onl supports ids
-          value = Stream.of(((String) value).split(",")).map(Long::parseLong).collect(Collectors.toList());
-        }
+        .append(" owner is null OR owner.id = :" + OWNER_ID_PARAM + " ");
+    // The ids are bound as parameters so that the query text depends only on how many chunks there are,
+    // and hibernate pads each chunk's parameter list to a power of two (hibernate.query.in_clause_parameter_padding)
+    // so that the database sees few distinct statements however many ids are granted.
+    int chunks = permittedIdChunks(specificPermittedIds);
+    for (int i = 0; i < chunks; i++) {
+      qlString.append(" OR id in (:" + PERMITTED_IDS_PARAM + i + ")");
+    }
+    qlString.append(" )");
+  }
 
-        q.setParameter("f" + count, value);
-        count++;
+  private void applyPermittedIds(PermittedIds permittedIds, TypedQuery<?> q) {
+    if (permittedIds.isAll() || permittedIds.isEmpty()) {
+      return;
+    }
+    List<Long> ids = permittedIds.toList();
+    for (int i = 0, chunk = 0; i < ids.size(); i += PERMITTED_ID_CHUNK, chunk++) {
+      q.setParameter(PERMITTED_IDS_PARAM + chunk, ids.subList(i, Math.min(ids.size(), i + PERMITTED_ID_CHUNK)));
+    }
+  }
+
+
+  private void applyParameterValues(QueryPlan plan, List<Filter> filters, Object[] values, TypedQuery q) {
+    for (int param = 0; param < plan.boundFilters.length; param++) {
+      int i = plan.boundFilters[param];
+      Object value = values[i];
+      if (filters.get(i).getOperator().contains("in")) { // onl supports ids
+        value = Stream.of(((String) value).split(",")).map(Long::parseLong).collect(Collectors.toList());
       }
+      q.setParameter("f" + param, value);
     }
   }
 
-  private void addSorts(List<String> sorts, StringBuilder qlString, Class clazz) {
+  private void addSorts(List<String> sorts, StringBuilder qlString, Class clazz, boolean keyed) {
+    List<String> orderBy = new ArrayList<>();
     if (sorts != null && sorts.size() > 0) {
+      checkSorts(sorts, clazz);
+      orderBy.addAll(sorts);
+    }
+    if (keyed && !Keyset.sortFields(sorts).contains("id")) {
+      orderBy.add("id asc"); // every object needs a distinct position
+    }
+    if (orderBy.size() > 0) {
+      qlString.append(" order by ").append(String.join(", ", orderBy));
+    }
+  }
+
+  /**
+   * Restrict the query to objects after the keyset. For sorts a, b this is
+   * <pre>a > :k0 OR (a = :k0 AND b > :k1) OR (a = :k0 AND b = :k1 AND id > :k_id)</pre>
+   * with &lt; in place of &gt; for descending sorts, which is the row value comparison
+   * (a, b, id) > (:k0, :k1, :k_id) spelled out in a form that HQL accepts and that also
+   * allows the sort directions to differ.
+   */
+  private void addSeek(Keyset after, List<String> sorts, StringBuilder qlString, Class clazz) {
+    if (after == null) {
+      return;
+    }
+    List<String> fields = new ArrayList<>();
+    List<String> comparisons = new ArrayList<>();
+    if (sorts != null) {
       checkSorts(sorts, clazz);
       for (String sort : sorts) {
-        qlString.append(" order by ").append(sort);
+        String[] parts = sort.trim().split("\\s+");
+        String direction = parts.length > 1 ? parts[1] : "asc";
+        if (!"asc".equals(direction) && !"desc".equals(direction)) {
+          throw new IllegalArgumentException("Invalid sort direction:" + sort);
+        }
+        fields.add(parts[0]);
+        comparisons.add("asc".equals(direction) ? " > " : " < ");
+      }
+    }
+    List<String> params = new ArrayList<>();
+    for (int i = 0; i < fields.size(); i++) {
+      params.add(KEY_PARAM + i);
+    }
+    if (!fields.contains("id")) {
+      fields.add("id");
+      comparisons.add(" > ");
+      params.add(KEY_ID_PARAM);
+    }
+    List<String> alternatives = new ArrayList<>();
+    for (int i = 0; i < fields.size(); i++) {
+      StringBuilder alternative = new StringBuilder("(");
+      for (int j = 0; j < i; j++) {
+        alternative.append(fields.get(j)).append(" = :").append(params.get(j)).append(" AND ");
+      }
+      alternative.append(fields.get(i)).append(comparisons.get(i)).append(":").append(params.get(i)).append(")");
+      alternatives.add(alternative.toString());
+    }
+    qlString.append(" AND (").append(String.join(" OR ", alternatives)).append(")");
+  }
+
+  /**
+   * A row whose sort value is null never satisfies the seek (null &gt; :k is unknown, not true), and
+   * databases disagree on where nulls sort, so such rows would silently drop out of a list paged by
+   * cursor. Only sorts on columns that can't hold null may be paged that way, anything else must be paged
+   * by offset. The same goes for types a cursor can't carry (see {@link Keyset#canPageBy}), which are
+   * refused here rather than when the cursor handed out with the first page comes back.
+   */
+  private void checkKeysetSorts(EntityManager entityManager, Class<?> clazz, List<String> sorts) {
+    if (sorts == null || sorts.isEmpty()) {
+      return;
+    }
+    checkSorts(sorts, clazz);
+    Set<String> required = new LinkedHashSet<>();
+    Set<String> unsupported = new LinkedHashSet<>();
+    for (SingularAttribute<?, ?> attribute : entityManager.getMetamodel().entity(clazz).getSingularAttributes()) {
+      if (!attribute.isOptional()) {
+        required.add(attribute.getName());
+      }
+      if (!Keyset.canPageBy(attribute.getJavaType())) {
+        unsupported.add(attribute.getName());
       }
     }
+    List<String> fields = Keyset.sortFields(sorts);
+    List<String> nullable = new ArrayList<>(fields);
+    nullable.removeAll(required);
+    if (nullable.size() > 0) {
+      throw new IllegalArgumentException("Can't page by cursor when sorting on fields that may be null:" + nullable);
+    }
+    unsupported.retainAll(fields);
+    if (unsupported.size() > 0) {
+      throw new IllegalArgumentException("Can't page by cursor when sorting on fields of unsupported types:" + unsupported);
+    }
+  }
+
+  private void applyKeyset(Keyset after, List<String> sorts, TypedQuery<?> q) {
+    if (after == null) {
+      return;
+    }
+    List<Object> values = after.getValues();
+    for (int i = 0; i < values.size(); i++) {
+      q.setParameter(KEY_PARAM + i, values.get(i));
+    }
+    if (!Keyset.sortFields(sorts).contains("id")) {
+      q.setParameter(KEY_ID_PARAM, after.getId());
+    }
   }
 
-  private void addFilters(List<Filter> filters, StringBuilder qlString, Class clazz) {
+  private void addFilters(List<Filter> filters, Object[] values, StringBuilder qlString, Class clazz) {
     if (filters != null && filters.size() > 0) {
-      checkFilters(filters, clazz);
       qlString.append(" AND ");
-      addFiltersRaw(filters, qlString, clazz);
+      addFiltersRaw(filters, values, qlString, clazz);
     }
   }
 
@@ -568,6 +1171,57 @@ public class ObjectServiceImpl implements ObjectService {
     }
   }
 
+  /**
+   * @return the select clause: none for whole objects, a count, or a map holding only the requested
+   * fields (and always the id).
+   */
+  private String select(boolean count, List<String> fields, Class clazz) {
+    if (count) {
+      return "select count(*) ";
+    }
+    if (fields == null) {
+      return "";
+    }
+    checkFields(fields, clazz);
+    List<String> columns = new ArrayList<>();
+    columns.add("id as id");
+    for (String field : fields) {
+      if (!"id".equals(field)) {
+        columns.add(field + " as " + field);
+      }
+    }
+    return "select new map(" + String.join(", ", columns) + ") ";
+  }
+
+  /**
+   * Fields may only be projected if they are columns of the entity (not associations, which would be loaded
+   * in full, or collections, which can't be selected) and are not hidden from json.
+   */
+  private void checkFields(List<String> fields, Class clazz) {
+    List<String> invalidFields = new ArrayList<>(fields);
+    new FieldUtil().doForEachAnnotatedField(clazz, null, (f, o) -> {
+      if (!Modifier.isStatic(f.getModifiers()) && isColumn(f)) {
+        invalidFields.removeIf((field) -> f.getName().equals(field));
+      }
+    }, null);
+    if (invalidFields.size() > 0) {
+      throw new IllegalArgumentException("The following fields are not allowed:" + invalidFields);
+    }
+  }
+
+  private static boolean isColumn(Field f) {
+    return !Collection.class.isAssignableFrom(f.getType()) &&
+        !Map.class.isAssignableFrom(f.getType()) &&
+        !f.isAnnotationPresent(Transient.class) &&
+        !f.isAnnotationPresent(JsonIgnore.class) &&
+        !f.isAnnotationPresent(ManyToOne.class) &&
+        !f.isAnnotationPresent(OneToOne.class) &&
+        !f.isAnnotationPresent(OneToMany.class) &&
+        !f.isAnnotationPresent(ManyToMany.class) &&
+        !f.isAnnotationPresent(ElementCollection.class) &&
+        !f.isAnnotationPresent(Embedded.class);
+  }
+
   private void checkSorts(List<String> sorts, Class clazz) {
     List<String> invalidSorts = sorts.stream().map(s -> s.split("\\s+")[0]).collect(Collectors.toList());
     new FieldUtil().doForEachAnnotatedField(clazz, null, (f, o) ->
@@ -577,12 +1231,13 @@ public class ObjectServiceImpl implements ObjectService {
     }
   }
 
-  private void addFiltersRaw(List<Filter> filters, StringBuilder qlString, Class clazz) {
+  private void addFiltersRaw(List<Filter> filters, Object[] values, StringBuilder qlString, Class clazz) {
     checkFilters(filters, clazz);
 
     int[] count = {0};
+    int[] index = {0};
     List<String> clauses = filters.stream().map(f -> {
-      if (f.getValue(this) == null) {
+      if (values[index[0]++] == null) {
         if ("=".equals(f.getOperator())) {
           return f.getField() + " is null";
         }
@@ -600,5 +1255,134 @@ public class ObjectServiceImpl implements ObjectService {
     qlString.append(" ").append(StringUtils.join(clauses, " AND "));
   }
 
+  /**
+   * Everything that determines the text of a query: the entity, the field and operator of each filter (and
+   * whether its value is null, which becomes "is null"), the sorts, list or count, secured or privileged,
+   * how many chunks of permitted ids there are, whether we are ordering by id and seeking past a keyset, and
+   * which fields (if not whole objects) are selected.
+   * Filter and keyset values are always bound as parameters.
+   */
+  private static final class QueryShape {
+    private final Class<?> clazz;
+    private final List<Object> filters = new ArrayList<>();
+    private final List<String> sorts;
+    private final boolean count;
+    private final boolean secure;
+    private final int idChunks;
+    private final boolean keyed;
+    private final boolean seek;
+    private final List<String> fields;
+    private final int[] boundFilters;
+    private final int hash;
+
+    private QueryShape(Class<?> clazz, List<Filter> filters, Object[] values, List<String> sorts,
+                       boolean count, boolean secure, int idChunks, boolean keyed, boolean seek,
+                       List<String> fields) {
+      this.clazz = clazz;
+      int bound = 0;
+      int[] boundFilters = new int[values.length];
+      for (int i = 0; i < values.length; i++) {
+        Filter f = filters.get(i);
+        this.filters.add(f.getField());
+        this.filters.add(f.getOperator());
+        this.filters.add(values[i] == null);
+        if (values[i] != null) {
+          boundFilters[bound++] = i;
+        }
+      }
+      this.boundFilters = Arrays.copyOf(boundFilters, bound);
+      this.sorts = sorts == null ? Collections.emptyList() : new ArrayList<>(sorts);
+      this.count = count;
+      this.secure = secure;
+      this.idChunks = idChunks;
+      this.keyed = keyed;
+      this.seek = seek;
+      this.fields = fields == null ? null : new ArrayList<>(fields);
+      this.hash = Objects.hash(clazz, this.filters, this.sorts, count, secure, idChunks, keyed, seek, this.fields);
+    }
+
+    /**
+     * @return the indexes of the filters that bind parameters f0, f1, ... in that order.
+     */
+    private int[] boundFilters() {
+      return boundFilters;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof QueryShape)) {
+        return false;
+      }
+      QueryShape that = (QueryShape) o;
+      return count == that.count &&
+          secure == that.secure &&
+          idChunks == that.idChunks &&
+          keyed == that.keyed &&
+          seek == that.seek &&
+          Objects.equals(fields, that.fields) &&
+          clazz == that.clazz &&
+          filters.equals(that.filters) &&
+          sorts.equals(that.sorts);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class QueryPlan {
+    private final String hql;
+    private final int[] boundFilters;
+
+    private QueryPlan(String hql, int[] boundFilters) {
+      this.hql = hql;
+      this.boundFilters = boundFilters;
+    }
+  }
+
+
+  /**
+   * Identifies a count: the shape of the query, the filter values and the permission scope of the user
+   * (their id, which matches owned objects, and the ids they have been granted individually).
+   */
+  private static final class CountKey {
+    private final QueryShape shape;
+    private final List<Object> values;
+    private final long owner;
+    private final PermittedIds permitted;
+    private final int hash;
+
+    private CountKey(QueryShape shape, List<Object> values, long owner, PermittedIds permitted) {
+      this.shape = shape;
+      this.values = values;
+      this.owner = owner;
+      this.permitted = permitted;
+      this.hash = Objects.hash(shape, values, owner, permitted);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof CountKey)) {
+        return false;
+      }
+      CountKey that = (CountKey) o;
+      return owner == that.owner &&
+          shape.equals(that.shape) &&
+          values.equals(that.values) &&
+          permitted.equals(that.permitted);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
 
 }
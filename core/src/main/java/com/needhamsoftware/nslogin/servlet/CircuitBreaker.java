@@ -0,0 +1,76 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+/**
+ * A minimal circuit breaker. After a run of consecutive failures calls are refused outright for a cool
+ * down period, after which a single trial call is allowed through. If the trial succeeds the breaker
+ * closes again, otherwise it re-opens for another cool down period. This keeps request threads from
+ * queueing up behind a remote service that is down or hopelessly slow.
+ */
+class CircuitBreaker {
+
+  enum State {CLOSED, OPEN, HALF_OPEN}
+
+  private final int failureThreshold;
+  private final long openMillis;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAt;
+
+  CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * @return true if the caller may make the call, in which case it must report the outcome via
+   * {@link #recordSuccess()} or {@link #recordFailure()}.
+   */
+  synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.currentTimeMillis() - openedAt >= openMillis) {
+          state = State.HALF_OPEN; // this caller gets to try
+          return true;
+        }
+        return false;
+      default:
+        return false; // a trial call is already in progress
+    }
+  }
+
+  synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+    state = State.CLOSED;
+  }
+
+  synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import com.google.common.io.CountingOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Compresses the body of a response with the best coding the client accepts. The first {@code threshold}
+ * bytes are held in a buffer of that size; a body that fits is sent as is (compressing a few hundred bytes
+ * costs more than it saves), anything longer is compressed as it is written. Call {@link #finish()} once
+ * the response is complete.
+ *
+ * <p>Bodies that already have a Content-Encoding, or whose content type isn't text or json, are never
+ * compressed. Nor are bodies written with non-blocking IO: once a {@link WriteListener} is set, anything
+ * buffered is sent and the rest passes straight through to the container's stream.</p>
+ */
+public class CompressingResponse extends HttpServletResponseWrapper {
+
+  // in order of preference
+  private static final List<ContentCodec> CODECS = new CopyOnWriteArrayList<>(
+      new ContentCodec[]{new GzipCodec(), new DeflateCodec()});
+  private static final CompressionStats STATS = new CompressionStats();
+
+  private final ContentCodec codec;
+  private final int threshold;
+  private BufferingOutputStream stream;
+  private PrintWriter writer;
+  private long contentLength = -1;
+
+  public CompressingResponse(HttpServletRequest req, HttpServletResponse resp, int threshold) {
+    super(resp);
+    this.codec = negotiate(req.getHeader("Accept-Encoding"));
+    this.threshold = threshold;
+  }
+
+  /**
+   * Add a coding, preferred over those already known when the client accepts both.
+   */
+  public static void registerCodec(ContentCodec codec) {
+    CODECS.add(0, codec);
+  }
+
+  public static CompressionMXBean stats() {
+    return STATS;
+  }
+
+  /**
+   * @return the first of our codings that the header accepts (q > 0), or null
+   */
+  static ContentCodec negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    String[] accepted = acceptEncoding.toLowerCase(Locale.ROOT).split(",");
+    for (ContentCodec codec : CODECS) {
+      for (String coding : accepted) {
+        String[] parts = coding.split(";");
+        String name = parts[0].trim();
+        if (!name.equals(codec.getEncoding()) && !name.equals("*")) {
+          continue;
+        }
+        boolean refused = false;
+        for (int i = 1; i < parts.length; i++) {
+          String param = parts[i].trim();
+          if (param.startsWith("q=")) {
+            try {
+              refused = Double.parseDouble(param.substring(2)) <= 0;
+            } catch (NumberFormatException e) {
+              refused = true;
+            }
+          }
+        }
+        if (!refused) {
+          return codec;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if (writer != null) {
+      throw new IllegalStateException("getWriter() has already been called");
+    }
+    return stream();
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (writer == null) {
+      if (stream != null) {
+        throw new IllegalStateException("getOutputStream() has already been called");
+      }
+      writer = new PrintWriter(new OutputStreamWriter(stream(), getCharacterEncoding()));
+    }
+    return writer;
+  }
+
+  private BufferingOutputStream stream() {
+    if (stream == null) {
+      stream = new BufferingOutputStream();
+    }
+    return stream;
+  }
+
+  @Override
+  public void setContentLength(int len) {
+    setContentLengthLong(len);
+  }
+
+  @Override
+  public void setContentLengthLong(long len) {
+    // only true of the body if we end up not compressing it
+    contentLength = len;
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    if (writer != null) {
+      writer.flush();
+    }
+    if (stream != null && stream.target != null) {
+      stream.flush();
+      super.flushBuffer();
+    }
+  }
+
+  @Override
+  public void resetBuffer() {
+    if (stream != null && stream.target == null) {
+      stream.count = 0;
+    }
+    super.resetBuffer();
+  }
+
+  @Override
+  public void reset() {
+    resetBuffer();
+    contentLength = -1;
+    super.reset();
+  }
+
+  /**
+   * Send whatever is still buffered and complete the compressed stream if there is one.
+   */
+  public void finish() throws IOException {
+    if (writer != null) {
+      writer.flush();
+    }
+    if (stream != null) {
+      stream.finish();
+    }
+  }
+
+  private boolean compressible() {
+    if (codec == null || containsHeader("Content-Encoding")) {
+      return false;
+    }
+    String type = getContentType();
+    if (type == null) {
+      return false;
+    }
+    type = type.toLowerCase(Locale.ROOT);
+    return type.startsWith("text/") || type.contains("json") || type.contains("javascript") || type.contains("xml");
+  }
+
+  private class BufferingOutputStream extends ServletOutputStream {
+    private final byte[] buffer = new byte[threshold];
+    private int count;
+    private OutputStream target; // null until we know whether to compress
+    private CountingOutputStream compressedBytes;
+    private long bytesIn;
+    private long nanos;
+    private boolean finished;
+
+    @Override
+    public void write(int b) throws IOException {
+      if (target == null && count < buffer.length) {
+        buffer[count++] = (byte) b;
+        return;
+      }
+      if (target == null) {
+        decide();
+      }
+      long start = System.nanoTime();
+      target.write(b);
+      bytesIn++;
+      nanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (target == null && count + len <= buffer.length) {
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+        return;
+      }
+      if (target == null) {
+        decide();
+      }
+      long start = System.nanoTime();
+      target.write(b, off, len);
+      bytesIn += len;
+      nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * The body is bigger than the threshold, start sending it.
+     */
+    private void decide() throws IOException {
+      decide(compressible());
+    }
+
+    private void decide(boolean compress) throws IOException {
+      ServletOutputStream out = CompressingResponse.super.getOutputStream();
+      if (compress) {
+        setHeader("Content-Encoding", codec.getEncoding());
+        addHeader("Vary", "Accept-Encoding");
+        compressedBytes = new CountingOutputStream(out);
+        long start = System.nanoTime();
+        target = codec.open(compressedBytes);
+        nanos += System.nanoTime() - start;
+      } else {
+        if (contentLength >= 0) {
+          CompressingResponse.super.setContentLengthLong(contentLength);
+        }
+        target = out;
+      }
+      int buffered = count;
+      count = 0;
+      write(buffer, 0, buffered);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (target != null) {
+        target.flush();
+      }
+    }
+
+    private void finish() throws IOException {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      if (target == null) {
+        if (count > 0) {
+          CompressingResponse.super.setContentLength(count);
+          CompressingResponse.super.getOutputStream().write(buffer, 0, count);
+          STATS.uncompressed();
+        }
+        return;
+      }
+      if (compressedBytes == null) {
+        STATS.uncompressed();
+        return;
+      }
+      long start = System.nanoTime();
+      target.close();
+      nanos += System.nanoTime() - start;
+      STATS.compressed(bytesIn, compressedBytes.getCount(), nanos);
+    }
+
+    @Override
+    public boolean isReady() {
+      return target == null || compressedBytes != null || ((ServletOutputStream) target).isReady();
+    }
+
+    /**
+     * A compressor can't tell when the container would block, so non-blocking writes are not compressed.
+     */
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      if (compressedBytes != null) {
+        throw new IllegalStateException("A compressed body has already been started, it must be written synchronously");
+      }
+      if (target == null) {
+        try {
+          decide(false);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      ((ServletOutputStream) target).setWriteListener(writeListener);
+    }
+  }
+}
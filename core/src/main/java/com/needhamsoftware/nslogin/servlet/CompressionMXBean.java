@@ -0,0 +1,44 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+/**
+ * Statistics for {@link CompressingResponse}: what compression saved and what it cost.
+ */
+public interface CompressionMXBean {
+
+  long getCompressedResponses();
+
+  /**
+   * @return responses sent as is because they were under the size threshold, the client accepted no
+   * coding we have, or the content type doesn't compress.
+   */
+  long getUncompressedResponses();
+
+  long getBytesBeforeCompression();
+
+  long getBytesAfterCompression();
+
+  long getBytesSaved();
+
+  /**
+   * @return time spent in the compressors (wall clock on the request threads, which is essentially CPU)
+   */
+  double getCompressionMillis();
+
+  double getCompressionRatio();
+}
@@ -0,0 +1,75 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import java.util.concurrent.atomic.LongAdder;
+
+class CompressionStats implements CompressionMXBean {
+
+  private final LongAdder compressed = new LongAdder();
+  private final LongAdder uncompressed = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder nanos = new LongAdder();
+
+  void compressed(long in, long out, long elapsedNanos) {
+    compressed.increment();
+    bytesIn.add(in);
+    bytesOut.add(out);
+    nanos.add(elapsedNanos);
+  }
+
+  void uncompressed() {
+    uncompressed.increment();
+  }
+
+  @Override
+  public long getCompressedResponses() {
+    return compressed.sum();
+  }
+
+  @Override
+  public long getUncompressedResponses() {
+    return uncompressed.sum();
+  }
+
+  @Override
+  public long getBytesBeforeCompression() {
+    return bytesIn.sum();
+  }
+
+  @Override
+  public long getBytesAfterCompression() {
+    return bytesOut.sum();
+  }
+
+  @Override
+  public long getBytesSaved() {
+    return bytesIn.sum() - bytesOut.sum();
+  }
+
+  @Override
+  public double getCompressionMillis() {
+    return nanos.sum() / 1_000_000.0;
+  }
+
+  @Override
+  public double getCompressionRatio() {
+    long in = bytesIn.sum();
+    return in == 0 ? 0 : bytesOut.sum() / (double) in;
+  }
+}
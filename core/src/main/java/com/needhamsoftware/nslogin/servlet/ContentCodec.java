@@ -0,0 +1,43 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A content coding (RFC 7231 section 3.1.2.1) that {@link CompressingResponse} can apply to a response body.
+ * Implementations for other codings (br for example) may be added with
+ * {@link CompressingResponse#registerCodec(ContentCodec)}.
+ */
+public interface ContentCodec {
+
+  /**
+   * @return the name of the coding as used in Accept-Encoding and Content-Encoding
+   */
+  String getEncoding();
+
+  /**
+   * Start encoding a body.
+   *
+   * @param out where the encoded bytes go
+   * @return a stream that encodes what is written to it, and that completes the encoding (and closes
+   * {@code out}) when closed. Called on the thread that will write the body, so per-thread state may be
+   * reused.
+   */
+  OutputStream open(OutputStream out) throws IOException;
+}
@@ -0,0 +1,45 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The "deflate" coding, which is the zlib format. Each thread keeps its Deflater (and the native memory
+ * behind it) for reuse rather than allocating and ending one per response.
+ */
+class DeflateCodec implements ContentCodec {
+
+  private static final ThreadLocal<Deflater> DEFLATERS =
+      ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, false));
+
+  @Override
+  public String getEncoding() {
+    return "deflate";
+  }
+
+  @Override
+  public OutputStream open(OutputStream out) throws IOException {
+    Deflater deflater = DEFLATERS.get();
+    deflater.reset();
+    // a deflater we supply is not ended by close()
+    return new DeflaterOutputStream(out, deflater, 8192);
+  }
+}
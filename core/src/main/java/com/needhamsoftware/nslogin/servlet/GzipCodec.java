@@ -0,0 +1,83 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The "gzip" coding. {@link java.util.zip.GZIPOutputStream} allocates (and ends) a Deflater for every
+ * stream, so this writes the gzip header and trailer itself around raw deflate output from a Deflater
+ * that each thread keeps for reuse.
+ */
+class GzipCodec implements ContentCodec {
+
+  private static final byte[] HEADER = {
+      0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff // no name, mtime or flags, unknown OS
+  };
+
+  private static final ThreadLocal<Deflater> DEFLATERS =
+      ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+  @Override
+  public String getEncoding() {
+    return "gzip";
+  }
+
+  @Override
+  public OutputStream open(OutputStream out) throws IOException {
+    Deflater deflater = DEFLATERS.get();
+    deflater.reset();
+    out.write(HEADER);
+    return new GzipStream(out, deflater);
+  }
+
+  private static final class GzipStream extends DeflaterOutputStream {
+    private final CRC32 crc = new CRC32();
+    private boolean trailerWritten;
+
+    private GzipStream(OutputStream out, Deflater deflater) {
+      super(out, deflater, 8192);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      super.write(b, off, len);
+      crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      super.finish();
+      if (!trailerWritten) {
+        trailerWritten = true;
+        writeIntLE((int) crc.getValue());
+        writeIntLE((int) def.getBytesRead());
+      }
+    }
+
+    private void writeIntLE(int i) throws IOException {
+      out.write(i & 0xff);
+      out.write((i >> 8) & 0xff);
+      out.write((i >> 16) & 0xff);
+      out.write((i >> 24) & 0xff);
+    }
+  }
+}
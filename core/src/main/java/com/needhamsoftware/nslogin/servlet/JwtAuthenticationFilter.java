@@ -16,18 +16,25 @@
 
 package com.needhamsoftware.nslogin.servlet;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.needhamsoftware.nslogin.AuthzException;
+import com.needhamsoftware.nslogin.keyring.Jwks;
+import com.needhamsoftware.nslogin.metrics.LatencyRecorder;
+import com.needhamsoftware.nslogin.metrics.MBeans;
 import io.jsonwebtoken.*;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.client.fluent.Content;
-import org.apache.http.client.fluent.Request;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.management.ObjectName;
 import javax.servlet.*;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -37,11 +44,18 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.security.Key;
-import java.security.KeyFactory;
-import java.security.spec.EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
+import java.security.KeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 
@@ -53,31 +67,150 @@ public class JwtAuthenticationFilter implements Filter, LoginConstants {
   private static final String TOKEN = "com.needhamsoftware.nslogin.jwt";
   private static final String CLAIMS = "com.needhamsoftware.nslogin.jwt.claims";
 
-  private URL keyFetchUrl; // the url to the login servlet with a parameter that requests the public key for the given id
+  private KeySource keySource; // fetches keys from the login service, via either keyFetchUrl or jwksUrl
   private boolean redirectToLogin;
-
-  private LoadingCache<String, byte[]> keyCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.HOURS).build(
-      new CacheLoader<>() {
+  private boolean stateless; // verify the token on every request and never create or consult a session
+
+  // Refreshes keys in the background so that requests keep using the key we have while we check with
+  // the login service that it is still current.
+  private final ExecutorService keyRefresher = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "jwt-key-refresh");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // Public keys ready for use. Decoding the key spec on every verification was pure waste. Concurrent
+  // requests for a key that is not yet loaded wait on a single fetch. Once a key has been in the cache for
+  // the refresh interval the next request for it triggers a background refresh and is served the key
+  // we already have. If the login service reports the key retired it is dropped at once. If the service
+  // can't be reached the old key is kept, for at most the lifetime of a key since it was last confirmed.
+  private LoadingCache<String, PublicKey> keyCache;
+
+  // Tokens whose signatures we have already checked, keyed by a digest of the token so that we don't
+  // hold on to the tokens themselves. A browser presents the same token with every request until its
+  // session is established (or on every request at all if the session is lost) so this saves repeating
+  // an RSA verification each time. Entries are also checked against the token and key expiration on read.
+  private Cache<String, VerifiedToken> verifiedTokens;
+  private final LatencyRecorder verifyLatency = new LatencyRecorder();
+  private ObjectName statsName;
+
+  // Immutable and thread safe once built, so we build it once.
+  private final JwtParser parser = Jwts.parserBuilder()
+      .setSigningKeyResolver(new SigningKeyResolverAdapter() {
         @Override
-        public byte[] load(String key) throws Exception {
-          URL u = new URL(keyFetchUrl + key); // expects the url ends with  kid= and that we get a valid url
-          Content content = Request.Get(u.toExternalForm())
-              .connectTimeout(100000)
-              .socketTimeout(100000)
-              .execute().returnContent();
-          return content.asBytes();
+        public Key resolveSigningKey(JwsHeader header, Claims claims) {
+          try {
+            return keyCache.get(header.getKeyId());
+          } catch (ExecutionException | UncheckedExecutionException e) {
+            // this should never fail unless the URL is bad (this is very very bad since it means nobody
+            // can log in) or someone has presented a token with a kid we never issued.
+            Throwable cause = e.getCause();
+            if (cause instanceof KeyException || cause instanceof HttpResponseException &&
+                ((HttpResponseException) cause).getStatusCode() < 500) {
+              log.debug("Token presented with unknown key {}", header.getKeyId());
+            } else {
+              log.fatal("Unable to obtain key {} from login service!!", header.getKeyId());
+            }
+            throw new IllegalArgumentException(e);
+          }
         }
+      })
+      // blow up if the token didn't come from us! This is verified when the
+      // decryption yields non-garbage, and claims with this value were therefore
+      // successfully encrypted by the private key associated with the public key
+      // retrieved from our login service by the loading cache above.
+      .requireIssuer(ISSUER)
+      .build();
+
+  /**
+   * Take the requested key from a key set. Any keys we didn't ask for are cached too, so the tokens of
+   * users who logged in via other login nodes won't each cost a round trip.
+   */
+  private PublicKey fromKeySet(String kid, Map<String, PublicKey> keys) throws KeyException {
+    PublicKey requested = null;
+    for (Map.Entry<String, PublicKey> entry : keys.entrySet()) {
+      if (entry.getKey().equals(kid)) {
+        requested = entry.getValue();
+      } else {
+        keyCache.put(entry.getKey(), entry.getValue());
       }
-  );
+    }
+    if (requested == null) {
+      throw new KeyException("Requested key:" + kid + " is unknown or has expired.");
+    }
+    return requested;
+  }
 
   @Override
   public void init(FilterConfig filterConfig) throws ServletException {
     try {
-      this.keyFetchUrl = new URL(filterConfig.getInitParameter("keyFetchUrl"));
+      String jwks = filterConfig.getInitParameter("jwksUrl");
+      String kidUrl = filterConfig.getInitParameter("keyFetchUrl");
+      URL jwksUrl = null;
+      URL keyFetchUrl = null;
+      if (StringUtils.isNotBlank(jwks)) {
+        jwksUrl = new URL(jwks);
+      } else {
+        keyFetchUrl = new URL(kidUrl);
+      }
+      // Fail fast: a login service that takes seconds to hand out a key is as good as down, and waiting
+      // on it only piles up request threads.
+      this.keySource = new KeySource(keyFetchUrl, jwksUrl,
+          intParam(filterConfig, "keyFetchConnectTimeoutMillis", 2000),
+          intParam(filterConfig, "keyFetchSocketTimeoutMillis", 5000),
+          new CircuitBreaker(intParam(filterConfig, "keyFetchFailureThreshold", 3),
+              TimeUnit.SECONDS.toMillis(intParam(filterConfig, "keyFetchRetrySeconds", 30))),
+          TimeUnit.SECONDS.toMillis(intParam(filterConfig, "unknownKeyRetrySeconds", 10)));
       this.redirectToLogin = Boolean.parseBoolean(filterConfig.getInitParameter("redirectToLogin"));
+      this.stateless = Boolean.parseBoolean(filterConfig.getInitParameter("stateless"));
     } catch (MalformedURLException e) {
       throw new ServletException(e);
     }
+    CacheLoader<String, PublicKey> loader = new CacheLoader<>() {
+      @Override
+      public PublicKey load(String kid) throws Exception {
+        // the kid may have been made up by anyone, see KeySource
+        return fromKeySet(kid, keySource.fetchUnknown(kid));
+      }
+
+      @Override
+      public ListenableFuture<PublicKey> reload(String kid, PublicKey oldValue) {
+        ListenableFutureTask<PublicKey> task = ListenableFutureTask.create(() -> {
+          try {
+            // a key we hold, so it may be fetched by kid without limit, but key sets are shared by all kids
+            return keySource.usesKeySet() ? fromKeySet(kid, keySource.recentKeySet()) : keySource.fetchKey(kid);
+          } catch (KeyException | HttpResponseException e) {
+            if (!(e instanceof HttpResponseException) || ((HttpResponseException) e).getStatusCode() < 500) {
+              // The login service says the key is gone. A failed refresh leaves the old value in place, so
+              // drop it once the cache has finished with this refresh (the refresher has just one thread).
+              log.info("Key {} has been retired by the login service", kid);
+              keyRefresher.execute(() -> keyCache.invalidate(kid));
+            }
+            throw e;
+          }
+        });
+        keyRefresher.execute(task);
+        return task;
+      }
+    };
+    keyCache = CacheBuilder.newBuilder()
+        .refreshAfterWrite(intParam(filterConfig, "keyRefreshSeconds", KEY_CHANGE_SECONDS / 3), TimeUnit.SECONDS)
+        .expireAfterWrite(KEY_EXPIRE_SECONDS, TimeUnit.SECONDS)
+        .recordStats()
+        .build(loader);
+    String cacheSize = filterConfig.getInitParameter("verifiedTokenCacheSize");
+    verifiedTokens = CacheBuilder.newBuilder()
+        .maximumSize(StringUtils.isBlank(cacheSize) ? 10000 : Long.parseLong(cacheSize.trim()))
+        .expireAfterWrite(KEY_EXPIRE_SECONDS, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+    statsName = MBeans.register("JwtVerifier", filterConfig.getServletContext().getContextPath(),
+        new JwtVerifierStats(keyCache, verifiedTokens, verifyLatency, keySource.getBreaker()));
+  }
+
+  private static int intParam(FilterConfig config, String name, int defaultValue) {
+    String value = config.getInitParameter(name);
+    return StringUtils.isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
   }
 
   @Override
@@ -123,6 +256,10 @@ public class JwtAuthenticationFilter implements Filter, LoginConstants {
           resp.setHeader("Expires", "0"); // Proxies.
         }  // ok to cache
 
+    if (stateless) {
+      filterStateless(req, resp, chain);
+      return;
+    }
 
     // are we logging out?
     String logout = req.getParameter("logout");
@@ -137,14 +274,7 @@ public class JwtAuthenticationFilter implements Filter, LoginConstants {
 
     // Use back to cookie if it exists
     if (token == null && !loggingOut) {
-      Cookie[] cookies = req.getCookies();
-      if (cookies != null) {
-        for (Cookie cookie : cookies) {
-          if (X_JWT_TOKEN.equals(cookie.getName())) {
-            token = cookie.getValue();
-          }
-        }
-      }
+      token = tokenFromCookie(req);
     }
 
     HttpSession session = req.getSession();
@@ -211,11 +341,7 @@ public class JwtAuthenticationFilter implements Filter, LoginConstants {
       Cookie jwt = new Cookie(X_JWT_TOKEN, "");
       jwt.setMaxAge(0); // cookie to expire before session
       resp.addCookie(jwt);
-      if (redirectToLogin) {
-        resp.sendRedirect("/login/?from=" + req.getRequestURL());
-      } else {
-        resp.sendError(401);
-      }
+      unauthorized(req, resp);
       return;
     }
 
@@ -265,6 +391,78 @@ public class JwtAuthenticationFilter implements Filter, LoginConstants {
     }
   }
 
+  /**
+   * Stateless variant of the filter for API clients. The token must accompany every request, and the
+   * verified claims are only held in request attributes. The verified token cache keeps the cost of
+   * checking the same token again and again down to a hash and a map lookup.
+   */
+  private void filterStateless(HttpServletRequest req, HttpServletResponse resp, FilterChain chain) throws IOException, ServletException {
+    String token = null;
+    if (req.getParameter("logout") == null) { // nothing to invalidate, just stop accepting the token
+      token = req.getParameter(X_JWT_TOKEN);
+      if (token == null) {
+        token = tokenFromHeaders(req);
+      }
+      if (token == null) {
+        token = tokenFromCookie(req);
+      }
+    }
+    if (token == null) {
+      Cookie jwt = new Cookie(X_JWT_TOKEN, "");
+      jwt.setMaxAge(0);
+      resp.addCookie(jwt);
+      unauthorized(req, resp);
+      return;
+    }
+    Jws<Claims> claimsJws;
+    try {
+      claimsJws = checkToken(token);
+    } catch (Exception e) {
+      // reveal nothing
+      log.error(e);
+      resp.setHeader(X_ERROR_MESSAGE, ADMINISTRATOR);
+      unauthorized(req, resp);
+      return;
+    }
+    Claims claims = claimsJws.getBody();
+    req.setAttribute(PRINCIPAL, claims.getSubject());
+    req.setAttribute(CLAIMS, claims);
+    try {
+      proceed(req, resp, chain, claims);
+    } catch (AuthzException e) {
+      log.fatal("User {} is authenticating successfully but un authorized to load themselves from the database", claims.getSubject());
+    }
+  }
+
+  private static String tokenFromHeaders(HttpServletRequest req) {
+    String authorization = req.getHeader("Authorization");
+    if (authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+      return authorization.substring(7).trim();
+    }
+    return req.getHeader(X_JWT_TOKEN);
+  }
+
+  private static String tokenFromCookie(HttpServletRequest req) {
+    String token = null;
+    Cookie[] cookies = req.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (X_JWT_TOKEN.equals(cookie.getName())) {
+          token = cookie.getValue();
+        }
+      }
+    }
+    return token;
+  }
+
+  private void unauthorized(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (redirectToLogin) {
+      resp.sendRedirect("/login/?from=" + req.getRequestURL());
+    } else {
+      resp.sendError(401);
+    }
+  }
+
   /**
    * This is the critical bit. Call this when we think we are ready to log in.
    */
@@ -286,6 +484,24 @@ public class JwtAuthenticationFilter implements Filter, LoginConstants {
     req.getSession().invalidate();
   }
 
+  /**
+   * The email of the authenticated user. Looks in the request first, where the stateless mode leaves it,
+   * and then in the session, without creating one.
+   *
+   * @param req the current request
+   * @return the email, or null if the request has not been authenticated
+   */
+  public static String principal(HttpServletRequest req) {
+    Object email = req.getAttribute(PRINCIPAL);
+    if (email == null) {
+      HttpSession session = req.getSession(false);
+      if (session != null) {
+        email = session.getAttribute(PRINCIPAL);
+      }
+    }
+    return (String) email;
+  }
+
   /**
    * Override this in sub classes that need to do additional configuration of Authorization infrastructure.
    * One example might involve setting the subject for shiro...
@@ -294,40 +510,45 @@ public class JwtAuthenticationFilter implements Filter, LoginConstants {
     chain.doFilter(request, response);
   }
 
-  private Jws<Claims> checkToken(String token) {
-    return Jwts.parser()
-        .setSigningKeyResolver(new SigningKeyResolverAdapter() {
-
-          @Override
-          public Key resolveSigningKey(JwsHeader header, Claims claims) {
-            try {
-              byte[] keyBytes = resolveSigningKeyBytes(header, claims);
-              KeyFactory keyFactory = KeyFactory.getInstance(LoginConstants.SIGNATURE_ALGORITHM.getFamilyName());
-              EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(keyBytes);
-              return keyFactory.generatePublic(publicKeySpec);
-            } catch (Exception e) {
-              throw new IllegalArgumentException(e);
-            }
-          }
+  private Jws<Claims> checkToken(String token) throws NoSuchAlgorithmException {
+    String digest = digest(token);
+    VerifiedToken verified = verifiedTokens.getIfPresent(digest);
+    if (verified != null) {
+      if (verified.isUsable()) {
+        return verified.jws;
+      }
+      verifiedTokens.invalidate(digest);
+    }
+    long start = System.nanoTime();
+    Jws<Claims> claimsJws = parser.parseClaimsJws(token);
+    verifyLatency.record(System.nanoTime() - start);
+    verifiedTokens.put(digest, new VerifiedToken(claimsJws));
+    return claimsJws;
+  }
 
-          @Override
-          public byte[] resolveSigningKeyBytes(JwsHeader header, Claims claims) {
-            try {
-              return keyCache.get(header.getKeyId());
-            } catch (ExecutionException e) {
-              // this should never fail unless the URL is bad this is very very bad
-              // since it means nobody can log in.
-              log.fatal("Invalid URL for login service!!");
-              return new byte[]{};
-            }
-          }
-        })
-        // blow up if the token didn't come from us! This is verified when the
-        // decryption yields non-garbage, and claims with this value were therefore
-        // successfully encrypted by the private key associated with the public key
-        // retrieved from our login service by the loading cache above.
-        .requireIssuer(ISSUER)
-        .parseClaimsJws(token);
+  private static String digest(String token) throws NoSuchAlgorithmException {
+    byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+    return Base64.getEncoder().encodeToString(hash);
+  }
+
+  /**
+   * A token that passed verification. It remains usable until the token expires (if it has an expiration)
+   * or until we no longer hold the key that signed it, whichever comes first.
+   */
+  private class VerifiedToken {
+    private final Jws<Claims> jws;
+    private final String kid;
+    private final Date expiration;
+
+    private VerifiedToken(Jws<Claims> jws) {
+      this.jws = jws;
+      this.kid = jws.getHeader().getKeyId();
+      this.expiration = jws.getBody().getExpiration();
+    }
+
+    private boolean isUsable() {
+      return (expiration == null || expiration.after(new Date())) && keyCache.getIfPresent(kid) != null;
+    }
   }
 
   private void errorToLogin(HttpServletResponse resp) throws IOException {
@@ -338,6 +559,7 @@ public class JwtAuthenticationFilter implements Filter, LoginConstants {
 
   @Override
   public void destroy() {
-
+    MBeans.unregister(statsName);
+    keyRefresher.shutdownNow();
   }
 }
@@ -0,0 +1,50 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+/**
+ * Statistics for token verification in {@link JwtAuthenticationFilter}. Signature verification
+ * latency only counts tokens that were not already in the verified token cache.
+ */
+public interface JwtVerifierMXBean {
+
+  long getKeyCacheSize();
+
+  long getKeyLoadFailures();
+
+  /**
+   * @return CLOSED while the login service is healthy, OPEN while key requests are being refused after
+   * repeated failures, HALF_OPEN while a trial request is in progress.
+   */
+  String getKeyServiceCircuitState();
+
+  long getVerifiedTokenCacheSize();
+
+  long getVerifiedTokenHits();
+
+  long getVerifiedTokenMisses();
+
+  double getVerifiedTokenHitRate();
+
+  long getSignatureVerifications();
+
+  double getSignatureVerifyP50Millis();
+
+  double getSignatureVerifyP90Millis();
+
+  double getSignatureVerifyP99Millis();
+}
@@ -0,0 +1,93 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import com.needhamsoftware.nslogin.metrics.LatencyRecorder;
+
+class JwtVerifierStats implements JwtVerifierMXBean {
+
+  private final Cache<?, ?> keyCache;
+  private final Cache<?, ?> verifiedTokens;
+  private final LatencyRecorder verifyLatency;
+  private final CircuitBreaker keyServiceBreaker;
+
+  JwtVerifierStats(Cache<?, ?> keyCache, Cache<?, ?> verifiedTokens, LatencyRecorder verifyLatency,
+                   CircuitBreaker keyServiceBreaker) {
+    this.keyCache = keyCache;
+    this.verifiedTokens = verifiedTokens;
+    this.verifyLatency = verifyLatency;
+    this.keyServiceBreaker = keyServiceBreaker;
+  }
+
+  @Override
+  public long getKeyCacheSize() {
+    return keyCache.size();
+  }
+
+  @Override
+  public long getKeyLoadFailures() {
+    return keyCache.stats().loadExceptionCount();
+  }
+
+  @Override
+  public String getKeyServiceCircuitState() {
+    return keyServiceBreaker.getState().name();
+  }
+
+  @Override
+  public long getVerifiedTokenCacheSize() {
+    return verifiedTokens.size();
+  }
+
+  @Override
+  public long getVerifiedTokenHits() {
+    return verifiedTokens.stats().hitCount();
+  }
+
+  @Override
+  public long getVerifiedTokenMisses() {
+    return verifiedTokens.stats().missCount();
+  }
+
+  @Override
+  public double getVerifiedTokenHitRate() {
+    CacheStats stats = verifiedTokens.stats();
+    return stats.hitRate();
+  }
+
+  @Override
+  public long getSignatureVerifications() {
+    return verifyLatency.getCount();
+  }
+
+  @Override
+  public double getSignatureVerifyP50Millis() {
+    return verifyLatency.getPercentileMillis(50);
+  }
+
+  @Override
+  public double getSignatureVerifyP90Millis() {
+    return verifyLatency.getPercentileMillis(90);
+  }
+
+  @Override
+  public double getSignatureVerifyP99Millis() {
+    return verifyLatency.getPercentileMillis(99);
+  }
+}
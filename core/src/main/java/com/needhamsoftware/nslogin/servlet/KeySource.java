@@ -0,0 +1,222 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.needhamsoftware.nslogin.keyring.Jwks;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.fluent.Request;
+
+import java.io.IOException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fetches public keys from the login service, either one at a time by key id or all at once as a key
+ * set. All calls pass through a {@link CircuitBreaker} so that when the login service is unhealthy we fail
+ * fast rather than tie up request threads, and concurrent key set fetches are coalesced into one request.
+ * <p>
+ * The kid of a token is read before its signature can be checked, so anyone can present any number of made
+ * up kids. Asking the login service about each of them would turn every such request into a request to the
+ * login service (and an unknown key is a 4xx, which the breaker counts as healthy). So a kid the service
+ * didn't know is refused without asking again for the retry interval, and the service is asked about any
+ * new kid at most once per retry interval: the key set is reused until it is that old, and a single key
+ * fetch that found nothing holds off fetches of other unknown kids for as long.
+ */
+class KeySource {
+
+  private final URL keyFetchUrl;
+  private final URL jwksUrl;
+  private final int connectTimeoutMs;
+  private final int socketTimeoutMs;
+  private final CircuitBreaker breaker;
+  private final long unknownRetryNanos;
+
+  private final AtomicReference<CompletableFuture<Map<String, PublicKey>>> keySetInFlight = new AtomicReference<>();
+  private final AtomicReference<FetchedKeySet> lastKeySet = new AtomicReference<>();
+  private final AtomicLong lastUnknownFetch = new AtomicLong();
+  private final Cache<String, Boolean> unknownKids;
+
+  /**
+   * @param keyFetchUrl        url ending in kid= to which the key id is appended, ignored if jwksUrl is supplied
+   * @param jwksUrl            url of a JSON Web Key Set containing all current keys, may be null
+   * @param unknownRetryMillis how long to wait before asking the login service about another unknown kid
+   */
+  KeySource(URL keyFetchUrl, URL jwksUrl, int connectTimeoutMs, int socketTimeoutMs, CircuitBreaker breaker,
+            long unknownRetryMillis) {
+    this.keyFetchUrl = keyFetchUrl;
+    this.jwksUrl = jwksUrl;
+    this.connectTimeoutMs = connectTimeoutMs;
+    this.socketTimeoutMs = socketTimeoutMs;
+    this.breaker = breaker;
+    this.unknownRetryNanos = TimeUnit.MILLISECONDS.toNanos(unknownRetryMillis);
+    this.lastUnknownFetch.set(System.nanoTime() - unknownRetryNanos);
+    this.unknownKids = CacheBuilder.newBuilder()
+        .maximumSize(10000)
+        .expireAfterWrite(unknownRetryMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  boolean usesKeySet() {
+    return jwksUrl != null;
+  }
+
+  CircuitBreaker getBreaker() {
+    return breaker;
+  }
+
+  /**
+   * Find a key that the caller doesn't hold, subject to the limits on unknown kids described above.
+   *
+   * @return the key set (or just the key if keys are fetched one at a time), which contains the kid
+   * @throws KeyException if the login service doesn't know the kid, or was asked about an unknown kid too
+   *                      recently to ask again
+   */
+  Map<String, PublicKey> fetchUnknown(String kid) throws IOException, GeneralSecurityException {
+    if (unknownKids.getIfPresent(kid) != null) {
+      throw new KeyException("Requested key:" + kid + " was recently reported unknown.");
+    }
+    Map<String, PublicKey> keys;
+    if (usesKeySet()) {
+      keys = recentKeySet();
+    } else {
+      long last = lastUnknownFetch.get();
+      if (System.nanoTime() - last < unknownRetryNanos) {
+        throw new KeyException("Requested key:" + kid + " is not held and an unknown key was fetched recently.");
+      }
+      try {
+        keys = Collections.singletonMap(kid, fetchKey(kid));
+      } catch (HttpResponseException e) {
+        if (e.getStatusCode() < 500) {
+          lastUnknownFetch.compareAndSet(last, System.nanoTime());
+          unknownKids.put(kid, Boolean.TRUE);
+        }
+        throw e;
+      }
+    }
+    if (!keys.containsKey(kid)) {
+      unknownKids.put(kid, Boolean.TRUE);
+      throw new KeyException("Requested key:" + kid + " is unknown or has expired.");
+    }
+    return keys;
+  }
+
+  /**
+   * The key set last fetched if that was within the retry interval for unknown kids, otherwise a fresh one.
+   */
+  Map<String, PublicKey> recentKeySet() throws IOException, GeneralSecurityException {
+    FetchedKeySet last = lastKeySet.get();
+    if (last != null && System.nanoTime() - last.fetchedNanos < unknownRetryNanos) {
+      return last.keys;
+    }
+    return fetchKeySet();
+  }
+
+  PublicKey fetchKey(String kid) throws IOException, GeneralSecurityException {
+    byte[] encoded = get(keyFetchUrl + kid); // expects the url ends with  kid= and that we get a valid url
+    KeyFactory keyFactory = KeyFactory.getInstance(LoginConstants.SIGNATURE_ALGORITHM.getFamilyName());
+    return keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+  }
+
+  /**
+   * Fetch the key set. If a fetch is already in progress wait for it and share its result rather than
+   * sending another request.
+   */
+  Map<String, PublicKey> fetchKeySet() throws IOException, GeneralSecurityException {
+    CompletableFuture<Map<String, PublicKey>> mine = new CompletableFuture<>();
+    CompletableFuture<Map<String, PublicKey>> existing = keySetInFlight.compareAndExchange(null, mine);
+    if (existing != null) {
+      return await(existing);
+    }
+    try {
+      Map<String, PublicKey> keys = Jwks.read(get(jwksUrl.toExternalForm()));
+      lastKeySet.set(new FetchedKeySet(keys, System.nanoTime()));
+      mine.complete(keys);
+    } catch (IOException | GeneralSecurityException | RuntimeException e) {
+      mine.completeExceptionally(e);
+    } finally {
+      keySetInFlight.set(null);
+    }
+    return await(mine);
+  }
+
+  private byte[] get(String url) throws IOException {
+    if (!breaker.allowRequest()) {
+      throw new IOException("Login service key requests suspended after repeated failures");
+    }
+    try {
+      byte[] bytes = Request.Get(url)
+          .connectTimeout(connectTimeoutMs)
+          .socketTimeout(socketTimeoutMs)
+          .execute().returnContent().asBytes();
+      breaker.recordSuccess();
+      return bytes;
+    } catch (HttpResponseException e) {
+      // a 4xx (typically 410 for an expired key) means the service is working fine.
+      if (e.getStatusCode() >= 500) {
+        breaker.recordFailure();
+      } else {
+        breaker.recordSuccess();
+      }
+      throw e;
+    } catch (IOException | RuntimeException e) {
+      breaker.recordFailure();
+      throw e;
+    }
+  }
+
+  private static Map<String, PublicKey> await(CompletableFuture<Map<String, PublicKey>> future)
+      throws IOException, GeneralSecurityException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private static final class FetchedKeySet {
+    private final Map<String, PublicKey> keys;
+    private final long fetchedNanos;
+
+    private FetchedKeySet(Map<String, PublicKey> keys, long fetchedNanos) {
+      this.keys = keys;
+      this.fetchedNanos = fetchedNanos;
+    }
+  }
+}
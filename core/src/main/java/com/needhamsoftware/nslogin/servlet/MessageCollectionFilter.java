@@ -41,7 +41,7 @@ class MessageCollectionFilter implements Filter {
     List<Notification> messages = Messages.DO.getErrorMessages();
     try {
       HttpServletRequest req = (HttpServletRequest) request;
-      HttpSession session = req.getSession();
+      HttpSession session = req.getSession(false);
       if (session != null) {
         Messages.supplyWebMessageService(NotificationSocket.ACTIVE_ENDPOINTS.get(session.getId()));
       }
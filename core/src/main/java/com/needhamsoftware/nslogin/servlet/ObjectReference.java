@@ -25,6 +25,8 @@ class ObjectReference {
 
   private Class type;
   private Long id;
+  private String collection;
+  private Long memberId;
   private boolean valid = true;
 
   public ObjectReference(String pathInfo) {
@@ -46,6 +48,20 @@ class ObjectReference {
           valid = false;
         }
       }
+      // Type/id/collection/memberId addresses the members of a collection directly
+      if (parts.length > 3) {
+        collection = parts[3];
+      }
+      if (parts.length > 4) {
+        try {
+          memberId = Long.parseLong(parts[4]);
+        } catch (NumberFormatException e) {
+          valid = false;
+        }
+      }
+      if (parts.length > 5) {
+        valid = false;
+      }
     }
   }
 
@@ -57,6 +73,14 @@ class ObjectReference {
     return id;
   }
 
+  public String getCollection() {
+    return collection;
+  }
+
+  public Long getMemberId() {
+    return memberId;
+  }
+
   public boolean isValid() {
     return valid;
   }
@@ -66,6 +90,8 @@ class ObjectReference {
     return "ObjectReference{" +
         "type=" + type +
         ", id=" + id +
+        ", collection=" + collection +
+        ", memberId=" + memberId +
         ", valid=" + valid +
         '}';
   }
@@ -28,6 +28,7 @@ class RestResponse {
   private List<Notification> messages = new ArrayList<>();
 
   private Long numFound;
+  private String next;
 
   public boolean isOk() {
     return ok;
@@ -61,4 +62,12 @@ class RestResponse {
     this.numFound = numFound;
   }
 
+  public String getNext() {
+    return next;
+  }
+
+  public void setNext(String next) {
+    this.next = next;
+  }
+
 }
@@ -44,10 +44,17 @@ public class ServletUtils {
   }
 
   public static void handleError(HttpServletResponse resp, int code, ObjectMapper mapper) throws IOException {
+    handleError(resp, code, mapper, "application/json");
+  }
+
+  /**
+   * @param contentType the media type that the mapper writes
+   */
+  public static void handleError(HttpServletResponse resp, int code, ObjectMapper mapper, String contentType) throws IOException {
     resp.setStatus(code);
     RestResponse response = new RestResponse();
     response.setMessages(Messages.DO.getErrorMessages());
-    resp.setContentType("application/json");
+    resp.setContentType(contentType);
     ServletOutputStream out = resp.getOutputStream();
     mapper.writeValue(out, response);
   }
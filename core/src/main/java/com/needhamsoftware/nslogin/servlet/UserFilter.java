@@ -27,11 +27,13 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 import java.io.IOException;
 
 @Singleton
 public class UserFilter implements Filter {
   private static Logger log = LogManager.getLogger();
+  public static final String SITE_USER = "com.needhamsoftware.nslogin.SITE_USER";
 
   @Inject
   private ObjectService objectService;
@@ -55,7 +57,11 @@ public class UserFilter implements Filter {
       Messages.DO.sendErrorMessage("Insufficient Access Rights");
     }
 
-    req.getSession().setAttribute("com.needhamsoftware.nslogin.SITE_USER",siteUser);
+    req.setAttribute(SITE_USER, siteUser);
+    HttpSession session = req.getSession(false); // no session in stateless mode, and we shouldn't start one
+    if (session != null) {
+      session.setAttribute(SITE_USER, siteUser);
+    }
     chain.doFilter(request,response);
   }
 
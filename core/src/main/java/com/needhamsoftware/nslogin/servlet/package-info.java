@@ -34,12 +34,16 @@
  * re-generated on a periodic basis. Validation of the JWT token is performed in the included security filter and follows the following steps:
  * <ol>
  *   <li>Read the key id from the header of the token</li>
- *   <li>Fetch the public key from the servlet by sending a request ending in ?kid=[UUID]</li>
+ *   <li>Fetch the public key from the servlet by sending a request ending in ?kid=[UUID] (or fetch the key
+ *       set from jwksUrl, which contains all current keys)</li>
  *   <li>Decrypt the secret from the token using the public key</li>
  *   <li>Check that the secret contains a valid value for issuer</li>
  *   <li>Trust the username from the token and log the user in as that user</li>
  * </ol>
  *
+ * Normally the user then remains logged in for the life of the servlet session. In stateless mode no session is
+ * used and the token is checked (against a cache of recently verified tokens) on every request.
+ *
  * Old keys are cached for a period longer than the regeneration time, but not indefinitely, meaning that anyone
  * logging in at the key regen-boundary race condition can still fetch the previous key, but there is only a
  * very short window of time for attackers to attempt reverse-engineer the private key from the public key.
@@ -23,6 +23,7 @@ import com.needhamsoftware.nslogin.model.Notification;
 import com.needhamsoftware.nslogin.model.NotificationType;
 import com.needhamsoftware.nslogin.service.MessageService;
 import com.needhamsoftware.nslogin.servlet.SessionTracker;
+import com.needhamsoftware.nslogin.servlet.UserFilter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -75,7 +76,7 @@ public class NotificationSocket implements MessageService {
         (SessionTracker) config.getUserProperties().get(SessionTracker.class.getName());
     httpSession = tracker.getSessionById(sessionId);
     ACTIVE_ENDPOINTS.put(httpSession.getId(), this);
-    AppUser user = (AppUser) httpSession.getAttribute("com.needhamsoftware.nslogin.SITE_USER");
+    AppUser user = (AppUser) httpSession.getAttribute(UserFilter.SITE_USER);
     if (user != null) {
       ENDPOINTS_BY_USER_ID.put(user.getId(), this);
     }
@@ -84,7 +85,7 @@ public class NotificationSocket implements MessageService {
   @OnClose
   public void destroy() {
     log.debug("Destroying {}", this.getClass());
-    AppUser user = (AppUser) httpSession.getAttribute("com.needhamsoftware.nslogin.SITE_USER");
+    AppUser user = (AppUser) httpSession.getAttribute(UserFilter.SITE_USER);
     if (user != null) {
       ENDPOINTS_BY_USER_ID.remove(user.getId());
       ACTIVE_ENDPOINTS.remove(httpSession.getId(), this);
@@ -0,0 +1,101 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.keyring;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyRingTest {
+
+  /**
+   * A store that holds up saving a key until released, as a slow database would during a rotation.
+   */
+  private static class SlowSaveStore extends LocalKeyRingStore {
+    final CountDownLatch saving = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public void save(SigningKey key) {
+      saving.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      super.save(key);
+    }
+
+    void saveNow(SigningKey key) {
+      super.save(key);
+    }
+  }
+
+  @Test
+  public void testUnknownKidDoesNotWaitForRotation() throws Exception {
+    SlowSaveStore store = new SlowSaveStore();
+    KeyRing ring = new KeyRing(store, SignatureAlgorithm.RS256, Duration.ofHours(1), Duration.ofHours(2));
+    KeyRing other = new KeyRing(new LocalKeyRingStore(), SignatureAlgorithm.RS256, Duration.ofHours(1),
+        Duration.ofHours(2));
+    other.rotateIfNeeded();
+    KeyRing.ActiveKey fromOtherNode = other.current();
+    // old enough that the ring must rotate
+    Instant created = Instant.now().minus(Duration.ofMinutes(90));
+    store.saveNow(new SigningKey(fromOtherNode.getKid(), fromOtherNode.getPublicKey().getEncoded(),
+        fromOtherNode.getPrivateKey().getEncoded(), created, created.plus(Duration.ofHours(2))));
+
+    ExecutorService threads = Executors.newFixedThreadPool(2);
+    try {
+      Future<?> rotation = threads.submit(ring::rotateIfNeeded);
+      assertTrue(store.saving.await(10, TimeUnit.SECONDS));
+      // times out if the lookup is stuck behind the rotation
+      assertNotNull(threads.submit(() -> ring.publicKey(fromOtherNode.getKid())).get(5, TimeUnit.SECONDS));
+      store.release.countDown();
+      rotation.get(10, TimeUnit.SECONDS);
+    } finally {
+      store.release.countDown();
+      threads.shutdownNow();
+    }
+    // the reload finished first, but the ring installed last must be the one holding the new key
+    assertEquals(2, store.loadActive(Instant.now()).size());
+    assertNotNull(ring.current());
+    assertNotEquals(fromOtherNode.getKid(), ring.current().getKid());
+    assertNotNull(ring.publicKey(fromOtherNode.getKid()));
+  }
+
+  @Test
+  public void testUnknownKid() {
+    KeyRing ring = new KeyRing(new LocalKeyRingStore(), SignatureAlgorithm.RS256, Duration.ofHours(1),
+        Duration.ofHours(2));
+    ring.rotateIfNeeded();
+    assertNull(ring.publicKey("no-such-kid"));
+    assertNotNull(ring.publicKey(ring.current().getKid()));
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.needhamsoftware.nslogin.service.impl.MessageServiceImpl;
+import com.needhamsoftware.nslogin.servlet.Messages;
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class ValidatableTest {
+
+  private static final String[] BODIES = {
+      "{}",
+      "{\"id\":12,\"anInt\":3,\"aDouble\":1.5,\"anInstant\":\"2020-01-02T03:04:05Z\",\"aString\":\"x\"}",
+      "{\"id\":\"12\",\"anInt\":\"3\",\"aDouble\":\"1.5\",\"anInstant\":1577934245000}",
+      "{\"id\":\"twelve\",\"anInt\":\"three\",\"aDouble\":\"one and a half\",\"anInstant\":\"yesterday\"}",
+      "{\"id\":2147483648,\"anInt\":12345678901234567890,\"aDouble\":1e308,\"anInstant\":\"1.5e9\"}",
+      "{\"id\":null,\"anInt\":null,\"aDouble\":null,\"anInstant\":null}",
+      "{\"anInt\":[1,2],\"aDouble\":{\"value\":1.5},\"anInstant\":true,\"someThings\":[{\"id\":1},{\"id\":\"x\"}]}",
+      "{\"aUser\":{\"id\":1,\"roles\":[]},\"aThing\":{\"id\":\"2\",\"anInt\":\"nope\"},\"unknown\":\"\\u00e9\"}",
+  };
+
+  private final ObjectMapper mapper = new ObjectMapper().findAndRegisterModules();
+  private final MessageServiceImpl messages = new MessageServiceImpl();
+
+  @Before
+  public void setUp() throws Exception {
+    FieldUtils.writeStaticField(Messages.class, "preNotificationService", messages, true);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    messages.clearRequestMessages();
+    FieldUtils.writeStaticField(Messages.class, "preNotificationService", null, true);
+  }
+
+  @Test
+  public void testTreeDefaultSeesTheParsedMap() throws Exception {
+    for (String body : BODIES) {
+      Recorder fromText = new Recorder();
+      fromText.validateMap(mapper.readValue(body, Map.class));
+      Recorder fromTree = new Recorder();
+      fromTree.validateTree((ObjectNode) mapper.readTree(body), mapper);
+      assertEquals(body, fromText.map, fromTree.map);
+    }
+  }
+
+  @Test
+  public void testTreeDefaultGivesTheSameVerdict() throws Exception {
+    int rejected = 0;
+    for (String body : BODIES) {
+      boolean fromText = new TestThing().validateMap(mapper.readValue(body, Map.class));
+      List<String> textMessages = errors();
+      boolean fromTree = new TestThing().validateTree((ObjectNode) mapper.readTree(body), mapper);
+      List<String> treeMessages = errors();
+      assertEquals(body, fromText, fromTree);
+      assertEquals(body, textMessages, treeMessages);
+      rejected += treeMessages.isEmpty() ? 0 : 1;
+    }
+    assertEquals(1, rejected); // TestThing only reports strings that don't parse
+  }
+
+  private List<String> errors() {
+    return messages.clearRequestMessages().stream().map(Notification::getMessage).collect(Collectors.toList());
+  }
+
+  private static class Recorder implements Validatable {
+    private Map<String, Object> map;
+
+    @Override
+    public boolean validate() {
+      return true;
+    }
+
+    @Override
+    public boolean validateMap(Map<String, Object> map) {
+      this.map = map;
+      return true;
+    }
+  }
+}
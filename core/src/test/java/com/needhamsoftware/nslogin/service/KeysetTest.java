@@ -0,0 +1,85 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.service;
+
+import com.needhamsoftware.nslogin.model.TestThing;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeysetTest {
+
+  @Test
+  public void testRoundTrip() {
+    TestThing thing = new TestThing();
+    thing.setId(42L);
+    thing.setaString("a \"quoted\", string");
+    thing.setAnInt(-7);
+    thing.setaDouble(0.1);
+    thing.setAnInstant(Instant.parse("2020-02-29T12:34:56.789Z"));
+    List<String> sorts = Arrays.asList("aString asc", "anInt desc", "aDouble", "anInstant asc");
+
+    Keyset keyset = Keyset.decode(Keyset.after(thing, sorts).encode(), TestThing.class, sorts);
+    assertEquals(42L, keyset.getId());
+    assertEquals(Arrays.asList(thing.getaString(), -7, 0.1, thing.getAnInstant()), keyset.getValues());
+  }
+
+  @Test
+  public void testOnlyTypesThatCanBeReadBack() {
+    for (Class<?> type : Arrays.asList(String.class, Integer.TYPE, Long.class, Boolean.TYPE, Double.TYPE,
+        Instant.class, Date.class, Thread.State.class)) {
+      assertTrue(type.getSimpleName(), Keyset.canPageBy(type));
+    }
+    for (Class<?> type : Arrays.asList(Float.class, Short.TYPE, BigDecimal.class, LocalDate.class,
+        TestThing.class)) {
+      assertFalse(type.getSimpleName(), Keyset.canPageBy(type));
+      try {
+        // which would otherwise hand out a cursor that is refused when it comes back
+        new Keyset(Collections.singletonList(sample(type)), 1).encode();
+        fail(type.getSimpleName());
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  private static Object sample(Class<?> type) {
+    if (type == Float.class) {
+      return 1.5f;
+    }
+    if (type == Short.TYPE) {
+      return (short) 1;
+    }
+    if (type == BigDecimal.class) {
+      return BigDecimal.ONE;
+    }
+    if (type == LocalDate.class) {
+      return LocalDate.of(2020, 1, 1);
+    }
+    return new TestThing();
+  }
+}
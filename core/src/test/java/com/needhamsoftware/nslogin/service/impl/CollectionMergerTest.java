@@ -0,0 +1,177 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.service.impl;
+
+import com.needhamsoftware.nslogin.model.AccountRequest;
+import com.needhamsoftware.nslogin.model.Action;
+import com.needhamsoftware.nslogin.model.AppUser;
+import com.needhamsoftware.nslogin.model.AppUserRef;
+import com.needhamsoftware.nslogin.model.Notification;
+import com.needhamsoftware.nslogin.model.NotificationType;
+import com.needhamsoftware.nslogin.model.Permission;
+import com.needhamsoftware.nslogin.model.Role;
+import com.needhamsoftware.nslogin.model.TestThing;
+import com.needhamsoftware.nslogin.model.UserSecurity;
+import com.needhamsoftware.nslogin.model.action.ReverseThings;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class CollectionMergerTest {
+
+  private static final AtomicInteger DATABASES = new AtomicInteger();
+
+  private SessionFactory sessionFactory;
+  private Statistics statistics;
+  private long holderId;
+  private final List<Long> memberIds = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    StandardServiceRegistryBuilder registry = new StandardServiceRegistryBuilder()
+        // a fresh database for each test, gone when the session factory closes
+        .applySetting("hibernate.connection.url", "jdbc:h2:mem:collections" + DATABASES.incrementAndGet())
+        .applySetting("hibernate.hbm2ddl.auto", "create")
+        .applySetting("hibernate.generate_statistics", "true");
+    MetadataSources sources = new MetadataSources(registry.build());
+    for (Class<?> c : Arrays.asList(AppUser.class, AppUserRef.class, Role.class, Permission.class, Action.class,
+        UserSecurity.class, AccountRequest.class, Notification.class, NotificationType.class, TestThing.class,
+        ReverseThings.class)) {
+      sources.addAnnotatedClass(c);
+    }
+    sessionFactory = sources.buildMetadata().buildSessionFactory();
+    statistics = sessionFactory.getStatistics();
+    write(s -> {
+      List<TestThing> members = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        TestThing member = new TestThing();
+        s.persist(member);
+        members.add(member);
+        memberIds.add(member.getId());
+      }
+      TestThing holder = new TestThing();
+      holder.setSomeThings(new ArrayList<>(members.subList(0, 3)));
+      s.persist(holder);
+      holderId = holder.getId();
+    });
+  }
+
+  @After
+  public void tearDown() {
+    sessionFactory.close();
+  }
+
+  @Test
+  public void testUnsentCollectionIsKept() {
+    update(null);
+    assertEquals(1, statistics.getPrepareStatementCount()); // only finding the stored object
+    assertEquals(0, statistics.getCollectionUpdateCount());
+    assertEquals(members(0, 1, 2), stored());
+  }
+
+  @Test
+  public void testUnchangedCollectionIsNotWritten() {
+    update(members(0, 1, 2));
+    assertEquals(2, statistics.getPrepareStatementCount()); // the stored object and its member ids
+    assertEquals(0, statistics.getCollectionUpdateCount());
+    assertEquals(members(0, 1, 2), stored());
+  }
+
+  @Test
+  public void testAddAndRemoveWriteOnlyTheDifference() {
+    update(members(0, 2, 3, 4));
+    // the stored object, its member ids, one delete and one insert, without loading the members
+    assertEquals(4, statistics.getPrepareStatementCount());
+    assertEquals(1, statistics.getEntityLoadCount());
+    assertEquals(0, statistics.getCollectionLoadCount());
+    assertEquals(0, statistics.getCollectionUpdateCount());
+    assertEquals(members(0, 2, 3, 4), stored());
+  }
+
+  @Test
+  public void testRemoveAll() {
+    update(members());
+    assertEquals(0, statistics.getCollectionUpdateCount());
+    assertEquals(members(), stored());
+  }
+
+  @Test
+  public void testReorderIsLeftToHibernate() {
+    update(members(2, 0, 1));
+    assertEquals(1, statistics.getCollectionUpdateCount()); // a bag can only be rewritten
+    assertEquals(members(2, 0, 1), stored());
+  }
+
+  /**
+   * Update the holder as ObjectServiceImpl does, with the members sent by a client (or null if none were).
+   */
+  private void update(List<Long> sent) {
+    TestThing incoming = new TestThing();
+    incoming.setId(holderId);
+    if (sent != null) {
+      List<TestThing> members = new ArrayList<>();
+      for (Long id : sent) {
+        TestThing member = new TestThing();
+        member.setId(id);
+        members.add(member);
+      }
+      incoming.setSomeThings(members);
+    }
+    statistics.clear();
+    write(s -> {
+      TestThing stored = s.find(TestThing.class, holderId);
+      incoming.setVersion(stored.getVersion());
+      incoming.setCreated(stored.getCreated());
+      new CollectionMerger(s).merge(incoming, stored);
+      s.merge(incoming);
+    });
+  }
+
+  private List<Long> stored() {
+    try (Session s = sessionFactory.openSession()) {
+      return s.find(TestThing.class, holderId).getSomeThings().stream()
+          .map(TestThing::getId)
+          .collect(Collectors.toList());
+    }
+  }
+
+  private List<Long> members(int... indexes) {
+    return Arrays.stream(indexes).mapToObj(memberIds::get).collect(Collectors.toList());
+  }
+
+  private void write(Consumer<Session> work) {
+    try (Session s = sessionFactory.openSession()) {
+      s.getTransaction().begin();
+      work.accept(s);
+      s.getTransaction().commit();
+    }
+  }
+}
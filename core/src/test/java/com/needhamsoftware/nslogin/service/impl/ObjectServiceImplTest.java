@@ -0,0 +1,348 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.service.impl;
+
+import com.needhamsoftware.nslogin.hibernate.HibernateUtil;
+import com.needhamsoftware.nslogin.model.AccountRequest;
+import com.needhamsoftware.nslogin.model.Action;
+import com.needhamsoftware.nslogin.model.AppUser;
+import com.needhamsoftware.nslogin.model.AppUserRef;
+import com.needhamsoftware.nslogin.model.Notification;
+import com.needhamsoftware.nslogin.model.NotificationType;
+import com.needhamsoftware.nslogin.model.Permission;
+import com.needhamsoftware.nslogin.model.Persisted;
+import com.needhamsoftware.nslogin.model.Role;
+import com.needhamsoftware.nslogin.model.TestThing;
+import com.needhamsoftware.nslogin.model.UserSecurity;
+import com.needhamsoftware.nslogin.model.action.ReverseThings;
+import com.needhamsoftware.nslogin.service.Keyset;
+import com.needhamsoftware.nslogin.service.ObjectService;
+import com.needhamsoftware.nslogin.service.PermissionService;
+import com.needhamsoftware.nslogin.service.PermittedIds;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.inject.Provider;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ObjectServiceImplTest {
+
+  private static final AtomicInteger DATABASES = new AtomicInteger();
+
+  private SessionFactory sessionFactory;
+  private Session request; // stands in for the EntityManager of the current request
+  private ObjectServiceImpl objectService;
+  private final PermitAll permissions = new PermitAll();
+
+  @Before
+  public void setUp() throws Exception {
+    StandardServiceRegistryBuilder registry = new StandardServiceRegistryBuilder()
+        // a fresh database for each test, gone when the session factory closes
+        .applySetting("hibernate.connection.url", "jdbc:h2:mem:objects" + DATABASES.incrementAndGet())
+        .applySetting("hibernate.hbm2ddl.auto", "create")
+        .applySetting("hibernate.generate_statistics", "true");
+    MetadataSources sources = new MetadataSources(registry.build());
+    for (Class<?> c : Arrays.asList(AppUser.class, AppUserRef.class, Role.class, Permission.class, Action.class,
+        UserSecurity.class, AccountRequest.class, Notification.class, NotificationType.class, TestThing.class,
+        ReverseThings.class)) {
+      sources.addAnnotatedClass(c);
+    }
+    sessionFactory = sources.buildMetadata().buildSessionFactory();
+    write(s -> {
+      // references to users are a view of the user table, as import.sql makes them on MariaDB
+      s.createNativeQuery("drop table AppUserRef cascade").executeUpdate();
+      s.createNativeQuery("create view AppUserRef as select id, username, created, modified, modifiedBy_id, " +
+          "createdBy_id, owner_id, version from AppUser").executeUpdate();
+    });
+    request = sessionFactory.openSession();
+    objectService = new ObjectServiceImpl();
+    Provider<EntityManager> requestEntityManager = () -> request;
+    FieldUtils.writeField(objectService, "entityManagerProvider", requestEntityManager, true);
+    FieldUtils.writeField(objectService, "permissionService", permissions, true);
+    FieldUtils.writeField(objectService, "persistenceUtil", new HibernateUtil(), true);
+  }
+
+  @After
+  public void tearDown() {
+    if (request != null) {
+      request.close();
+    }
+    sessionFactory.close();
+  }
+
+  @Test
+  public void testCursorVisitsEveryRow() throws Exception {
+    List<TestThing> things = things(25);
+    List<String> sorts = Collections.singletonList("anInt desc");
+    List<Long> expected = things.stream()
+        .sorted(Comparator.comparing(TestThing::getAnInt).reversed().thenComparing(TestThing::getId))
+        .map(Persisted::getId)
+        .collect(Collectors.toList());
+
+    List<Long> seen = new ArrayList<>();
+    Keyset after = null;
+    List<TestThing> page;
+    do {
+      page = objectService.list(TestThing.class, after, 10, new ArrayList<>(), sorts);
+      page.forEach(t -> seen.add(t.getId()));
+      after = page.isEmpty() ? null : Keyset.after(page.get(page.size() - 1), sorts);
+    } while (page.size() == 10);
+    assertEquals(expected, seen);
+  }
+
+  @Test
+  public void testCursorRejectsNullableSort() throws Exception {
+    things(3);
+    try {
+      // the first page, so that no client is handed a cursor that would later skip the nulls
+      objectService.list(TestThing.class, null, 10, new ArrayList<>(), Collections.singletonList("aString asc"));
+      fail("sorting on a nullable field should not be paged by cursor");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Can't page by cursor when sorting on fields that may be null:[aString]", e.getMessage());
+    }
+    // offset paging still handles it
+    assertEquals(3, objectService.list(TestThing.class, 0, 10, new ArrayList<>(),
+        Collections.singletonList("aString asc")).size());
+  }
+
+  @Test
+  public void testPageIsOneStatementAtAnySize() throws Exception {
+    List<AppUser> users = new ArrayList<>();
+    write(s -> {
+      for (int i = 0; i < 200; i++) {
+        AppUser user = new AppUser();
+        user.setUsername("user" + i);
+        s.persist(user);
+        users.add(user);
+      }
+    });
+    write(s -> {
+      for (int i = 0; i < 200; i++) {
+        TestThing thing = new TestThing();
+        // three different users for every thing, so that no page can reuse references already loaded
+        thing.setOwner(users.get(i).asRef());
+        thing.setModifiedBy(users.get((i + 1) % 200).asRef());
+        writeField(thing, "createdBy", users.get((i + 2) % 200).asRef());
+        s.persist(thing);
+      }
+    });
+
+    Statistics statistics = sessionFactory.getStatistics();
+    for (int rows : new int[]{10, 100, 200}) {
+      request.close();
+      request = sessionFactory.openSession();
+      statistics.clear();
+      List<TestThing> page = objectService.list(TestThing.class, 0, rows, new ArrayList<>(), null);
+      for (TestThing thing : page) {
+        thing.getOwner().getUsername();
+        thing.getCreatedBy().getUsername();
+        thing.getModifiedBy().getUsername();
+      }
+      assertEquals(rows, page.size());
+      assertEquals(rows + " rows", 1, statistics.getPrepareStatementCount());
+    }
+  }
+
+  @Test
+  public void testFailedChunkRollsBackOnlyItself() {
+    permissions.principal = user();
+    List<List<TestThing>> chunks = new ArrayList<>();
+    for (int c = 0; c < 4; c++) {
+      List<TestThing> chunk = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        TestThing thing = new TestThing();
+        thing.setAnInt(c * 3 + i);
+        chunk.add(thing);
+      }
+      chunks.add(chunk);
+    }
+    chunks.get(1).get(1).setaString(StringUtils.repeat('x', 300)); // too long for the column, fails at flush
+
+    // as saveBatch does with chunk=3, all on the request's entity manager
+    List<Boolean> committed = new ArrayList<>();
+    committed.add(transaction(() -> objectService.save(chunks.get(0))));
+    TestThing first = chunks.get(0).get(0);
+    write(s -> s.find(TestThing.class, first.getId()).setaString("changed elsewhere"));
+    TestThing stale = new TestThing();
+    stale.setId(first.getId());
+    stale.setVersion(first.getVersion());
+    stale.setAnInt(-1);
+    chunks.get(2).set(1, stale); // fails part way through the chunk
+    for (List<TestThing> chunk : chunks.subList(1, 4)) {
+      committed.add(transaction(() -> objectService.save(chunk)));
+    }
+
+    assertEquals(Arrays.asList(true, false, false, true), committed);
+    try (Session s = sessionFactory.openSession()) {
+      assertEquals(Arrays.asList(0, 1, 2, 9, 10, 11),
+          s.createQuery("select anInt from TestThing order by anInt", Integer.class).getResultList());
+      assertEquals("changed elsewhere", s.find(TestThing.class, first.getId()).getaString());
+    }
+  }
+
+  @Test
+  public void testNonNumericGrantOnlyUpdatesOwnObjects() {
+    AppUser other = user("other");
+    TestThing theirs = new TestThing();
+    theirs.setOwner(other.asRef());
+    write(s -> s.persist(theirs));
+    permissions.principal = user();
+    TestThing mine = new TestThing();
+    mine.setOwner(permissions.principal.asRef());
+    write(s -> s.persist(mine));
+    // what the shiro implementation returns when the only grant is TestThing:update:example.com
+    permissions.permitted = PermittedIds.NONE;
+
+    theirs.setAnInt(1);
+    assertFalse(transaction(() -> objectService.update(theirs)));
+    theirs.setOwner(permissions.principal.asRef()); // the stored owner decides, not the one sent
+    assertFalse(transaction(() -> objectService.update(theirs)));
+    assertFalse(transaction(() -> objectService.save(Collections.singletonList(theirs))));
+    mine.setAnInt(2);
+    assertTrue(transaction(() -> objectService.update(mine)));
+
+    try (Session s = sessionFactory.openSession()) {
+      assertEquals(0, s.find(TestThing.class, theirs.getId()).getAnInt());
+      assertEquals(2, s.find(TestThing.class, mine.getId()).getAnInt());
+    }
+  }
+
+  /**
+   * Run work on the request's entity manager in a transaction of its own, as guice-persist does for the
+   * methods of ObjectServiceWrapper, rolling back if it throws.
+   *
+   * @return true if the transaction committed
+   */
+  private boolean transaction(Callable<?> work) {
+    EntityTransaction tx = request.getTransaction();
+    tx.begin();
+    try {
+      work.call();
+    } catch (Exception e) {
+      tx.rollback();
+      return false;
+    }
+    tx.commit();
+    return true;
+  }
+
+  private AppUser user() {
+    return user("saver");
+  }
+
+  private AppUser user(String name) {
+    AppUser user = new AppUser();
+    user.setUsername(name);
+    user.setUserEmail(name + "@example.com");
+    write(s -> s.persist(user));
+    return user;
+  }
+
+  /**
+   * Some things, every third one without a string and with ints that repeat so that ties must be broken.
+   */
+  private List<TestThing> things(int count) {
+    List<TestThing> things = new ArrayList<>();
+    write(s -> {
+      for (int i = 0; i < count; i++) {
+        TestThing thing = new TestThing();
+        thing.setAnInt(i % 4);
+        thing.setaString(i % 3 == 0 ? null : "thing " + i);
+        s.persist(thing);
+        things.add(thing);
+      }
+    });
+    return things;
+  }
+
+  private static void writeField(Object target, String field, Object value) {
+    try {
+      FieldUtils.writeField(target, field, value, true);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void write(Consumer<Session> work) {
+    try (Session s = sessionFactory.openSession()) {
+      s.getTransaction().begin();
+      work.accept(s);
+      s.getTransaction().commit();
+    }
+  }
+
+  /**
+   * Permits everything unless told otherwise, the permission checks themselves are tested with the shiro
+   * implementation.
+   */
+  private static class PermitAll implements PermissionService {
+    private AppUser principal;
+    private PermittedIds permitted = PermittedIds.ALL;
+
+    @Override
+    public AppUser lookUpPrincipal(HttpServletRequest req, ObjectService objectService) {
+      return null;
+    }
+
+    @Override
+    public void checkPerms(List<Permission> permissions) {
+    }
+
+    @Override
+    public AppUser lookUpUserByEmail(ObjectService objectService, String userEmail) {
+      return null;
+    }
+
+    @Override
+    public <T extends Persisted> PermittedIds checkPermsAndFilter(Class<T> clazz, String action) {
+      return permitted;
+    }
+
+    @Override
+    public AppUser getTopPrincipal() {
+      return principal;
+    }
+
+    @Override
+    public void objectWritten(Persisted written) {
+    }
+  }
+}
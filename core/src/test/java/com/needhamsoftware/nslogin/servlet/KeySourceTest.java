@@ -0,0 +1,283 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import com.needhamsoftware.nslogin.keyring.Jwks;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.HttpResponseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link KeySource} and its {@link CircuitBreaker} against a stub login service.
+ */
+public class KeySourceTest {
+
+  private static KeyPair pair;
+
+  private HttpServer server;
+  private final AtomicInteger requests = new AtomicInteger();
+  // what the stub does next: a status code to send, or 0 for the key
+  private volatile int status;
+  private volatile long delayMillis;
+
+  @BeforeClass
+  public static void generateKey() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    pair = generator.generateKeyPair();
+  }
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/login/key", exchange -> respond(exchange, pair.getPublic().getEncoded()));
+    server.createContext("/login/jwks", exchange -> respond(exchange,
+        Jwks.write(Collections.singletonMap("kid1", pair.getPublic()), "RS256")));
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private void respond(HttpExchange exchange, byte[] body) throws IOException {
+    requests.incrementAndGet();
+    try {
+      Thread.sleep(delayMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (status != 0) {
+      exchange.sendResponseHeaders(status, -1);
+    } else {
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+    exchange.close();
+  }
+
+  private KeySource source(CircuitBreaker breaker) throws IOException {
+    return source(breaker, 60000);
+  }
+
+  private KeySource source(CircuitBreaker breaker, long unknownRetryMillis) throws IOException {
+    String base = "http://localhost:" + server.getAddress().getPort() + "/login/";
+    return new KeySource(new URL(base + "key?kid="), null, 1000, 500, breaker, unknownRetryMillis);
+  }
+
+  private KeySource keySetSource(CircuitBreaker breaker) throws IOException {
+    return keySetSource(breaker, 60000);
+  }
+
+  private KeySource keySetSource(CircuitBreaker breaker, long unknownRetryMillis) throws IOException {
+    String base = "http://localhost:" + server.getAddress().getPort() + "/login/";
+    return new KeySource(null, new URL(base + "jwks"), 1000, 500, breaker, unknownRetryMillis);
+  }
+
+  @Test
+  public void testFetchKey() throws Exception {
+    PublicKey key = source(new CircuitBreaker(3, 60000)).fetchKey("kid1");
+    assertEquals(pair.getPublic(), key);
+  }
+
+  @Test
+  public void testFetchKeySet() throws Exception {
+    Map<String, PublicKey> keys = keySetSource(new CircuitBreaker(3, 60000)).fetchKeySet();
+    assertEquals(Collections.singletonMap("kid1", pair.getPublic()), keys);
+  }
+
+  @Test
+  public void testRetiredKeyDoesNotOpenBreaker() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+    KeySource source = source(breaker);
+    status = 410;
+    for (int i = 0; i < 3; i++) {
+      try {
+        source.fetchKey("gone");
+        fail();
+      } catch (HttpResponseException e) {
+        assertEquals(410, e.getStatusCode());
+      }
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void testFailuresOpenBreaker() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(2, 300);
+    KeySource source = source(breaker);
+    status = 503;
+    for (int i = 0; i < 4; i++) {
+      try {
+        source.fetchKey("kid1");
+        fail();
+      } catch (IOException expected) {
+        // the first two reach the service, the rest are refused without a request
+      }
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(2, requests.get());
+
+    // after the cool down one trial request goes through, and its success closes the breaker
+    Thread.sleep(400);
+    status = 0;
+    assertEquals(pair.getPublic(), source.fetchKey("kid1"));
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void testFailedTrialReopensBreaker() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 300);
+    KeySource source = source(breaker);
+    status = 500;
+    try {
+      source.fetchKey("kid1");
+      fail();
+    } catch (IOException expected) {
+    }
+    Thread.sleep(400);
+    assertTrue(breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    // only one trial at a time
+    assertFalse(breaker.allowRequest());
+    breaker.recordFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testSlowServiceCountsAsFailure() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 60000);
+    KeySource source = source(breaker);
+    delayMillis = 3000; // well beyond the 500ms socket timeout
+    long start = System.nanoTime();
+    try {
+      source.fetchKey("kid1");
+      fail();
+    } catch (IOException expected) {
+    }
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(2500));
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testBogusKidsCostOneFetch() throws Exception {
+    KeySource source = source(new CircuitBreaker(3, 60000), 300);
+    status = 410;
+    try {
+      source.fetchUnknown("bogus0");
+      fail();
+    } catch (HttpResponseException e) {
+      assertEquals(410, e.getStatusCode());
+    }
+    for (int i = 0; i < 20; i++) {
+      try {
+        source.fetchUnknown("bogus" + (i % 2 == 0 ? 0 : i)); // the same one again, or a new one
+        fail();
+      } catch (KeyException expected) {
+      }
+    }
+    assertEquals(1, requests.get());
+
+    // a new kid (e.g. from a key just made on another node) is looked up once the interval has passed
+    Thread.sleep(400);
+    status = 0;
+    assertEquals(pair.getPublic(), source.fetchUnknown("kid1").get("kid1"));
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testBogusKidsCostOneKeySetFetch() throws Exception {
+    KeySource source = keySetSource(new CircuitBreaker(3, 60000), 300);
+    for (int i = 0; i < 20; i++) {
+      try {
+        source.fetchUnknown("bogus" + i);
+        fail();
+      } catch (KeyException expected) {
+      }
+    }
+    assertEquals(pair.getPublic(), source.fetchUnknown("kid1").get("kid1"));
+    assertEquals(1, requests.get());
+
+    Thread.sleep(400);
+    try {
+      source.fetchUnknown("bogus20");
+      fail();
+    } catch (KeyException expected) {
+    }
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testConcurrentKeySetFetchesShareOneRequest() throws Exception {
+    KeySource source = keySetSource(new CircuitBreaker(3, 60000));
+    delayMillis = 300;
+    int threads = 8;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<Map<String, PublicKey>>> results = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        results.add(pool.submit(() -> {
+          start.await();
+          return source.fetchKeySet();
+        }));
+      }
+      start.countDown();
+      for (Future<Map<String, PublicKey>> result : results) {
+        assertEquals(pair.getPublic(), result.get(10, TimeUnit.SECONDS).get("kid1"));
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    assertEquals(1, requests.get());
+  }
+}
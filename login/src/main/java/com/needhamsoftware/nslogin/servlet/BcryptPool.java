@@ -0,0 +1,137 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import com.needhamsoftware.nslogin.metrics.LatencyRecorder;
+import org.mindrot.jbcrypt.BCrypt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool dedicated to bcrypt verification. Hashing is deliberately expensive, so it must
+ * not be allowed to occupy every container thread during a burst of logins (or a credential stuffing
+ * attack). The queue is bounded, and once it is full new work is rejected immediately so that the
+ * caller can shed load rather than pile up requests that will time out anyway.
+ */
+class BcryptPool implements BcryptPoolMXBean {
+
+  private final ThreadPoolExecutor executor;
+  private final int queueCapacity;
+  private final LatencyRecorder hashLatency = new LatencyRecorder();
+  private final LatencyRecorder queueWait = new LatencyRecorder();
+  private final AtomicLong rejected = new AtomicLong();
+
+  BcryptPool(int threads, int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+    AtomicInteger threadNum = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity),
+        r -> {
+          Thread t = new Thread(r, "nslogin-bcrypt-" + threadNum.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        },
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /**
+   * Queue work for the pool.
+   *
+   * @param work the work to do, which is expected to call {@link #checkpw(String, String)}
+   * @throws RejectedExecutionException if the queue is full, or the pool has been shut down.
+   */
+  void submit(Runnable work) throws RejectedExecutionException {
+    long queued = System.nanoTime();
+    try {
+      executor.execute(() -> {
+        queueWait.record(System.nanoTime() - queued);
+        work.run();
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      throw e;
+    }
+  }
+
+  boolean checkpw(String password, String passwordHash) {
+    long start = System.nanoTime();
+    try {
+      return BCrypt.checkpw(password, passwordHash);
+    } finally {
+      hashLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  @Override
+  public int getThreads() {
+    return executor.getMaximumPoolSize();
+  }
+
+  @Override
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  @Override
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  @Override
+  public long getCompletedCount() {
+    return executor.getCompletedTaskCount();
+  }
+
+  @Override
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  @Override
+  public double getHashLatencyMeanMillis() {
+    return hashLatency.getMeanMillis();
+  }
+
+  @Override
+  public double getHashLatencyP50Millis() {
+    return hashLatency.getPercentileMillis(50);
+  }
+
+  @Override
+  public double getHashLatencyP99Millis() {
+    return hashLatency.getPercentileMillis(99);
+  }
+
+  @Override
+  public double getQueueWaitP99Millis() {
+    return queueWait.getPercentileMillis(99);
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+/**
+ * Statistics for sizing the bcrypt verification pool. If the queue is routinely non-empty and
+ * latency is dominated by queueing rather than hashing, add threads (up to the number of cores).
+ * If requests are being rejected while the hash latency is already high, add hardware.
+ */
+public interface BcryptPoolMXBean {
+
+  int getThreads();
+
+  int getQueueCapacity();
+
+  int getQueueDepth();
+
+  int getActiveCount();
+
+  long getCompletedCount();
+
+  long getRejectedCount();
+
+  double getHashLatencyMeanMillis();
+
+  double getHashLatencyP50Millis();
+
+  double getHashLatencyP99Millis();
+
+  double getQueueWaitP99Millis();
+}
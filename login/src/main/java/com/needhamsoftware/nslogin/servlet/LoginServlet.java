@@ -16,20 +16,22 @@
 
 package com.needhamsoftware.nslogin.servlet;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.needhamsoftware.nslogin.keyring.JpaKeyRingStore;
+import com.needhamsoftware.nslogin.keyring.KeyRing;
+import com.needhamsoftware.nslogin.keyring.KeyRingStore;
+import com.needhamsoftware.nslogin.keyring.LocalKeyRingStore;
+import com.needhamsoftware.nslogin.metrics.MBeans;
 import com.needhamsoftware.nslogin.model.AppUser;
 import com.needhamsoftware.nslogin.model.Role;
 import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.security.Keys;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.mindrot.jbcrypt.BCrypt;
 
+import javax.management.ObjectName;
 import javax.persistence.*;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -38,14 +40,12 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.security.KeyPair;
+import java.security.PublicKey;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -56,26 +56,23 @@ public class LoginServlet extends HttpServlet implements LoginConstants {
   private static final Logger log = LogManager.getLogger();
   private static final String USER_NAME_OR_PASSWORD_INCORRECT = "Email or password incorrect.";
   private static final String LOGIN_FORM_EMAIL = "LOGIN_FORM_EMAIL";
+  private static final String JWKS_PATH = "/jwks.json";
 
-  private volatile String currentKey;
+  // how often each node checks the store for keys created by other nodes (and for the need to rotate)
+  private static final int KEY_CHECK_SECONDS = 60;
+  // verifiers may cache the key set this long, a token with a newer kid will cause them to fetch early.
+  private static final int JWKS_MAX_AGE_SECONDS = KEY_CHECK_SECONDS;
 
-  private LoadingCache<String, KeyPair> keys = CacheBuilder.newBuilder().expireAfterWrite(LoginConstants.KEY_EXPIRE_SECONDS, TimeUnit.SECONDS).build(
-      new CacheLoader<>() {
-        @Override
-        public KeyPair load(String key) {
-          return null; // loading cache allows type safety. but we don't need loading here.
-        }
-      }
-  );
+  private KeyRing keyRing;
 
   @PersistenceUnit(unitName = "app")
   private EntityManagerFactory emf;
 
-  private Executor ex = Executors.newSingleThreadScheduledExecutor(r -> {
-    Thread t = new Thread(r);
-    t.setDaemon(true);
-    return t;
-  });
+  // verification of passwords is kept off the container threads, see BcryptPool
+  private BcryptPool bcrypt;
+  private ObjectName bcryptStats;
+  private int retryAfterSeconds;
+  private long loginTimeoutMillis;
 
   @Override
   public void init(ServletConfig config) throws ServletException {
@@ -87,27 +84,37 @@ public class LoginServlet extends HttpServlet implements LoginConstants {
     Object singleResult = query.getSingleResult();
     log.info("FOUND {} user records on startup", singleResult);
 
-    // Set up our first key.
-    currentKey = UUID.randomUUID().toString();
-    KeyPair keyPair = Keys.keyPairFor(LoginConstants.SIGNATURE_ALGORITHM);
-    keys.put(currentKey, keyPair);
+    // By default one hashing thread per core, more threads can't make hashing any faster, and a queue
+    // deep enough to absorb a short burst, beyond which we would rather tell the client to come back
+    // than make it wait.
+    int hashThreads = intParam(config, "hashThreads", Runtime.getRuntime().availableProcessors());
+    int hashQueue = intParam(config, "hashQueueSize", hashThreads * 16);
+    retryAfterSeconds = intParam(config, "hashRetryAfterSeconds", 2);
+    // a login still waiting this long is answered as if the queue had been full
+    loginTimeoutMillis = TimeUnit.SECONDS.toMillis(intParam(config, "loginTimeoutSeconds", 30));
+    bcrypt = new BcryptPool(hashThreads, hashQueue);
+    bcryptStats = MBeans.register("BcryptPool", config.getServletContext().getContextPath(), bcrypt);
+    log.info("Verifying passwords with {} threads and a queue of {}", hashThreads, hashQueue);
 
-    ex.execute(() -> {
-      while (true) {
-        try {
-          // This interval must be shorter than KEY_EXPIRE_SECONDS
-          // otherwise we could have no keys with which to generate a token
-          Thread.sleep(30 * 60 * 1000); // wait 30 min
-        } catch (InterruptedException e) {
-          break;
-        }
+    // Keys are shared with other login nodes via the database unless configured otherwise
+    String storeType = config.getInitParameter("keyRingStore");
+    KeyRingStore store = "local".equalsIgnoreCase(storeType) ? new LocalKeyRingStore() : new JpaKeyRingStore(emf);
+    keyRing = new KeyRing(store, LoginConstants.SIGNATURE_ALGORITHM,
+        Duration.ofSeconds(KEY_CHANGE_SECONDS), Duration.ofSeconds(KEY_EXPIRE_SECONDS));
+    keyRing.start(Duration.ofSeconds(KEY_CHECK_SECONDS));
+  }
 
-        // Periodically create a new key (old key still valid till restart or keys cache expires).
-        currentKey = UUID.randomUUID().toString();
-        KeyPair kp = Keys.keyPairFor(LoginConstants.SIGNATURE_ALGORITHM);
-        keys.put(currentKey, kp);
-      }
-    });
+  @Override
+  public void destroy() {
+    keyRing.stop();
+    bcrypt.shutdown();
+    MBeans.unregister(bcryptStats);
+    super.destroy();
+  }
+
+  private int intParam(ServletConfig config, String name, int defaultValue) {
+    String value = config.getInitParameter(name);
+    return StringUtils.isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
   }
 
   @Override
@@ -117,6 +124,15 @@ public class LoginServlet extends HttpServlet implements LoginConstants {
 
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    if (JWKS_PATH.equals(req.getServletPath())) {
+      // all of the currently valid public keys in one cacheable document.
+      byte[] jwks = keyRing.jwks();
+      resp.setContentType("application/jwk-set+json");
+      resp.setHeader("Cache-Control", "public, max-age=" + JWKS_MAX_AGE_SECONDS);
+      resp.setContentLength(jwks.length);
+      resp.getOutputStream().write(jwks);
+      return;
+    }
     Map<String, String[]> parameterMap = req.getParameterMap();
     String[] kid = parameterMap.get("kid");
     if (haveNone(kid)) {
@@ -154,64 +170,107 @@ public class LoginServlet extends HttpServlet implements LoginConstants {
         List<Role> roles = roleQuery.getResultList();
         List<String> roleIds = roles.stream().map(Role::getId).map(String::valueOf).collect(Collectors.toList());
         String passwordHash = user.getSecurityInfo().getPasswordHash();
-        if (passwordHash == null || !checkPw(passwords[0], passwordHash)) {
-          if (passwordHash == null) {
-            log.error("User with null for password hash = " + user.getUserEmail());
-          }
+        if (passwordHash == null) {
+          log.error("User with null for password hash = " + user.getUserEmail());
           error(req, resp, USER_NAME_OR_PASSWORD_INCORRECT);
           return;
-        } else {
-          // generate JWT
-          KeyPair keyPair;
-          try {
-            final String lk = this.currentKey; // only access this once to avoid race condition!
-            keyPair = keys.get(lk);
-            String jws = Jwts.builder()
-                .setIssuer(ISSUER)
-                .setHeaderParam("kid", lk)
-                .setSubject(user.getUserEmail()) // can never be something not in our database
-                .claim(ServletUtils.NSLOGIN_ROLES, String.join(",",roleIds))
-                .signWith(keyPair.getPrivate())
-                .compact();
-            HttpSession session = req.getSession();
-            String returnPath = (String) session.getAttribute(X_LOGIN_RETURN_TO);
-            if (returnPath == null) {
-              returnPath = "/"; // main application assumed to be deployed as ROOT. avoid NPE below.
-            }
-            try {
-              URIBuilder builder = new URIBuilder(returnPath).addParameter(X_JWT_TOKEN, jws);
-              returnPath = builder.build().toString();
-            } catch (URISyntaxException e) {
-              e.printStackTrace();
-            }
-            session.removeAttribute(X_LOGIN_RETURN_TO);
-            resp.sendRedirect(returnPath);
-            return;
-          } catch (ExecutionException e) {
-            log.error(e);
-            // never show errors relating to keys/crypto
-            error(req, resp, USER_NAME_OR_PASSWORD_INCORRECT);
-            return;
-          }
         }
+        // Hashing is deliberately slow, hand it off to the bcrypt pool and release this thread back
+        // to the container. The session is obtained here because it can't be created once the
+        // response may have been committed.
+        HttpSession session = req.getSession();
+        AsyncContext async = req.startAsync();
+        async.setTimeout(loginTimeoutMillis);
+        PendingLogin pending = new PendingLogin(async, retryAfterSeconds);
+        try {
+          bcrypt.submit(() -> verifyAndIssueToken(pending, session, passwords[0], passwordHash, user, roleIds));
+        } catch (RejectedExecutionException e) {
+          log.warn("Login rejected, bcrypt queue is full ({} waiting)", bcrypt.getQueueDepth());
+          pending.busy();
+        }
+        return;
       }
     } else {
       // this is a request for a public key for verifying our token.
       try {
-        KeyPair keyPair = keys.get(kid[0]);
-        byte[] encoded = keyPair.getPublic().getEncoded();
-        resp.getOutputStream().write(encoded);
-      } catch (CacheLoader.InvalidCacheLoadException e){
-        resp.sendError(410, "Requested key:" + kid[0] + " is unknown or has expired.");
-        return;
+        PublicKey publicKey = keyRing.publicKey(kid[0]);
+        if (publicKey == null) {
+          resp.sendError(410, "Requested key:" + kid[0] + " is unknown or has expired.");
+          return;
+        }
+        resp.getOutputStream().write(publicKey.getEncoded());
+      } catch (IOException e) {
+        throw e;
       } catch (Exception e) {
         throw new ServletException(e);
       }
     }
   }
 
-  private boolean checkPw(String password, String passwordHash) {
-    return BCrypt.checkpw(password, passwordHash);
+  /**
+   * Runs on the bcrypt pool. Unless the container has given up on the request, every path out of here must
+   * either dispatch or complete the async context.
+   */
+  private void verifyAndIssueToken(PendingLogin pending, HttpSession session, String password,
+                                   String passwordHash, AppUser user, List<String> roleIds) {
+    if (pending.isAbandoned()) {
+      log.debug("Login for {} abandoned before its password was checked", user.getUserEmail());
+      return;
+    }
+    boolean verified = bcrypt.checkpw(password, passwordHash);
+    if (!pending.claim()) {
+      log.debug("Login for {} abandoned while its password was checked", user.getUserEmail());
+      return;
+    }
+    AsyncContext async = pending.getAsync();
+    try {
+      HttpServletRequest req = (HttpServletRequest) async.getRequest();
+      HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+      if (!verified) {
+        req.setAttribute("ERRORS", Collections.singletonList(USER_NAME_OR_PASSWORD_INCORRECT));
+        async.dispatch("/index.jsp");
+        return;
+      }
+      // generate JWT
+      KeyRing.ActiveKey signingKey = keyRing.current(); // only access this once to avoid race condition!
+      if (signingKey == null) {
+        log.error("No signing key available, is the key store reachable?");
+        // never show errors relating to keys/crypto
+        req.setAttribute("ERRORS", Collections.singletonList(USER_NAME_OR_PASSWORD_INCORRECT));
+        async.dispatch("/index.jsp");
+        return;
+      } else {
+        String jws = Jwts.builder()
+            .setIssuer(ISSUER)
+            .setHeaderParam("kid", signingKey.getKid())
+            .setSubject(user.getUserEmail()) // can never be something not in our database
+            .claim(ServletUtils.NSLOGIN_ROLES, String.join(",", roleIds))
+            .signWith(signingKey.getPrivateKey())
+            .compact();
+        String returnPath = (String) session.getAttribute(X_LOGIN_RETURN_TO);
+        if (returnPath == null) {
+          returnPath = "/"; // main application assumed to be deployed as ROOT. avoid NPE below.
+        }
+        try {
+          URIBuilder builder = new URIBuilder(returnPath).addParameter(X_JWT_TOKEN, jws);
+          returnPath = builder.build().toString();
+        } catch (URISyntaxException e) {
+          log.error("Unable to add the token to return path {}", returnPath, e);
+        }
+        session.removeAttribute(X_LOGIN_RETURN_TO);
+        resp.sendRedirect(returnPath);
+        async.complete();
+        return;
+      }
+    } catch (Exception e) {
+      log.error("Unexpected failure verifying login", e);
+      try {
+        ((HttpServletResponse) async.getResponse()).sendError(500);
+        async.complete();
+      } catch (IOException | IllegalStateException ignored) {
+        // nothing more we can do for this user.
+      }
+    }
   }
 
   @SuppressWarnings("SameParameterValue")
@@ -0,0 +1,98 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A login waiting for the {@link BcryptPool}. The container may give up on the request (a timeout, or the
+ * client going away) before the pool gets to it, after which the async context must not be used. Whichever
+ * of the hashing task and the container gets here first claims the response, and the other leaves it alone.
+ */
+class PendingLogin implements AsyncListener {
+
+  private final AsyncContext async;
+  private final int retryAfterSeconds;
+  private final AtomicBoolean claimed = new AtomicBoolean();
+
+  PendingLogin(AsyncContext async, int retryAfterSeconds) {
+    this.async = async;
+    this.retryAfterSeconds = retryAfterSeconds;
+    async.addListener(this);
+  }
+
+  /**
+   * @return true if the caller may respond and then complete or dispatch the async context, false if the
+   * request has been abandoned or answered already
+   */
+  boolean claim() {
+    return claimed.compareAndSet(false, true);
+  }
+
+  /**
+   * @return true if the request has been abandoned or answered, so there is no point hashing its password
+   */
+  boolean isAbandoned() {
+    return claimed.get();
+  }
+
+  AsyncContext getAsync() {
+    return async;
+  }
+
+  /**
+   * Tell the client to come back shortly, unless the response has been claimed already.
+   */
+  void busy() {
+    if (!claim()) {
+      return;
+    }
+    try {
+      HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+      resp.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+      resp.sendError(503, "Too many login attempts in progress, please try again shortly.");
+    } catch (IOException | IllegalStateException ignored) {
+      // nothing more we can do for this user.
+    }
+    async.complete();
+  }
+
+  @Override
+  public void onTimeout(AsyncEvent event) {
+    // still queued (or hashing) after the timeout, so the pool is too far behind
+    busy();
+  }
+
+  @Override
+  public void onError(AsyncEvent event) {
+    claim();
+  }
+
+  @Override
+  public void onComplete(AsyncEvent event) {
+    claim();
+  }
+
+  @Override
+  public void onStartAsync(AsyncEvent event) {
+  }
+}
@@ -22,7 +22,8 @@
  *   <li>Validates username/password against a database that stores users with password hashes and redirects
  *       back to the application with a header containing a JWT token. The app may manage this token as it
  *       sees fit or use the provided filter</li>
- *   <li>Responds with the public key corresponding to the key id passed back in the token</li>
+ *   <li>Responds with the public key corresponding to the key id passed back in the token, or with all
+ *       current public keys as a JSON Web Key Set at /jwks.json</li>
  * </ol>
  *
  * The JWT token returned contains a subject equal to the username, a random UUID key id and an issuer. It is signed
@@ -80,7 +81,9 @@
  * the weakest link. Without HTTPS this is very easily compromised by stealing cookies/tokens/etc, so HTTPS is
  * required!</strong></p>
  * <p></p>
+ * <p>Key pairs are held in a {@link com.needhamsoftware.nslogin.keyring.KeyRing} which by default is stored in the
+ * database so that multiple login nodes can share keys.</p>
  * <p> This login system provides zero user management facilities and zero new user creation facilities, and in fact
- * cannot on it's own ever write to your database (by design).</p>
+ * cannot on it's own ever write to your database (by design) other than to store its signing keys.</p>
  */
 package com.needhamsoftware.nslogin.servlet;
\ No newline at end of file
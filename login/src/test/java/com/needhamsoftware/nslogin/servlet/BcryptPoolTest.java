@@ -0,0 +1,144 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link BcryptPool} and {@link PendingLogin} as LoginServlet uses them, against a stub async context.
+ */
+public class BcryptPoolTest {
+
+  private final BcryptPool pool = new BcryptPool(1, 1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final CountDownLatch hashing = new CountDownLatch(1);
+
+  // what the stubs were asked to do
+  private final Map<String, String> headers = new HashMap<>();
+  private int status;
+  private int completions;
+  private AsyncListener listener;
+
+  @Before
+  public void occupyPool() throws Exception {
+    pool.submit(() -> {
+      hashing.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    assertTrue(hashing.await(5, TimeUnit.SECONDS));
+  }
+
+  @After
+  public void shutdown() {
+    release.countDown();
+    pool.shutdown();
+  }
+
+  @Test
+  public void testFullQueueAnswers503() {
+    pool.submit(() -> {
+    }); // waits in the only place in the queue
+    PendingLogin pending = new PendingLogin(async(), 2);
+    try {
+      pool.submit(() -> fail("rejected work must not run"));
+      fail();
+    } catch (RejectedExecutionException e) {
+      pending.busy();
+    }
+    assertEquals(503, status);
+    assertEquals("2", headers.get("Retry-After"));
+    assertEquals(1, completions);
+    assertEquals(1, pool.getRejectedCount());
+  }
+
+  @Test
+  public void testTimedOutLoginIsNotHashed() throws Exception {
+    PendingLogin pending = new PendingLogin(async(), 2);
+    AtomicInteger hashed = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(1);
+    pool.submit(() -> {
+      // as LoginServlet.verifyAndIssueToken starts
+      if (!pending.isAbandoned()) {
+        hashed.incrementAndGet();
+      }
+      done.countDown();
+    });
+    listener.onTimeout(null);
+    assertEquals(503, status);
+    assertEquals(1, completions);
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(0, hashed.get());
+    assertFalse(pending.claim()); // nor may it respond
+    assertEquals(1, completions);
+  }
+
+  private AsyncContext async() {
+    HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "setHeader":
+              headers.put((String) args[0], (String) args[1]);
+              break;
+            case "sendError":
+              status = (Integer) args[0];
+              break;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+          return null;
+        });
+    return (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[]{AsyncContext.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getResponse":
+              return response;
+            case "addListener":
+              listener = (AsyncListener) args[0];
+              return null;
+            case "complete":
+              completions++;
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.hibernate5.Hibernate5Module;
+import com.needhamsoftware.nslogin.model.TestThing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a page of TestThings as a response, and decoding it to a tree as a request body is read, in each of
+ * the {@link WireFormats}. Run with {@code gradle :rest:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatsBenchmark {
+
+  @Param({"100", "1000"})
+  public int things;
+
+  @Param({WireFormats.JSON, WireFormats.SMILE, WireFormats.CBOR})
+  public String format;
+
+  private ObjectMapper mapper;
+  private RestResponse response;
+  private byte[] encoded;
+
+  @Setup
+  public void setUp() throws IOException {
+    WireFormats formats = new WireFormats(setupObjectMapper(new ObjectMapper()),
+        setupObjectMapper(new ObjectMapper(new SmileFactory())),
+        setupObjectMapper(new ObjectMapper(new CBORFactory())));
+    mapper = formats.mapper(format);
+    response = new RestResponse();
+    response.setOk(true);
+    response.setNumFound((long) things);
+    Instant now = Instant.now();
+    for (int i = 0; i < things; i++) {
+      TestThing thing = new TestThing();
+      thing.setId((long) i + 1);
+      thing.setVersion(i % 7);
+      thing.setCreated(now.minusSeconds(i * 60));
+      thing.setModified(now);
+      thing.setaString("thing number " + i);
+      thing.setAnInt(i);
+      thing.setaDouble(i / 3.0);
+      thing.setAnInstant(now.plusMillis(i));
+      response.getResults().add(thing);
+    }
+    encoded = mapper.writeValueAsBytes(response);
+  }
+
+  /**
+   * As GuiceContextListener configures every format.
+   */
+  private static ObjectMapper setupObjectMapper(ObjectMapper mapper) {
+    Hibernate5Module hibernate = new Hibernate5Module();
+    hibernate.disable(Hibernate5Module.Feature.FORCE_LAZY_LOADING);
+    mapper.registerModule(hibernate);
+    mapper.findAndRegisterModules();
+    return mapper;
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return mapper.writeValueAsBytes(response);
+  }
+
+  @Benchmark
+  public JsonNode decode() throws IOException {
+    return mapper.readTree(encoded);
+  }
+}
@@ -20,11 +20,14 @@ import com.google.inject.persist.Transactional;
 import com.needhamsoftware.nslogin.AuthzException;
 import com.needhamsoftware.nslogin.model.Persisted;
 import com.needhamsoftware.nslogin.service.Filter;
+import com.needhamsoftware.nslogin.service.Keyset;
 import com.needhamsoftware.nslogin.service.impl.ObjectAlreadyHasIdException;
 import com.needhamsoftware.nslogin.service.impl.ObjectServiceImpl;
 
 import javax.inject.Inject;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * Wrapper to apply the guice specific transactional annotations.
@@ -54,6 +57,11 @@ public class ObjectServiceWrapper implements GuiceObjectService {
     return service.getFresh(clazz, identifier, privileged);
   }
 
+  @Override
+  public Long version(Class<? extends Persisted> clazz, Long identifier) {
+    return service.version(clazz, identifier);
+  }
+
   @Override
   public <T extends Persisted> List<T> list(Class<T> clazz, int start, int rows) throws AuthzException {
     return service.list(clazz, start, rows);
@@ -74,6 +82,48 @@ public class ObjectServiceWrapper implements GuiceObjectService {
     return service.list(clazz, start, rows, filters, sorts, privileged);
   }
 
+  @Override
+  public <T extends Persisted> List<T> list(Class<T> clazz, Keyset after, int rows, List<Filter> filters, List<String> sorts) throws AuthzException {
+    return service.list(clazz, after, rows, filters, sorts);
+  }
+
+  @Override
+  public <T extends Persisted> void expand(Class<T> clazz, List<T> objects, List<String> paths) {
+    service.expand(clazz, objects, paths);
+  }
+
+  @Override
+  public List<Persisted> listMembers(Class<? extends Persisted> clazz, Long id, String collection, Keyset after, int start, int rows) throws AuthzException {
+    return service.listMembers(clazz, id, collection, after, start, rows);
+  }
+
+  @Override
+  public Long countMembers(Class<? extends Persisted> clazz, Long id, String collection) throws AuthzException {
+    return service.countMembers(clazz, id, collection);
+  }
+
+  @Override
+  @Transactional(rollbackOn = {RuntimeException.class, AuthzException.class})
+  public boolean addMember(Class<? extends Persisted> clazz, Long id, String collection, Long memberId) throws AuthzException {
+    return service.addMember(clazz, id, collection, memberId);
+  }
+
+  @Override
+  @Transactional(rollbackOn = {RuntimeException.class, AuthzException.class})
+  public boolean removeMember(Class<? extends Persisted> clazz, Long id, String collection, Long memberId) throws AuthzException {
+    return service.removeMember(clazz, id, collection, memberId);
+  }
+
+  @Override
+  public List<Map<String, Object>> list(Class<? extends Persisted> clazz, int start, int rows, List<Filter> filters, List<String> sorts, List<String> fields) throws AuthzException {
+    return service.list(clazz, start, rows, filters, sorts, fields);
+  }
+
+  @Override
+  public <T extends Persisted> Stream<T> stream(Class<T> clazz, int start, int rows, List<Filter> filters, List<String> sorts) throws AuthzException {
+    return service.stream(clazz, start, rows, filters, sorts);
+  }
+
   @Override
   public Long count(Class<? extends Persisted> clazz, List<Filter> filters) throws AuthzException {
     return service.count(clazz, filters);
@@ -96,6 +146,12 @@ public class ObjectServiceWrapper implements GuiceObjectService {
     return service.update(persisted);
   }
 
+  @Override
+  @Transactional(rollbackOn = {RuntimeException.class, AuthzException.class})
+  public List<Persisted> save(List<? extends Persisted> objects) throws AuthzException {
+    return service.save(objects);
+  }
+
   @Override
   @Transactional
   public void delete(Class clazz, Long identifier) {
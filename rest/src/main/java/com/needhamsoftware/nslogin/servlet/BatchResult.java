@@ -0,0 +1,59 @@
+package com.needhamsoftware.nslogin.servlet;
+
+import com.needhamsoftware.nslogin.model.Notification;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome for one object of a batch PUT or POST, reported at the same index as the object was sent.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+class BatchResult {
+  private int index;
+  private boolean ok;
+  private Long id;
+  private Long version;
+  private List<Notification> messages = new ArrayList<>();
+
+  BatchResult(int index) {
+    this.index = index;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public boolean isOk() {
+    return ok;
+  }
+
+  public void setOk(boolean ok) {
+    this.ok = ok;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public Long getVersion() {
+    return version;
+  }
+
+  public void setVersion(Long version) {
+    this.version = version;
+  }
+
+  public List<Notification> getMessages() {
+    return messages;
+  }
+
+  public void setMessages(List<Notification> messages) {
+    this.messages = messages;
+  }
+
+}
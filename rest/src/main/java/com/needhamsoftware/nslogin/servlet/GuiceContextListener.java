@@ -17,6 +17,9 @@
 package com.needhamsoftware.nslogin.servlet;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.hibernate5.Hibernate5Module;
 import com.google.inject.*;
 import com.google.inject.matcher.AbstractMatcher;
 import com.google.inject.persist.PersistService;
@@ -29,18 +32,24 @@ import com.google.inject.spi.TypeListener;
 import com.needhamsoftware.nslogin.PersistenceUtil;
 import com.needhamsoftware.nslogin.guice.ObjectServiceWrapper;
 import com.needhamsoftware.nslogin.hibernate.HibernateUtil;
+import com.needhamsoftware.nslogin.metrics.HibernateCacheStats;
+import com.needhamsoftware.nslogin.metrics.MBeans;
 import com.needhamsoftware.nslogin.service.ActionService;
 import com.needhamsoftware.nslogin.service.MessageService;
 import com.needhamsoftware.nslogin.service.ObjectService;
 import com.needhamsoftware.nslogin.service.PermissionService;
 import com.needhamsoftware.nslogin.service.impl.ActionServiceImpl;
 import com.needhamsoftware.nslogin.service.impl.MessageServiceImpl;
+import com.needhamsoftware.nslogin.service.impl.ObjectServiceImpl;
 import com.needhamsoftware.nslogin.shiro.service.impl.ShiroPermissionServiceImpl;
 import com.needhamsoftware.nslogin.shiro.servlet.HibernateShiroWebModule;
 import com.needhamsoftware.nslogin.shiro.servlet.ShiroJWTAuthenticationFilter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 
+import javax.management.ObjectName;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.servlet.ServletContext;
@@ -51,8 +60,10 @@ import java.lang.reflect.Method;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -68,18 +79,38 @@ public class GuiceContextListener extends GuiceServletContextListener {
   private static ObjectService objectService;
   private ServletContext ctx;
   private Injector injector;
+  private final List<ObjectName> statsNames = new ArrayList<>();
 
   @Override
   public void contextInitialized(ServletContextEvent servletContextEvent) {
     ctx = servletContextEvent.getServletContext();
     super.contextInitialized(servletContextEvent);
     objectService.initSystem();
+    registerStats();
+  }
+
+  /**
+   * Publish the statistics of the object service, and for each second level cache region. Hibernate
+   * statistics are switched on here rather than with hibernate.generate_statistics, which would also log
+   * metrics for every session.
+   */
+  private void registerStats() {
+    statsNames.addAll(injector.getInstance(ObjectServiceImpl.class).registerStats(ctx.getContextPath()));
+    EntityManagerFactory entityManagerFactory = injector.getProvider(EntityManagerFactory.class).get();
+    Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    for (String region : statistics.getSecondLevelCacheRegionNames()) {
+      statsNames.add(MBeans.register("SecondLevelCache", ctx.getContextPath() + ":" + region,
+          new HibernateCacheStats(statistics, region)));
+    }
   }
 
   @SuppressWarnings("unchecked")
   @Override
   public void contextDestroyed(ServletContextEvent servletContextEvent) {
     log.info("Destroying GUICE context");
+    statsNames.forEach(MBeans::unregister);
+    statsNames.clear();
     super.contextDestroyed(servletContextEvent);
     EntityManagerFactory entityManagerFactory = injector.getProvider(EntityManagerFactory.class).get();
     if (entityManagerFactory.isOpen()) {
@@ -120,7 +151,11 @@ public class GuiceContextListener extends GuiceServletContextListener {
               bind(ObjectService.class).to(ObjectServiceWrapper.class);
               bind(MessageService.class).to(MessageServiceImpl.class);
               bind(PermissionService.class).to(ShiroPermissionServiceImpl.class);
-              bind(ObjectMapper.class).toProvider(setupObjectMapper());
+              ObjectMapper mapper = setupObjectMapper(new ObjectMapper());
+              bind(ObjectMapper.class).toInstance(mapper);
+              bind(WireFormats.class).toInstance(new WireFormats(mapper,
+                  setupObjectMapper(new ObjectMapper(new SmileFactory())),
+                  setupObjectMapper(new ObjectMapper(new CBORFactory()))));
               bind(ActionService.class).to(ActionServiceImpl.class);
 
               // do our static injections before we serve up any requests
@@ -165,21 +200,25 @@ public class GuiceContextListener extends GuiceServletContextListener {
               bindListener(typeMatcher, persistServiceListener);
             }
 
-            private Provider<ObjectMapper> setupObjectMapper() {
-              ObjectMapper mapper = new ObjectMapper();
+            // every format must be configured alike, so that entities mean the same thing in all of them
+            private ObjectMapper setupObjectMapper(ObjectMapper mapper) {
+              // associations that were not loaded (see expand= in RestServlet) are written as null rather
+              // than loaded one object at a time during serialization
+              Hibernate5Module hibernate = new Hibernate5Module();
+              hibernate.disable(Hibernate5Module.Feature.FORCE_LAZY_LOADING);
+              mapper.registerModule(hibernate);
               mapper.findAndRegisterModules();
-              return new Provider<>() {
-                @Override
-                public ObjectMapper get() {
-                  return mapper;
-                }
-              };
+              return mapper;
             }
 
             private Map<String, String> authFilterParams() {
               Map<String,String> params = new HashMap<>();
-              params.put("keyFetchUrl", "http://localhost:8080/login/service?kid=");
+              // either fetch all current keys in one request, or one at a time via keyFetchUrl
+              params.put("jwksUrl", "http://localhost:8080/login/jwks.json");
+              //params.put("keyFetchUrl", "http://localhost:8080/login/service?kid=");
               params.put("redirectToLogin", "false");
+              // API only deployments can skip sessions entirely, but web socket notifications need them
+              //params.put("stateless", "true");
               return params;
             }
           },
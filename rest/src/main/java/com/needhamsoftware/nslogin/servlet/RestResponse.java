@@ -12,6 +12,7 @@ class RestResponse {
   private List<Notification> messages = new ArrayList<>();
 
   private Long numFound;
+  private String next;
 
   public boolean isOk() {
     return ok;
@@ -46,4 +47,12 @@ class RestResponse {
     this.numFound = numFound;
   }
 
+  public String getNext() {
+    return next;
+  }
+
+  public void setNext(String next) {
+    this.next = next;
+  }
+
 }
@@ -1,26 +1,39 @@
 package com.needhamsoftware.nslogin.servlet;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.needhamsoftware.nslogin.AuthzException;
 import com.needhamsoftware.nslogin.FieldUtil;
+import com.needhamsoftware.nslogin.metrics.MBeans;
 import com.needhamsoftware.nslogin.model.ActionInvocation;
+import com.needhamsoftware.nslogin.model.Notification;
 import com.needhamsoftware.nslogin.model.Persisted;
 import com.needhamsoftware.nslogin.model.RestFilterEnable;
 import com.needhamsoftware.nslogin.model.Validatable;
 import com.needhamsoftware.nslogin.service.Filter;
+import com.needhamsoftware.nslogin.service.Keyset;
 import com.needhamsoftware.nslogin.service.ObjectService;
+import org.apache.commons.lang3.reflect.FieldUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.shiro.SecurityUtils;
+import org.hibernate.Hibernate;
 import org.hibernate.exception.ConstraintViolationException;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.management.ObjectName;
+import javax.persistence.EntityNotFoundException;
 import javax.persistence.OptimisticLockException;
 import javax.persistence.PersistenceException;
 import javax.servlet.ServletException;
-import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -28,43 +41,94 @@ import javax.validation.ValidationException;
 import java.beans.BeanInfo;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.stream.Stream;
 
 @SuppressWarnings("CdiInjectionPointsInspection")
 @javax.servlet.annotation.WebServlet(name = "RestServlet")
 @Singleton
 public class RestServlet extends javax.servlet.http.HttpServlet {
   private static Logger log = LogManager.getLogger();
+  // below about a packet there's little to gain and compression costs more than it saves
+  private static final int COMPRESSION_THRESHOLD = 1024;
+  private static final String RESPONSE_FORMAT = RestServlet.class.getName() + ".format";
 
   @Inject
   private ObjectService objectService;
   @Inject
   private ObjectMapper mapper;
+  @Inject
+  private WireFormats formats;
 
   private FieldUtil util = new FieldUtil();
+  private StaticResources scripts;
+  private int compressionThreshold;
+  private ObjectName compressionStatsName;
+
+  @Override
+  public void init() throws ServletException {
+    super.init();
+    scripts = new StaticResources(getServletContext(), "/js/");
+    String threshold = getInitParameter("compressionThreshold");
+    compressionThreshold = threshold != null ? Integer.parseInt(threshold) : COMPRESSION_THRESHOLD;
+    compressionStatsName = MBeans.register("ResponseCompression", getServletContext().getContextPath(),
+        CompressingResponse.stats());
+  }
+
+  @Override
+  public void destroy() {
+    MBeans.unregister(compressionStatsName);
+    super.destroy();
+  }
+
+  @Override
+  protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    String pathInfo = req.getPathInfo();
+    if (pathInfo != null && pathInfo.startsWith("/js/")) {
+      super.service(req, resp); // StaticResources has its own (cached) compression
+      return;
+    }
+    req.setAttribute(RESPONSE_FORMAT, formats.negotiate(req));
+    resp.addHeader("Vary", "Accept");
+    CompressingResponse compressing = new CompressingResponse(req, resp, compressionThreshold);
+    try {
+      super.service(req, compressing);
+    } finally {
+      compressing.finish();
+    }
+  }
 
   protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     String pathInfo = req.getPathInfo();
     ObjectReference ref = new ObjectReference(pathInfo);
-    // TODO: Multi-Post (more than one object at a time)
     if (ref.isValid()) {
       Persisted p;
       try {
-        String JSOG;
-        try(java.util.Scanner s = new java.util.Scanner(req.getInputStream())) {
-          JSOG = readAll(s);
+        // parse once, then validate and bind from the same tree
+        JsonNode tree;
+        try (InputStream body = req.getInputStream()) {
+          tree = formats.reader(req).readTree(body);
+        }
+        if (tree instanceof ArrayNode && ref.getId() == null) {
+          saveBatch(req, resp, ref, (ArrayNode) tree, false);
+          return;
+        }
+        if (!(tree instanceof ObjectNode)) {
+          Messages.DO.sendErrorMessage("Request body must be a JSON object");
+          handleError(req, resp, 400);
+          return;
         }
-        Map<String,Object> m = mapper.readValue(JSOG, new TypeReference<Map<String, Object>>() {});
         if (Validatable.class.isAssignableFrom(ref.getType())) {
-          //noinspection unchecked
-          ((Validatable) ref.getType().getConstructor().newInstance()).validateMap(m);
+          ((Validatable) persistedType(ref).getConstructor().newInstance()).validateTree((ObjectNode) tree, mapper);
         }
         if (Messages.DO.errorCount() != 0) {
-          handleError(resp, 400);
+          handleError(req, resp, 400);
           return;
         }
-        p = (Persisted) mapper.readValue(JSOG, Class.forName(ref.getType().getCanonicalName()));
+        p = (Persisted) mapper.treeToValue(tree, persistedType(ref));
         Long id = ref.getId();
         if (id != null) {
           p.setId(id);
@@ -75,41 +139,43 @@ public class RestServlet extends javax.servlet.http.HttpServlet {
           ((Validatable) p).validate();
         }
         if (Messages.DO.errorCount() != 0) {
-          handleError(resp, 400);
+          handleError(req, resp, 400);
         } else {
           invokeActions(req,resp,p);
           Persisted updated = objectService.update(p);
-          success(resp, null);
+          success(req, resp, null);
         }
-      } catch (ClassNotFoundException | ClassCastException e) {
+      } catch (ClassCastException e) {
         resp.addHeader("NSL-Unknown-Type", ref.toString());
         e.printStackTrace();
         Messages.DO.exception(e, log);
-        handleError(resp, 400);
+        handleError(req, resp, 400);
       } catch (OptimisticLockException e) {
         resp.addHeader("NSL-Optimistic-Lock-Failure", ref.toString());
         Messages.DO.sendErrorMessage("Someone (or something) has made a conflicting change while you were working. Please refresh the page to load the new edits and retry your submission.");
-        handleError(resp, 400);
+        handleError(req, resp, 400);
       } catch (AuthzException e) {
         resp.addHeader("NSL-Authz-Failure", SecurityUtils.getSubject().toString());
         log.debug(e);
         Messages.DO.sendErrorMessage("Insufficient Access Rights");
-        handleError(resp, 403);
+        handleError(req, resp, 403);
       } catch (Exception e) {
         resp.addHeader("NSL-Unexpected-Exception", e.getMessage() + "(" + ref + ")");
         Messages.DO.sendErrorMessage("Internal Error:" + e.getMessage());
         log.error("Unexpected Exception!", e);
-        handleError(resp,500);
+        handleError(req, resp,500);
       }
     }
   }
 
-  private String readAll(Scanner s) {
-    return s.useDelimiter("\\A").hasNext() ? s.next() : "";
+  private void handleError(HttpServletRequest req, HttpServletResponse resp, int code) throws IOException {
+    String format = responseFormat(req);
+    ServletUtils.handleError(resp, code, formats.mapper(format), format);
   }
 
-  private void handleError(HttpServletResponse resp, int code) throws IOException {
-    ServletUtils.handleError(resp, code, mapper);
+  private static String responseFormat(HttpServletRequest req) {
+    String format = (String) req.getAttribute(RESPONSE_FORMAT);
+    return format != null ? format : WireFormats.JSON;
   }
 
   @Override
@@ -117,24 +183,13 @@ public class RestServlet extends javax.servlet.http.HttpServlet {
     try {
       String pathInfo = req.getPathInfo();
       if (pathInfo.startsWith("/js/")) {
-        String contextPath = getServletContext().getRealPath(File.separator);
-
-        File jsFile = new File(contextPath, pathInfo);
-        resp.setContentType("text/javascript");
-        resp.setContentLength((int) jsFile.length());
-
-        FileInputStream fileInputStream = new FileInputStream(jsFile);
-        OutputStream respOutputStream = resp.getOutputStream();
-        int bytes;
-        while ((bytes = fileInputStream.read()) != -1) {
-          respOutputStream.write(bytes);
-        }
+        scripts.serve(pathInfo, req, resp);
         return;
       }
       ObjectReference ref = new ObjectReference(pathInfo);
       if (!ref.isValid()) {
         Messages.DO.sendErrorMessage("Invalid reference:" + ref);
-        handleError(resp, 400);
+        handleError(req, resp, 400);
         return;
       }
       Set<String> params = req.getParameterMap().keySet();
@@ -152,47 +207,191 @@ public class RestServlet extends javax.servlet.http.HttpServlet {
       // END injection attack protection.
 
       if (ref.isValid()) {
+        // the browser may keep a copy, but must check with us (and our ETag) before using it
+        resp.setHeader("Cache-Control", "private, no-cache");
+        List<String> expand = parseList(req.getParameter("expand"));
+        if (ref.getCollection() != null) {
+          listMembers(req, resp, ref);
+          return;
+        }
         if (ref.getId() != null) {
+          boolean acting = hasActions(req);
+          if (!acting && expand.isEmpty() && req.getHeader("If-None-Match") != null) {
+            // the version column is enough to know the client is up to date, don't load the object. Not so
+            // when other objects are expanded into it, their versions don't change with its version.
+            Long version = objectService.version(persistedType(ref), ref.getId());
+            if (version != null && notModified(req, resp, etag(ref.getType(), ref.getId(), version))) {
+              return;
+            }
+          }
           @SuppressWarnings("unchecked")
           Persisted obj = objectService.get(ref.getType(), ref.getId());
+          if (obj != null) {
+            expand(ref, Collections.singletonList(obj), expand);
+          }
           invokeActions(req,resp,obj);
-          success(resp, 1L, obj);
+          if (obj != null && !acting) {
+            String etag = expand.isEmpty() ? etag(ref.getType(), obj.getId(), obj.getVersion()) :
+                etag(ref.getType(), Collections.singletonList(obj), 1L, null, expand);
+            if (notModified(req, resp, etag)) {
+              return;
+            }
+          }
+          success(req, resp, 1L, obj);
         } else {
           String startParam = req.getParameter("start");
           String rowsParam = req.getParameter("rows");
           int start = startParam != null ? Integer.parseInt(startParam) : 0;
           int rows = rowsParam != null ? Integer.parseInt(rowsParam) : 0;
+          String countParam = req.getParameter("count");
+          if ("only".equals(countParam)) {
+            // lets a client show a page first and fetch the (slower) total afterwards
+            @SuppressWarnings("unchecked")
+            Long numFound = objectService.count(ref.getType(), filters);
+            success(req, resp, numFound);
+            return;
+          }
+          boolean counting = !"false".equals(countParam);
           String sortStr = req.getParameter("sort");
           List<String> sorts = null;
           if (sortStr != null) {
             sorts = parseSorts(sortStr, ref);
           }
+          String cursor = req.getParameter("cursor");
+          String fieldsStr = req.getParameter("fields");
+          boolean streaming = "true".equals(req.getParameter("stream"));
+          if (!expand.isEmpty() && (fieldsStr != null || streaming)) {
+            Messages.DO.sendErrorMessage("expand can not be combined with fields or stream");
+            handleError(req, resp, 400);
+            return;
+          }
+          if (fieldsStr != null) {
+            if (cursor != null || streaming) {
+              Messages.DO.sendErrorMessage("fields can not be combined with cursor or stream");
+              handleError(req, resp, 400);
+              return;
+            }
+            List<String> fields;
+            try {
+              fields = parseFields(fieldsStr, ref);
+            } catch (IllegalArgumentException e) {
+              Messages.DO.sendErrorMessage(e.getMessage());
+              handleError(req, resp, 400);
+              return;
+            }
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> objects = objectService.list(ref.getType(), start, rows, filters, sorts, fields);
+            @SuppressWarnings("unchecked")
+            Long numFound = counting ? objectService.count(ref.getType(), filters) : null;
+            if (notModified(req, resp, fieldsEtag(ref.getType(), objects, numFound))) {
+              return;
+            }
+            success(req, resp, numFound, objects.toArray());
+            return;
+          }
+          if (cursor != null) {
+            // keyset paging, an empty cursor requests the first page
+            Keyset after;
+            try {
+              after = cursor.isEmpty() ? null : Keyset.decode(cursor, persistedType(ref), sorts);
+            } catch (IllegalArgumentException e) {
+              Messages.DO.sendErrorMessage(e.getMessage());
+              handleError(req, resp, 400);
+              return;
+            }
+            @SuppressWarnings("unchecked")
+            List<Persisted> objects = objectService.list(ref.getType(), after, rows, filters, sorts);
+            expand(ref, objects, expand);
+            @SuppressWarnings("unchecked")
+            Long numFound = counting ? objectService.count(ref.getType(), filters) : null;
+            String next = null;
+            if (rows > 0 && objects.size() == rows) {
+              next = Keyset.after(objects.get(objects.size() - 1), sorts).encode();
+            }
+            if (notModified(req, resp, etag(ref.getType(), objects, numFound, next, expand))) {
+              return;
+            }
+            success(req, resp, numFound, next, objects.toArray());
+            return;
+          }
+          if (streaming) {
+            streamResults(resp, ref, start, rows, filters, sorts, counting);
+            return;
+          }
           @SuppressWarnings("unchecked")
           List<Persisted> objects = objectService.list(ref.getType(), start, rows, filters, sorts);
-          @SuppressWarnings("unchecked")
-          Long numFound = objectService.count(ref.getType(), filters);
-          success(resp, numFound, objects.toArray());
+          expand(ref, objects, expand);
+          Long numFound = null;
+          if (counting) {
+            if (rows > 0 && objects.size() < rows && (objects.size() > 0 || start == 0)) {
+              // the page reached the end of the list, so it tells us the total without a second query
+              numFound = (long) (start + objects.size());
+            } else {
+              numFound = objectService.count(persistedType(ref), filters);
+            }
+          }
+          if (notModified(req, resp, etag(ref.getType(), objects, numFound, null, expand))) {
+            return;
+          }
+          success(req, resp, numFound, objects.toArray());
         }
       } else {
         log.error("invalid object reference: " + ref);
-        handleError(resp, 404);
+        handleError(req, resp, 404);
       }
     } catch (NumberFormatException nfe) {
       Messages.DO.exception(nfe, log);
-      handleError(resp, 400);
+      handleError(req, resp, 400);
       log.debug("NFE:",nfe);
+    } catch (IllegalArgumentException e) {
+      Messages.DO.sendErrorMessage(e.getMessage());
+      handleError(req, resp, 400);
+      log.debug("Bad request:", e);
+    } catch (EntityNotFoundException e) {
+      Messages.DO.sendErrorMessage(e.getMessage());
+      handleError(req, resp, 404);
     } catch(SecurityException | AuthzException e) {
       log.debug(e);
       Messages.DO.sendErrorMessage("Insufficient Access Rights");
-      handleError(resp, 403);
+      handleError(req, resp, 403);
     } catch (Exception e) {
       e.printStackTrace();
       Messages.DO.exception(e, log);
-      handleError(resp, 500);
+      handleError(req, resp, 500);
       log.debug("OOPS:", e);
     }
   }
 
+  private static List<String> parseList(String param) {
+    if (param == null || param.trim().isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<String> result = new ArrayList<>();
+    for (String item : param.split(",")) {
+      result.add(item.trim());
+    }
+    return result;
+  }
+
+  /**
+   * Load the associations requested with expand= for the objects in a page, other associations are
+   * left out of the response.
+   */
+  @SuppressWarnings("unchecked")
+  private void expand(ObjectReference ref, List<Persisted> objects, List<String> expand) {
+    if (!expand.isEmpty()) {
+      objectService.expand(ref.getType(), objects, expand);
+    }
+  }
+
+  /**
+   * The type named by the request, so that it can be passed where a persistent type is expected without an
+   * unchecked conversion of the raw class.
+   */
+  private static Class<? extends Persisted> persistedType(ObjectReference ref) {
+    return ((Class<?>) ref.getType()).asSubclass(Persisted.class);
+  }
+
   /**
    * Parse the supplied sort spec. Sorts must be separated by '|' characters, and contain a valid name
    * of a property on the class referenced, followed by whitespace followed by either 'asc' or 'desc'.
@@ -232,97 +431,483 @@ public class RestServlet extends javax.servlet.http.HttpServlet {
     return result;
   }
 
+  /**
+   * Parse a comma separated list of fields to return. Each must be a property on the class referenced
+   * that is visible in json. {@link ObjectService#list(Class, int, int, List, List, List)} further
+   * restricts these to fields that are columns on the entity.
+   *
+   * @param fields A string containing field names
+   * @param ref    a reference to a class.
+   * @return the list of field names without whitespace
+   */
+  private List<String> parseFields(String fields, ObjectReference ref) {
+    List<String> result = new ArrayList<>(4);
+    PropertyDescriptor[] props;
+    try {
+      props = Introspector.getBeanInfo(ref.getType()).getPropertyDescriptors();
+    } catch (IntrospectionException e) {
+      throw new RuntimeException(e);
+    }
+    for (String field : fields.split(",")) {
+      String name = field.trim();
+      boolean isProp = Arrays.stream(props)
+          .anyMatch((d) -> d.getName().equals(name) && d.getReadMethod() != null &&
+              !d.getReadMethod().isAnnotationPresent(JsonIgnore.class));
+      if (!isProp) {
+        throw new IllegalArgumentException("Field " + name + " is invalid (it does not appear to be a property on " +
+            ref.getType().getSimpleName() + ")");
+      }
+      if (!result.contains(name)) {
+        result.add(name);
+      }
+    }
+    return result;
+  }
+
   @Override
   protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     String pathInfo = req.getPathInfo();
     ObjectReference ref = new ObjectReference(pathInfo);
-    // TODO: multi-put
+    if (ref.isValid() && ref.getCollection() != null) {
+      changeMember(req, resp, ref, true);
+      return;
+    }
     if (ref.isValid()) {
       if (ref.getId() != null) {
         Messages.DO.sendErrorMessage("ID must not be specified for put operations");
-        handleError(resp, 400);
+        handleError(req, resp, 400);
         log.error("Id sent to PUT");
         return;
       }
       Persisted p;
       try {
-        Class<?> valueType = Class.forName(ref.getType().getCanonicalName());
-        ServletInputStream inputStream = req.getInputStream();
-        p = (Persisted) mapper.readValue(inputStream, valueType);
+        JsonNode tree;
+        try (InputStream body = req.getInputStream()) {
+          tree = formats.reader(req).readTree(body);
+        }
+        if (tree instanceof ArrayNode) {
+          saveBatch(req, resp, ref, (ArrayNode) tree, true);
+          return;
+        }
+        p = (Persisted) mapper.treeToValue(tree, persistedType(ref));
         if (p instanceof Validatable && !((Validatable)p).isValidated()) {
           ((Validatable) p).validate();
         }
         if (Messages.DO.errorCount() != 0) {
-          handleError(resp, 400);
+          handleError(req, resp, 400);
         } else {
           invokeActions(req,resp,p);
           objectService.insert(p);
-          success(resp, null);
+          success(req, resp, null);
         }
-      } catch (ClassNotFoundException | ClassCastException e) {
+      } catch (ClassCastException e) {
         e.printStackTrace();
         Messages.DO.exception(e, log);
-        handleError(resp, 400);
+        handleError(req, resp, 400);
       } catch (ValidationException e) {
         Messages.DO.sendErrorMessage(e.getMessage());
-        handleError(resp, 400);
+        handleError(req, resp, 400);
       } catch (PersistenceException e) {
         // one time hack, if we get more of these invest in a generic solution.
         Throwable cause = e.getCause().getCause();
         if (cause instanceof ConstraintViolationException) {
           Messages.DO.sendErrorMessage(ref.getType().getSimpleName() + " exists");
         }
-        handleError(resp, 409);
+        handleError(req, resp, 409);
       } catch (AuthzException e) {
         log.debug(e);
         Messages.DO.sendErrorMessage("Insufficient Access Rights");
-        handleError(resp, 403);
+        handleError(req, resp, 403);
       } catch (Exception e) {
         e.printStackTrace();
         Messages.DO.exception(e, log);
-        handleError(resp, 500);
+        handleError(req, resp, 500);
       }
     }
 
   }
 
-  private void success(HttpServletResponse resp, Long numFound, Object... objs) throws IOException {
+  /**
+   * Write a list of results as they are read from the database, for lists too large to hold in memory
+   * (and then again as a string, and again as bytes) like {@link #success}. Once the first result is written
+   * the status can no longer be changed, so the results are followed rather than preceded by "ok", which is
+   * false if reading or serializing a result failed. The response is still well formed JSON in that case,
+   * since each result is serialized to a buffer and only copied to the response if that succeeds. Clients
+   * must check "ok" before trusting the results. Streamed responses are always json whatever the Accept header,
+   * since the error handling above relies on splicing json text.
+   */
+  @SuppressWarnings("unchecked")
+  private void streamResults(HttpServletResponse resp, ObjectReference ref, int start, int rows,
+                             List<Filter> filters, List<String> sorts, boolean counting)
+      throws IOException, AuthzException {
+    // permission and sort problems surface here, before anything is written
+    Stream<Persisted> objects = objectService.stream(ref.getType(), start, rows, filters, sorts);
     resp.setContentType("application/json");
+    ServletOutputStream out = resp.getOutputStream();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    boolean ok = true;
+    int found = 0;
+    out.print("{\"results\":[");
+    try (Stream<Persisted> closing = objects;
+         SequenceWriter results = mapper.writer().writeValues(buffer)) {
+      Iterator<Persisted> iterator = closing.iterator();
+      while (iterator.hasNext()) {
+        results.write(iterator.next()); // flushes to the buffer
+        if (found++ > 0) {
+          out.write(',');
+        }
+        buffer.writeTo(out);
+        buffer.reset();
+      }
+    } catch (JsonProcessingException | PersistenceException e) {
+      log.error("Failed after streaming " + found + " results", e);
+      Messages.DO.sendErrorMessage("Internal Error:" + e.getMessage());
+      ok = false;
+    }
+    Long numFound = null;
+    if (ok && counting) {
+      numFound = rows > 0 && found == rows ? objectService.count(ref.getType(), filters) : (long) (start + found);
+    }
+    Map<String, Object> trailer = new LinkedHashMap<>();
+    trailer.put("messages", Messages.DO.getErrorMessages());
+    trailer.put("numFound", numFound);
+    trailer.put("ok", ok);
+    byte[] json = mapper.writeValueAsBytes(trailer);
+    out.print("],");
+    out.write(json, 1, json.length - 1); // the trailer's fields continue the object opened above
+    out.flush();
+  }
+
+  private void success(HttpServletRequest req, HttpServletResponse resp, Long numFound, Object... objs) throws IOException {
+    success(req, resp, numFound, null, objs);
+  }
+
+  private void success(HttpServletRequest req, HttpServletResponse resp, Long numFound, String next, Object... objs) throws IOException {
+    String format = responseFormat(req);
+    resp.setContentType(format);
     RestResponse rr = new RestResponse();
     rr.setOk(true);
     rr.getResults().addAll(Arrays.asList(objs));
     rr.getMessages().addAll(Messages.DO.getErrorMessages());
     rr.setNumFound(numFound);
-    // if we don't do this sad, wasteful string writer, we loose any opportunity
-    // to set the error code in the event of an exception during serialization. :(
-    StringWriter w = new StringWriter();
-    mapper.writeValue(w, rr);
-    ServletOutputStream out = resp.getOutputStream();
-    out.print(w.toString());
+    rr.setNext(next);
+    // serialize completely before writing so that we can still set the error code in the event of an
+    // exception during serialization, but straight to bytes with no intermediate String.
+    byte[] body = formats.mapper(format).writeValueAsBytes(rr);
+    resp.setContentLength(body.length);
+    resp.getOutputStream().write(body);
   }
 
   @Override
   protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    ObjectReference ref = new ObjectReference(req.getPathInfo());
+    if (ref.isValid() && ref.getCollection() != null) {
+      changeMember(req, resp, ref, false);
+      return;
+    }
     super.doDelete(req, resp);
   }
 
+  /**
+   * GET Type/id/collection pages through the members of a collection by start and rows, or by cursor
+   * (empty for the first page) as for lists. Large collections can be read without loading them whole.
+   */
+  private void listMembers(HttpServletRequest req, HttpServletResponse resp, ObjectReference ref)
+      throws IOException, AuthzException {
+    if (ref.getId() == null || ref.getMemberId() != null) {
+      Messages.DO.sendErrorMessage("Members are listed with Type/id/collection");
+      handleError(req, resp, 400);
+      return;
+    }
+    String startParam = req.getParameter("start");
+    String rowsParam = req.getParameter("rows");
+    int start = startParam != null ? Integer.parseInt(startParam) : 0;
+    int rows = rowsParam != null ? Integer.parseInt(rowsParam) : 10;
+    String cursor = req.getParameter("cursor");
+    Keyset after = null;
+    if (cursor != null && !cursor.isEmpty()) {
+      after = Keyset.decode(cursor, persistedType(ref), null);
+      start = 0;
+    }
+    @SuppressWarnings("unchecked")
+    List<Persisted> members = objectService.listMembers(ref.getType(), ref.getId(), ref.getCollection(), after, start, rows);
+    @SuppressWarnings("unchecked")
+    Long numFound = "false".equals(req.getParameter("count")) ? null :
+        objectService.countMembers(ref.getType(), ref.getId(), ref.getCollection());
+    String next = null;
+    if (cursor != null && rows > 0 && members.size() == rows) {
+      next = Keyset.after(members.get(members.size() - 1), null).encode();
+    }
+    if (notModified(req, resp, etag(ref.getType(), members, numFound, next, Collections.emptyList()))) {
+      return;
+    }
+    success(req, resp, numFound, next, members.toArray());
+  }
+
+  /**
+   * PUT or DELETE Type/id/collection/memberId adds or removes one member of a many to many collection,
+   * touching only the join table.
+   */
+  @SuppressWarnings("unchecked")
+  private void changeMember(HttpServletRequest req, HttpServletResponse resp, ObjectReference ref, boolean add)
+      throws IOException {
+    if (ref.getId() == null || ref.getMemberId() == null) {
+      Messages.DO.sendErrorMessage("Members are " + (add ? "added" : "removed") + " with Type/id/collection/memberId");
+      handleError(req, resp, 400);
+      return;
+    }
+    try {
+      boolean changed = add ?
+          objectService.addMember(ref.getType(), ref.getId(), ref.getCollection(), ref.getMemberId()) :
+          objectService.removeMember(ref.getType(), ref.getId(), ref.getCollection(), ref.getMemberId());
+      if (!changed) {
+        Messages.DO.sendInfoMessage(ref.getMemberId() + (add ? " was already" : " was not") + " in " +
+            ref.getCollection());
+      }
+      success(req, resp, null);
+    } catch (IllegalArgumentException e) {
+      Messages.DO.sendErrorMessage(e.getMessage());
+      handleError(req, resp, 400);
+    } catch (EntityNotFoundException e) {
+      Messages.DO.sendErrorMessage(e.getMessage());
+      handleError(req, resp, 404);
+    } catch (SecurityException | AuthzException e) {
+      log.debug(e);
+      Messages.DO.sendErrorMessage("Insufficient Access Rights");
+      handleError(req, resp, 403);
+    } catch (Exception e) {
+      Messages.DO.exception(e, log);
+      handleError(req, resp, 500);
+    }
+  }
+
   private void invokeActions(HttpServletRequest req, HttpServletResponse resp, Persisted p) throws IOException {
     @SuppressWarnings("unchecked")
     List<ActionInvocation> invocations = (List<ActionInvocation>) req.getAttribute("NS_ACTION");
     for (ActionInvocation invocation : invocations) {
       if (invocation != null) {
-        invocation.getObjectsActedUpon().add(p);
-        try {
-          invocation.prePersist();
-        } catch (ValidationException e) {
-          if (Messages.DO.errorCount() == 0) {
-            Messages.DO.sendErrorMessage(e.getMessage());
+        prePersist(invocation, p);
+        if (Messages.DO.errorCount() > 0) {
+          handleError(req, resp, 400);
+        }
+      }
+    }
+  }
+
+  private boolean hasActions(HttpServletRequest req) {
+    @SuppressWarnings("unchecked")
+    List<ActionInvocation> invocations = (List<ActionInvocation>) req.getAttribute("NS_ACTION");
+    return invocations != null && invocations.stream().anyMatch(Objects::nonNull);
+  }
+
+  /**
+   * Weak because the response also carries messages for the user, but the object itself only changes
+   * when its version does.
+   */
+  private static String etag(Class<?> type, Long id, long version) {
+    return "W/\"" + type.getSimpleName() + "-" + id + "-" + version + "\"";
+  }
+
+  /**
+   * A list is unchanged if the same objects at the same versions are in the same order, with the same
+   * objects at the same versions expanded into them, and the rest of the response is the same.
+   */
+  private static String etag(Class<?> type, List<Persisted> objects, Long numFound, String next,
+                             List<String> expand) {
+    Hasher hasher = Hashing.murmur3_128().newHasher()
+        .putString(type.getName(), StandardCharsets.UTF_8)
+        .putLong(numFound == null ? -1 : numFound)
+        .putString(next == null ? "" : next, StandardCharsets.UTF_8)
+        .putString(String.join(",", expand), StandardCharsets.UTF_8);
+    for (Persisted p : objects) {
+      hasher.putLong(p.getId()).putLong(p.getVersion());
+      for (String path : expand) {
+        putExpanded(hasher, p, path);
+      }
+    }
+    return "W/\"" + hasher.hash() + "\"";
+  }
+
+  /**
+   * Hash the ids and versions of the objects found by following a dotted path of associations, which
+   * {@link ObjectService#expand} has already loaded.
+   */
+  private static void putExpanded(Hasher hasher, Persisted holder, String path) {
+    int dot = path.indexOf('.');
+    Object value;
+    try {
+      value = FieldUtils.readField(Hibernate.unproxy(holder), dot < 0 ? path : path.substring(0, dot), true);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+    Collection<?> associated = value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value);
+    hasher.putInt(associated.size());
+    for (Object o : associated) {
+      if (o == null) {
+        hasher.putLong(-1);
+        continue;
+      }
+      Persisted p = (Persisted) o;
+      hasher.putLong(p.getId()).putLong(p.getVersion());
+      if (dot >= 0) {
+        putExpanded(hasher, p, path.substring(dot + 1));
+      }
+    }
+  }
+
+  /**
+   * Projected rows carry no version unless it was asked for, so the values themselves are hashed.
+   */
+  private static String fieldsEtag(Class<?> type, List<Map<String, Object>> rows, Long numFound) {
+    Hasher hasher = Hashing.murmur3_128().newHasher()
+        .putString(type.getName(), StandardCharsets.UTF_8)
+        .putLong(numFound == null ? -1 : numFound);
+    for (Map<String, Object> row : rows) {
+      hasher.putString(String.valueOf(row), StandardCharsets.UTF_8);
+    }
+    return "W/\"" + hasher.hash() + "\"";
+  }
+
+  /**
+   * Set the ETag and, if the client already has this version (If-None-Match), answer 304.
+   *
+   * @return true if the response is complete
+   */
+  private static boolean notModified(HttpServletRequest req, HttpServletResponse resp, String etag) {
+    resp.setHeader("ETag", etag);
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    String opaque = etag.substring(2); // weak comparison, as required for If-None-Match
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*") || candidate.equals(opaque) || candidate.equals("W/" + opaque)) {
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void prePersist(ActionInvocation invocation, Persisted p) {
+    invocation.getObjectsActedUpon().add(p);
+    int errors = Messages.DO.errorCount();
+    try {
+      invocation.prePersist();
+    } catch (ValidationException e) {
+      if (Messages.DO.errorCount() == errors) {
+        Messages.DO.sendErrorMessage(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Insert (PUT) or update (POST) an array of objects of one type. Each object is checked as it would be if
+   * sent alone, and those that pass are saved in transactions of {@code chunk} objects (all of them in one
+   * transaction if the parameter is absent), which ObjectService writes with JDBC batching. The results
+   * report the outcome for each object at its index. A failure rolls back only the chunk it occurred in.
+   */
+  private void saveBatch(HttpServletRequest req, HttpServletResponse resp, ObjectReference ref,
+                         ArrayNode array, boolean insert) throws IOException, ReflectiveOperationException {
+    String chunkParam = req.getParameter("chunk");
+    int chunk = chunkParam != null ? Integer.parseInt(chunkParam) : 0;
+    if (chunk <= 0) {
+      chunk = Math.max(array.size(), 1);
+    }
+    @SuppressWarnings("unchecked")
+    List<ActionInvocation> invocations = (List<ActionInvocation>) req.getAttribute("NS_ACTION");
+    Validatable validator = null;
+    if (Validatable.class.isAssignableFrom(ref.getType())) {
+      validator = (Validatable) persistedType(ref).getConstructor().newInstance();
+    }
+
+    List<BatchResult> results = new ArrayList<>(array.size());
+    List<BatchResult> pending = new ArrayList<>();
+    List<Persisted> objects = new ArrayList<>();
+    for (int i = 0; i < array.size(); i++) {
+      BatchResult result = new BatchResult(i);
+      results.add(result);
+      JsonNode node = array.get(i);
+      int errors = Messages.DO.getErrorMessages().size();
+      if (!(node instanceof ObjectNode)) {
+        Messages.DO.sendErrorMessage("Item " + i + " must be a JSON object");
+      } else {
+        if (validator != null) {
+          validator.validateTree((ObjectNode) node, mapper);
+        }
+        Persisted p = null;
+        if (Messages.DO.getErrorMessages().size() == errors) {
+          try {
+            p = (Persisted) mapper.treeToValue(node, persistedType(ref));
+          } catch (JsonProcessingException e) {
+            Messages.DO.sendErrorMessage("Item " + i + " could not be read:" + e.getOriginalMessage());
           }
         }
-        if (Messages.DO.errorCount() > 0) {
-          handleError(resp, 400);
+        if (p != null) {
+          if (insert && p.getId() != null) {
+            Messages.DO.sendErrorMessage("ID must not be specified for put operations");
+          } else if (!insert && p.getId() == null) {
+            Messages.DO.sendErrorMessage("Can't create new objects with POST, use PUT");
+          } else {
+            if (p instanceof Validatable && !((Validatable) p).isValidated()) {
+              ((Validatable) p).validate();
+            }
+            if (invocations != null) {
+              for (ActionInvocation invocation : invocations) {
+                if (invocation != null) {
+                  prePersist(invocation, p);
+                }
+              }
+            }
+          }
+        }
+        if (p != null && Messages.DO.getErrorMessages().size() == errors) {
+          pending.add(result);
+          objects.add(p);
         }
       }
+      List<Notification> messages = Messages.DO.getErrorMessages();
+      result.getMessages().addAll(messages.subList(errors, messages.size()));
     }
+
+    for (int from = 0; from < objects.size(); from += chunk) {
+      int to = Math.min(objects.size(), from + chunk);
+      List<BatchResult> chunkResults = pending.subList(from, to);
+      String failure = null;
+      try {
+        List<Persisted> saved = objectService.save(objects.subList(from, to));
+        for (int i = 0; i < saved.size(); i++) {
+          BatchResult result = chunkResults.get(i);
+          result.setOk(true);
+          result.setId(saved.get(i).getId());
+          result.setVersion(saved.get(i).getVersion());
+        }
+      } catch (AuthzException e) {
+        log.debug(e);
+        failure = "Insufficient Access Rights";
+      } catch (OptimisticLockException e) {
+        failure = "Someone (or something) has made a conflicting change while you were working. Please refresh the page to load the new edits and retry your submission.";
+      } catch (PersistenceException | ValidationException e) {
+        log.error("Batch of " + ref.getType().getSimpleName() + " failed", e);
+        failure = "Not saved:" + e.getMessage();
+      }
+      if (failure != null) {
+        Messages.DO.sendErrorMessage(failure);
+        List<Notification> messages = Messages.DO.getErrorMessages();
+        for (BatchResult result : chunkResults) {
+          result.getMessages().add(messages.get(messages.size() - 1));
+        }
+      }
+    }
+
+    String format = responseFormat(req);
+    resp.setContentType(format);
+    RestResponse rr = new RestResponse();
+    rr.setOk(results.stream().allMatch(BatchResult::isOk));
+    rr.getResults().addAll(results);
+    rr.getMessages().addAll(Messages.DO.getErrorMessages());
+    rr.setNumFound((long) results.size());
+    formats.mapper(format).writeValue(resp.getOutputStream(), rr);
   }
 }
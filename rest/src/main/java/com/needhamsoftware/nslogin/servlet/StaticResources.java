@@ -0,0 +1,200 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.servlet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves files from a directory of the web app. Small files are held in memory, along with a gzipped copy
+ * when that is smaller, and are reloaded if the file on disk changes. Larger files are sent straight from
+ * disk with {@link FileChannel#transferTo}, or by the container's sendfile where Tomcat offers it.
+ * Responses carry Last-Modified and ETag headers, and conditional requests are answered with 304.
+ * Fingerprinted files (a hash in the name, as produced by most bundlers) never change, so browsers may
+ * cache them for a year; anything else must be revalidated.
+ */
+class StaticResources {
+  private static final Logger log = LogManager.getLogger();
+
+  static final int MAX_CACHED_BYTES = 256 * 1024;
+  private static final Pattern FINGERPRINTED = Pattern.compile(".*[.-][0-9a-fA-F]{8,}\\.[a-zA-Z0-9]+$");
+  private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+  private static final String REVALIDATE = "no-cache";
+
+  private final ServletContext context;
+  private final String directory;
+  private final ConcurrentMap<Path, CachedFile> cache = new ConcurrentHashMap<>();
+
+  /**
+   * @param context   the servlet context, whose real path is the root of the files
+   * @param directory the directory (relative to the web app root) files may be served from, e.g. "/js/"
+   */
+  StaticResources(ServletContext context, String directory) {
+    this.context = context;
+    this.directory = directory;
+  }
+
+  void serve(String pathInfo, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    Path file = resolve(pathInfo);
+    if (file == null || !Files.isRegularFile(file)) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    long lastModified = Files.getLastModifiedTime(file).toMillis();
+    long length = Files.size(file);
+    boolean gzipAccepted = acceptsGzip(req);
+
+    CachedFile cached = null;
+    if (length <= MAX_CACHED_BYTES) {
+      cached = cache.get(file);
+      if (cached == null || cached.lastModified != lastModified || cached.length != length) {
+        cached = new CachedFile(Files.readAllBytes(file), lastModified);
+        cache.put(file, cached);
+      }
+    }
+    boolean gzip = gzipAccepted && cached != null && cached.gzipped != null;
+
+    String fileName = file.getFileName().toString();
+    String type = context.getMimeType(fileName);
+    if (type == null && fileName.endsWith(".js")) {
+      type = "text/javascript";
+    }
+    if (type != null) {
+      resp.setContentType(type);
+    }
+    String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + (gzip ? "-gz\"" : "\"");
+    resp.setHeader("ETag", etag);
+    resp.setDateHeader("Last-Modified", lastModified);
+    resp.setHeader("Cache-Control", FINGERPRINTED.matcher(fileName).matches() ? IMMUTABLE : REVALIDATE);
+    if (cached != null && cached.gzipped != null) {
+      resp.setHeader("Vary", "Accept-Encoding");
+    }
+    if (notModified(req, etag, lastModified)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    if (cached != null) {
+      byte[] body = gzip ? cached.gzipped : cached.bytes;
+      if (gzip) {
+        resp.setHeader("Content-Encoding", "gzip");
+      }
+      resp.setContentLength(body.length);
+      resp.getOutputStream().write(body);
+      return;
+    }
+
+    resp.setContentLengthLong(length);
+    if (Boolean.TRUE.equals(req.getAttribute("org.apache.tomcat.sendfile.support"))) {
+      // the container will send the file from the kernel once we return
+      req.setAttribute("org.apache.tomcat.sendfile.filename", file.toString());
+      req.setAttribute("org.apache.tomcat.sendfile.start", 0L);
+      req.setAttribute("org.apache.tomcat.sendfile.end", length);
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      OutputStream out = resp.getOutputStream();
+      WritableByteChannel target = Channels.newChannel(out);
+      long position = 0;
+      while (position < length) {
+        position += channel.transferTo(position, length - position, target);
+      }
+    }
+  }
+
+  /**
+   * @return the file, or null if the path would leave the directory we serve from
+   */
+  private Path resolve(String pathInfo) throws IOException {
+    String root = context.getRealPath(directory);
+    if (root == null || pathInfo == null || !pathInfo.startsWith(directory)) {
+      return null;
+    }
+    Path base = new File(root).getCanonicalFile().toPath();
+    Path file = base.resolve(pathInfo.substring(directory.length())).normalize();
+    if (!file.startsWith(base)) {
+      log.warn("Refusing to serve {} from outside {}", pathInfo, directory);
+      return null;
+    }
+    return file;
+  }
+
+  private static boolean acceptsGzip(HttpServletRequest req) {
+    String accept = req.getHeader("Accept-Encoding");
+    return accept != null && accept.toLowerCase().contains("gzip");
+  }
+
+  private static boolean notModified(HttpServletRequest req, String etag, long lastModified) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        if (candidate.startsWith("W/")) {
+          candidate = candidate.substring(2);
+        }
+        if (candidate.equals("*") || candidate.equals(etag)) {
+          return true;
+        }
+      }
+      return false; // If-None-Match takes precedence over If-Modified-Since
+    }
+    try {
+      long since = req.getDateHeader("If-Modified-Since");
+      // http dates have whole seconds
+      return since != -1 && lastModified / 1000 <= since / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private static final class CachedFile {
+    private final byte[] bytes;
+    private final byte[] gzipped;
+    private final long lastModified;
+    private final long length;
+
+    private CachedFile(byte[] bytes, long lastModified) throws IOException {
+      this.bytes = bytes;
+      this.lastModified = lastModified;
+      this.length = bytes.length;
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 3 + 32);
+      try (GZIPOutputStream gz = new GZIPOutputStream(compressed)) {
+        gz.write(bytes);
+      }
+      // not worth it for tiny or already compressed files
+      this.gzipped = compressed.size() < bytes.length * 0.9 ? compressed.toByteArray() : null;
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package com.needhamsoftware.nslogin.servlet;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The formats the REST API speaks, each with a mapper configured identically to the json one (so entities,
+ * including JSOG identities, mean the same thing in every format). Json is the default; clients that
+ * prefer a binary format say so with Accept, and send it with Content-Type.
+ */
+class WireFormats {
+  static final String JSON = "application/json";
+  static final String SMILE = "application/x-jackson-smile";
+  static final String CBOR = "application/cbor";
+
+  private final Map<String, ObjectMapper> mappers = new LinkedHashMap<>();
+
+  WireFormats(ObjectMapper json, ObjectMapper smile, ObjectMapper cbor) {
+    mappers.put(JSON, json);
+    mappers.put(SMILE, smile);
+    mappers.put(CBOR, cbor);
+  }
+
+  ObjectMapper mapper(String mediaType) {
+    return mappers.getOrDefault(mediaType, mappers.get(JSON));
+  }
+
+  /**
+   * @return the mapper for the format of the request body, json if it is not one of ours.
+   */
+  ObjectMapper reader(HttpServletRequest req) {
+    String contentType = req.getContentType();
+    if (contentType == null) {
+      return mapper(JSON);
+    }
+    return mapper(contentType.split(";")[0].trim().toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Choose the format of the response: the one with the highest q value in the Accept header, earliest
+   * first when tied. Anything we don't speak, or no Accept header at all, means json.
+   */
+  String negotiate(HttpServletRequest req) {
+    String accept = req.getHeader("Accept");
+    if (accept == null) {
+      return JSON;
+    }
+    String best = JSON;
+    double bestQ = -1;
+    for (String range : accept.toLowerCase(Locale.ROOT).split(",")) {
+      String[] parts = range.split(";");
+      String type = parts[0].trim();
+      double q = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      String format = mappers.containsKey(type) ? type : null;
+      if (format == null && (type.equals("*/*") || type.equals("application/*"))) {
+        format = JSON;
+      }
+      if (format != null && q > 0 && q > bestQ) {
+        best = format;
+        bestQ = q;
+      }
+    }
+    return best;
+  }
+}
@@ -567,6 +567,11 @@
     // TODO handle embedded pipes if we ever run into that
     let filterList = this.getAttribute("data-filters");
     let filtersSpec = parseFilters(filterList);
+    // associations to load with the rows, e.g. data-expand="roles,grants"
+    let expand = this.getAttribute("data-expand");
+    if (expand) {
+      filtersSpec.expand = expand;
+    }
 
     // todo actual pagination
     filtersSpec.rows = 10000;
@@ -0,0 +1,96 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.shiro;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a permission check answered from a {@link PermissionIndex} with the same check made by asking each
+ * grant in turn, for a user holding mostly instance level grants. Run with {@code gradle :shiro:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PermissionIndexBenchmark {
+
+  @Param({"10", "500"})
+  public int grantCount;
+
+  private List<DoubleWildcardPermission> grants;
+  private PermissionIndex index;
+  private PermissionQuery typeQuery;
+  private PermissionQuery instanceQuery;
+
+  @Setup
+  public void setUp() {
+    grants = new ArrayList<>();
+    grants.add(new DoubleWildcardPermission("TestThing:read:*:*"));
+    for (int i = 1; i < grantCount; i++) {
+      grants.add(new DoubleWildcardPermission("TestThing:edit:" + i + ":*"));
+    }
+    index = new PermissionIndex(grants);
+    // nothing is granted on this type, so the scan has to look at every grant
+    typeQuery = new PermissionQuery("AppUser", "edit", "*", "*");
+    instanceQuery = new PermissionQuery("TestThing", "edit", String.valueOf(grantCount - 1), "name");
+  }
+
+  @Benchmark
+  public boolean indexTypeCheck() {
+    return index.implies(typeQuery);
+  }
+
+  @Benchmark
+  public boolean linearTypeCheck() {
+    return linear(new DoubleWildcardPermission(typeQuery.toString()));
+  }
+
+  @Benchmark
+  public boolean indexInstanceCheck() {
+    return index.implies(instanceQuery);
+  }
+
+  @Benchmark
+  public boolean linearInstanceCheck() {
+    return linear(new DoubleWildcardPermission(instanceQuery.toString()));
+  }
+
+  private boolean linear(DoubleWildcardPermission p) {
+    for (DoubleWildcardPermission grant : grants) {
+      if (grant.implies(p)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.shiro;
+
+import com.needhamsoftware.nslogin.model.AppUser;
+import com.needhamsoftware.nslogin.model.Permission;
+import com.needhamsoftware.nslogin.model.Role;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A copy of what requests need to know about a user: the user's identity, their roles and the grants of
+ * those roles, and their intrinsic permissions. It is read out of the entities while the EntityManager
+ * that loaded them is still open, holds no entities itself, and never changes, so one instance can serve
+ * any number of concurrent requests. Each request gets its own entity copies from {@link #toUser()}.
+ */
+public final class CachedPrincipal {
+
+  private final Long id;
+  private final long version;
+  private final String username;
+  private final String userEmail;
+  private final Instant created;
+  private final Instant modified;
+  private final List<CachedRole> roles;
+  private final List<CachedPermission> intrinsicPermissions;
+
+  private CachedPrincipal(AppUser user) {
+    this.id = user.getId();
+    this.version = user.getVersion();
+    this.username = user.getUsername();
+    this.userEmail = user.getUserEmail();
+    this.created = user.getCreated();
+    this.modified = user.getModified();
+    List<CachedRole> cachedRoles = new ArrayList<>();
+    if (user.getRoles() != null) {
+      for (Role role : user.getRoles()) {
+        cachedRoles.add(new CachedRole(role));
+      }
+    }
+    this.roles = Collections.unmodifiableList(cachedRoles);
+    this.intrinsicPermissions = copy(user.getIntrinsicPermissions());
+  }
+
+  /**
+   * Copy a user, initializing any lazy collections as we go.
+   *
+   * @param user a user attached to an open EntityManager
+   */
+  public static CachedPrincipal of(AppUser user) {
+    return new CachedPrincipal(user);
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getUserEmail() {
+    return userEmail;
+  }
+
+  /**
+   * @return the keys of the user's roles
+   */
+  public List<String> roleKeys() {
+    List<String> keys = new ArrayList<>(roles.size());
+    for (CachedRole role : roles) {
+      keys.add(role.key);
+    }
+    return keys;
+  }
+
+  /**
+   * @return the shiro permission strings of every grant of every role, followed by those of the intrinsic
+   * permissions.
+   */
+  public List<String> permissionStrings() {
+    List<String> strings = new ArrayList<>();
+    for (CachedRole role : roles) {
+      for (CachedPermission grant : role.grants) {
+        strings.add(grant.shiroString);
+      }
+    }
+    for (CachedPermission permission : intrinsicPermissions) {
+      strings.add(permission.shiroString);
+    }
+    return strings;
+  }
+
+  /**
+   * @return a new, unmanaged user holding copies of the roles, grants and permissions, which belongs to the
+   * caller alone.
+   */
+  public AppUser toUser() {
+    AppUser user = new AppUser();
+    user.setId(id);
+    user.setVersion(version);
+    user.setUsername(username);
+    user.setUserEmail(userEmail);
+    user.setCreated(created);
+    user.setModified(modified);
+    List<Role> userRoles = new ArrayList<>(roles.size());
+    for (CachedRole role : roles) {
+      userRoles.add(role.toRole());
+    }
+    user.setRoles(userRoles);
+    user.setIntrinsicPermissions(toPermissions(intrinsicPermissions));
+    return user;
+  }
+
+  @Override
+  public String toString() {
+    return "CachedPrincipal:" + id;
+  }
+
+  private static List<CachedPermission> copy(List<Permission> permissions) {
+    List<CachedPermission> copies = new ArrayList<>();
+    if (permissions != null) {
+      for (Permission permission : permissions) {
+        copies.add(new CachedPermission(permission));
+      }
+    }
+    return Collections.unmodifiableList(copies);
+  }
+
+  private static List<Permission> toPermissions(List<CachedPermission> cached) {
+    List<Permission> permissions = new ArrayList<>(cached.size());
+    for (CachedPermission permission : cached) {
+      permissions.add(permission.toPermission());
+    }
+    return permissions;
+  }
+
+  private static final class CachedRole {
+    private final Long id;
+    private final long version;
+    private final String name;
+    private final String key;
+    private final List<CachedPermission> grants;
+
+    private CachedRole(Role role) {
+      this.id = role.getId();
+      this.version = role.getVersion();
+      this.name = role.getName();
+      this.key = role.getKey();
+      this.grants = copy(role.getGrants());
+    }
+
+    private Role toRole() {
+      Role role = new Role();
+      role.setId(id);
+      role.setVersion(version);
+      role.setName(name);
+      role.setKey(key);
+      role.setGrants(toPermissions(grants));
+      return role;
+    }
+  }
+
+  private static final class CachedPermission {
+    private final Long id;
+    private final long version;
+    private final String type;
+    private final String action;
+    private final String objId;
+    private final String field;
+    // kept rather than recomputed, subclasses of Permission may build it differently
+    private final String shiroString;
+
+    private CachedPermission(Permission permission) {
+      this.id = permission.getId();
+      this.version = permission.getVersion();
+      this.type = permission.getType();
+      this.action = permission.getAction();
+      this.objId = permission.getObjId();
+      this.field = permission.getField();
+      this.shiroString = permission.shiroString();
+    }
+
+    private Permission toPermission() {
+      Permission permission = new Permission();
+      permission.setId(id);
+      permission.setVersion(version);
+      permission.setType(type);
+      permission.setAction(action);
+      permission.setObjId(objId);
+      permission.setField(field);
+      return permission;
+    }
+  }
+}
@@ -40,8 +40,17 @@ public class DoubleWildcardPermission extends WildcardPermission {
     super(wildcardString, caseSensitive);
   }
 
+  static final String WILDCARD_TOKEN = WildcardPermission.WILDCARD_TOKEN;
+
+  List<Set<String>> parts() {
+    return getParts();
+  }
+
   @Override
   public boolean implies(Permission p) {
+    if (p instanceof PermissionQuery) {
+      return implies((PermissionQuery) p);
+    }
     // By default only supports comparisons with other WildcardPermissions
     if (!(p instanceof WildcardPermission)) {
       return false;
@@ -78,4 +87,31 @@ public class DoubleWildcardPermission extends WildcardPermission {
 
     return true;
   }
+
+  /**
+   * The same comparison as above for a query, without parsing the query into sets.
+   */
+  private boolean implies(PermissionQuery query) {
+    if (!query.isSimple()) {
+      return implies(query.toWildcardPermission());
+    }
+    List<Set<String>> parts = getParts();
+    int i = 0;
+    for (; i < query.size(); i++) {
+      if (parts.size() - 1 < i) {
+        return true;
+      }
+      Set<String> part = parts.get(i);
+      String otherPart = query.part(i);
+      if (!part.contains(WILDCARD_TOKEN) && !PermissionQuery.isWildcard(otherPart) && !part.contains(otherPart)) {
+        return false;
+      }
+    }
+    for (; i < parts.size(); i++) {
+      if (!parts.get(i).contains(WILDCARD_TOKEN)) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
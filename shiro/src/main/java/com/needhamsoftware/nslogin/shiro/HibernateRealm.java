@@ -17,7 +17,8 @@
 package com.needhamsoftware.nslogin.shiro;
 
 import com.needhamsoftware.nslogin.model.AppUser;
-import com.needhamsoftware.nslogin.model.Role;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.shiro.SecurityUtils;
@@ -30,7 +31,6 @@ import org.apache.shiro.authz.AuthorizationInfo;
 import org.apache.shiro.authz.Permission;
 import org.apache.shiro.authz.SimpleAuthorizationInfo;
 import org.apache.shiro.realm.AuthorizingRealm;
-import org.apache.shiro.subject.MutablePrincipalCollection;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.apache.shiro.web.mgt.DefaultWebSecurityManager;
 import org.mindrot.jbcrypt.BCrypt;
@@ -40,9 +40,7 @@ import javax.inject.Provider;
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 @SuppressWarnings("CdiInjectionPointsInspection")
 public class HibernateRealm extends AuthorizingRealm {
@@ -54,6 +52,12 @@ public class HibernateRealm extends AuthorizingRealm {
   @Inject
   private Provider<EntityManager> entityManagerProvider;
 
+  // Authorization info built from each cached principal. A principal that has changed is a new instance
+  // (see PrincipalCache), so keys are compared by identity and entries go when the principal does.
+  private final Cache<CachedPrincipal, IndexedAuthorizationInfo> authorizations = CacheBuilder.newBuilder()
+      .weakKeys()
+      .build();
+
   @Inject
   public HibernateRealm(CredentialsMatcher matcher) {
     super(matcher);
@@ -62,59 +66,61 @@ public class HibernateRealm extends AuthorizingRealm {
     SecurityUtils.setSecurityManager(securityManager);
   }
 
-  @SuppressWarnings("Convert2streamapi")
   @Override
   protected AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principals) {
-    refresh(principals);
-
-    SimpleAuthorizationInfo authInfo = new SimpleAuthorizationInfo();
-    for (Object principal : principals) {
-      AppUser u = (AppUser) principal;
-      List<String> roles = new ArrayList<>();
-      List<Permission> perms = new ArrayList<>();
-      for (Role role : u.getRoles()) {
-        List<com.needhamsoftware.nslogin.model.Permission> grants = role.getGrants();
-        for (com.needhamsoftware.nslogin.model.Permission grant : grants) {
-          perms.add(new DoubleWildcardPermission(grant.shiroString()));
-        }
-        roles.add(role.getKey());
+    List<IndexedAuthorizationInfo> infos = new ArrayList<>();
+    for (Object principal : principals.asList()) {
+      if (principal instanceof CachedPrincipal) {
+        infos.add(authorizationFor((CachedPrincipal) principal));
       }
-      authInfo.addRoles(roles);
-      List<com.needhamsoftware.nslogin.model.Permission> intrinsicPermissions = u.getIntrinsicPermissions();
-      for (com.needhamsoftware.nslogin.model.Permission ip : intrinsicPermissions) {
-        perms.add(new DoubleWildcardPermission(ip.shiroString()));
+    }
+    if (infos.isEmpty()) {
+      // not a subject built by ShiroJWTAuthenticationFilter, read the users from the database
+      for (Object principal : principals.asList()) {
+        if (principal instanceof AppUser) {
+          infos.add(buildAuthorization(CachedPrincipal.of(loadUser(((AppUser) principal).getId()))));
+        }
       }
-      authInfo.addObjectPermissions(perms);
     }
-    return authInfo;
+    if (infos.size() == 1) {
+      return infos.get(0); // the usual case, no need to copy
+    }
+    List<String> roles = new ArrayList<>();
+    List<DoubleWildcardPermission> perms = new ArrayList<>();
+    for (IndexedAuthorizationInfo info : infos) {
+      roles.addAll(info.getRoles());
+      perms.addAll(info.grants);
+    }
+    return new IndexedAuthorizationInfo(roles, perms);
+  }
+
+  @Override
+  protected boolean isPermitted(Permission permission, AuthorizationInfo info) {
+    if (permission instanceof PermissionQuery && info instanceof IndexedAuthorizationInfo) {
+      return ((IndexedAuthorizationInfo) info).index.implies((PermissionQuery) permission);
+    }
+    return super.isPermitted(permission, info);
   }
 
   /**
-   * Keep our principals up to date with any changes since we last loaded them. (including roles/permissions)
-   *
-   * @param principals The principles currently held by our shiro session.
+   * The info is built once per cached principal and shared by every request using it, it is never modified
+   * once built. Two threads may occasionally both build it, which is harmless.
    */
-  private void refresh(PrincipalCollection principals) {
-
-    Map<AppUser, String> realmsForOldUsers = new HashMap<>();
-    Map<AppUser, AppUser> newForOld = new HashMap<>();
-    // must synchronize to avoid concurrent modification issues.
-    synchronized (principals) {
-      //noinspection unchecked
-      principals.getRealmNames()
-          .forEach(r -> principals.fromRealm(r).forEach(p -> {
-            AppUser freshUser = loadUser(((AppUser) p).getId());
-            newForOld.put((AppUser) p, freshUser);
-            realmsForOldUsers.put((AppUser) p, r);
-          }));
-
-      List retainOrder = principals.asList();
-      MutablePrincipalCollection mutable = (MutablePrincipalCollection) principals;
-      mutable.clear();
-
-      //noinspection unchecked,SuspiciousMethodCalls
-      retainOrder.forEach(old -> mutable.add(newForOld.get(old), realmsForOldUsers.get(old)));
+  private IndexedAuthorizationInfo authorizationFor(CachedPrincipal principal) {
+    IndexedAuthorizationInfo info = authorizations.getIfPresent(principal);
+    if (info == null) {
+      info = buildAuthorization(principal);
+      authorizations.put(principal, info);
     }
+    return info;
+  }
+
+  private IndexedAuthorizationInfo buildAuthorization(CachedPrincipal principal) {
+    List<DoubleWildcardPermission> perms = new ArrayList<>();
+    for (String permission : principal.permissionStrings()) {
+      perms.add(new DoubleWildcardPermission(permission));
+    }
+    return new IndexedAuthorizationInfo(principal.roleKeys(), perms);
   }
 
   private AppUser loadUser(Long id) {
@@ -124,6 +130,21 @@ public class HibernateRealm extends AuthorizingRealm {
         .getSingleResult();
   }
 
+  /**
+   * Authorization info that also carries the granted permissions compiled into a {@link PermissionIndex}.
+   */
+  private static class IndexedAuthorizationInfo extends SimpleAuthorizationInfo {
+    private final List<DoubleWildcardPermission> grants;
+    private final PermissionIndex index;
+
+    private IndexedAuthorizationInfo(List<String> roles, List<DoubleWildcardPermission> grants) {
+      addRoles(roles);
+      addObjectPermissions(new ArrayList<>(grants));
+      this.grants = grants;
+      this.index = new PermissionIndex(grants);
+    }
+  }
+
   @Override
   protected AuthenticationInfo doGetAuthenticationInfo(AuthenticationToken token) throws AuthenticationException {
 
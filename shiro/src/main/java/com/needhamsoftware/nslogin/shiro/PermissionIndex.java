@@ -0,0 +1,129 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.shiro;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The permissions granted to a user compiled into a tree with one level per permission part, so that
+ * a query follows at most a couple of branches per level rather than comparing itself with every grant in
+ * turn. Answers are the same as asking each of the grants' {@link DoubleWildcardPermission#implies}, and
+ * answering a {@link PermissionQuery#isSimple() simple} query allocates nothing.
+ *
+ * <p>Instances are not modified once built and may be shared between threads.</p>
+ */
+class PermissionIndex {
+
+  private final Node root = new Node();
+  private final List<DoubleWildcardPermission> grants;
+
+  PermissionIndex(List<DoubleWildcardPermission> grants) {
+    this.grants = new ArrayList<>(grants);
+    for (DoubleWildcardPermission grant : grants) {
+      add(root, grant.parts(), 0);
+    }
+  }
+
+  boolean implies(PermissionQuery query) {
+    if (!query.isSimple()) {
+      DoubleWildcardPermission p = query.toWildcardPermission();
+      for (DoubleWildcardPermission grant : grants) {
+        if (grant.implies(p)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return implies(root, query, 0);
+  }
+
+  private static void add(Node node, List<Set<String>> parts, int i) {
+    if (i == parts.size()) {
+      node.terminal = true;
+      return;
+    }
+    if (allWildcards(parts, i)) {
+      node.wildcardTail = true;
+    }
+    Set<String> part = parts.get(i);
+    if (part.contains(DoubleWildcardPermission.WILDCARD_TOKEN)) {
+      if (node.wildcard == null) {
+        node.wildcard = new Node();
+      }
+      add(node.wildcard, parts, i + 1);
+    } else {
+      for (String value : part) {
+        add(node.child(value), parts, i + 1);
+      }
+    }
+  }
+
+  private static boolean allWildcards(List<Set<String>> parts, int from) {
+    for (int i = from; i < parts.size(); i++) {
+      if (!parts.get(i).contains(DoubleWildcardPermission.WILDCARD_TOKEN)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean implies(Node node, PermissionQuery query, int i) {
+    if (node.terminal) {
+      return true; // a grant with no more parts implies anything further
+    }
+    if (i == query.size()) {
+      return node.wildcardTail; // a grant with more parts only if they are all wild
+    }
+    if (node.wildcard != null && implies(node.wildcard, query, i + 1)) {
+      return true;
+    }
+    String part = query.part(i);
+    if (PermissionQuery.isWildcard(part)) {
+      // a wild card in the query is satisfied by any grant at this level
+      for (int c = 0; c < node.childList.size(); c++) {
+        if (implies(node.childList.get(c), query, i + 1)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    Node child = node.children.get(part);
+    return child != null && implies(child, query, i + 1);
+  }
+
+  private static class Node {
+    private final Map<String, Node> children = new HashMap<>();
+    private final List<Node> childList = new ArrayList<>(); // the same nodes, for iterating without an iterator
+    private Node wildcard;
+    private boolean terminal;     // some grant ends here
+    private boolean wildcardTail; // some grant continues from here with only wild cards
+
+    private Node child(String value) {
+      Node child = children.get(value);
+      if (child == null) {
+        child = new Node();
+        children.put(value, child);
+        childList.add(child);
+      }
+      return child;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.shiro;
+
+import org.apache.shiro.authz.Permission;
+
+/**
+ * A permission that is being asked about, as opposed to one that has been granted. Unlike
+ * {@link DoubleWildcardPermission} the parts are held as given rather than split into sets, so a query
+ * such as <code>TestThing:read:*:*</code> costs one small object instead of a parse. Each part should
+ * be a single value or the wild card; parts with several comma separated values are supported but are
+ * answered by the slower general comparison.
+ */
+public class PermissionQuery implements Permission {
+
+  private static final String WILDCARD = "*";
+
+  private final String[] parts;
+  private final boolean simple;
+
+  public PermissionQuery(String... parts) {
+    this.parts = new String[parts.length];
+    boolean simple = true;
+    for (int i = 0; i < parts.length; i++) {
+      // same normalization as WildcardPermission (case insensitive by default)
+      this.parts[i] = parts[i] == null ? WILDCARD : parts[i].trim().toLowerCase();
+      simple &= this.parts[i].indexOf(',') < 0;
+    }
+    this.simple = simple;
+  }
+
+  /**
+   * A query for a permission from the database.
+   */
+  public static PermissionQuery of(com.needhamsoftware.nslogin.model.Permission permission) {
+    if (permission.getClass() == com.needhamsoftware.nslogin.model.Permission.class) {
+      return new PermissionQuery(String.valueOf(permission.getType()), String.valueOf(permission.getAction()),
+          permission.getObjId(), permission.getField());
+    }
+    // sub classes may qualify permissions differently
+    return new PermissionQuery(permission.shiroString().split(":"));
+  }
+
+  int size() {
+    return parts.length;
+  }
+
+  String part(int i) {
+    return parts[i];
+  }
+
+  static boolean isWildcard(String part) {
+    return WILDCARD.equals(part);
+  }
+
+  /**
+   * @return true if no part has more than one value.
+   */
+  boolean isSimple() {
+    return simple;
+  }
+
+  DoubleWildcardPermission toWildcardPermission() {
+    return new DoubleWildcardPermission(toString());
+  }
+
+  /**
+   * A query only answers questions, it never grants anything.
+   */
+  @Override
+  public boolean implies(Permission p) {
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return String.join(":", parts);
+  }
+}
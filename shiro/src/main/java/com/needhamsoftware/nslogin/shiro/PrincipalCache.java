@@ -0,0 +1,182 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.shiro;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.needhamsoftware.nslogin.AuthzException;
+import com.needhamsoftware.nslogin.model.AppUser;
+import com.needhamsoftware.nslogin.model.Permission;
+import com.needhamsoftware.nslogin.model.Persisted;
+import com.needhamsoftware.nslogin.model.Role;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Users resolved from a token, complete with roles and grants, keyed by the email (subject) of the token.
+ * This is the one place a request's authorization comes from: {@link HibernateRealm} builds its permission
+ * checks from the cached user, and {@link com.needhamsoftware.nslogin.service.PermissionService#checkPermsAndFilter} reads the same user's
+ * roles and grants to work out permitted ids. Both therefore follow the roles the user holds in the
+ * database, not the role claim of the token, which only records the roles held at login.
+ * <p>
+ * Writes to users, roles and permissions via the ObjectService drop the affected entries at once. Other
+ * changes (made with SQL, or on another node) are caught by comparing a {@link UserFingerprint} at most
+ * every {@link #REVALIDATE_MILLIS}, and the user is reloaded if it differs.
+ *
+ * <p>What is cached is a {@link CachedPrincipal}, an immutable copy holding no entities, since entries are
+ * shared by concurrent requests long after the EntityManager that loaded them has closed.</p>
+ */
+@Singleton
+public class PrincipalCache implements PrincipalCacheMXBean {
+
+  private static final int MAX_USERS = 10000;
+  private static final int IDLE_MINUTES = 30;
+  private static final int REVALIDATE_MILLIS = 5000;
+
+  private final Provider<EntityManager> entityManagerProvider;
+
+  private final Cache<String, Entry> users = CacheBuilder.newBuilder()
+      .maximumSize(MAX_USERS)
+      .expireAfterAccess(IDLE_MINUTES, TimeUnit.MINUTES)
+      .recordStats()
+      .build();
+
+  // Advanced by every invalidation. A user loaded while an invalidation happens might reflect the state
+  // before the write and is not cached.
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong changesDetected = new AtomicLong();
+
+  private final long revalidateMillis;
+
+  @Inject
+  public PrincipalCache(Provider<EntityManager> entityManagerProvider) {
+    this(entityManagerProvider, REVALIDATE_MILLIS);
+  }
+
+  PrincipalCache(Provider<EntityManager> entityManagerProvider, long revalidateMillis) {
+    this.entityManagerProvider = entityManagerProvider;
+    this.revalidateMillis = revalidateMillis;
+  }
+
+  public interface Loader {
+    CachedPrincipal load() throws AuthzException;
+  }
+
+  /**
+   * Get the user for a token, loading it if it is not cached or has changed since it was cached. Must be
+   * called with a unit of work open, since the fingerprint is read with the request's EntityManager.
+   *
+   * @param email the subject of the token
+   * @param loader copies the user with the roles, grants and intrinsic permissions it has in the database
+   * @return the user
+   * @throws AuthzException if the loader does
+   */
+  public CachedPrincipal get(String email, Loader loader) throws AuthzException {
+    Entry entry = users.getIfPresent(email);
+    long now = System.currentTimeMillis();
+    if (entry != null && now < entry.revalidateAt) {
+      return entry.principal;
+    }
+    long loadedAt = generation.get();
+    EntityManager entityManager = entityManagerProvider.get();
+    // read before the user, so that anything written after it is seen at the next check
+    UserFingerprint fingerprint = UserFingerprint.load(entityManager, email);
+    CachedPrincipal principal;
+    if (entry != null && entry.fingerprint.equals(fingerprint)) {
+      principal = entry.principal;
+    } else {
+      if (entry != null) {
+        changesDetected.incrementAndGet();
+        fingerprint.evictFromSecondLevelCache(entityManager, entry.fingerprint);
+      }
+      principal = loader.load();
+    }
+    if (generation.get() == loadedAt) {
+      users.put(email, new Entry(principal, fingerprint, now + revalidateMillis));
+    }
+    return principal;
+  }
+
+  public void objectWritten(Persisted written) {
+    if (written instanceof AppUser) {
+      Long id = written.getId();
+      generation.incrementAndGet();
+      if (users.asMap().values().removeIf(e -> Objects.equals(e.principal.getId(), id))) {
+        invalidations.incrementAndGet();
+      }
+    } else if (written instanceof Role || written instanceof Permission) {
+      // roles and grants are shared between users, not worth working out who is affected.
+      generation.incrementAndGet();
+      users.invalidateAll();
+      invalidations.incrementAndGet();
+    }
+  }
+
+  @Override
+  public long getSize() {
+    return users.size();
+  }
+
+  @Override
+  public long getHits() {
+    return users.stats().hitCount();
+  }
+
+  @Override
+  public long getMisses() {
+    return users.stats().missCount();
+  }
+
+  @Override
+  public double getHitRate() {
+    return users.stats().hitRate();
+  }
+
+  @Override
+  public long getEvictions() {
+    return users.stats().evictionCount();
+  }
+
+  @Override
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  @Override
+  public long getChangesDetected() {
+    return changesDetected.get();
+  }
+
+  private static final class Entry {
+    private final CachedPrincipal principal;
+    private final UserFingerprint fingerprint;
+    private final long revalidateAt;
+
+    private Entry(CachedPrincipal principal, UserFingerprint fingerprint, long revalidateAt) {
+      this.principal = principal;
+      this.fingerprint = fingerprint;
+      this.revalidateAt = revalidateAt;
+    }
+  }
+}
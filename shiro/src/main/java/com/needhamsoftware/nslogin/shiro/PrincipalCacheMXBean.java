@@ -0,0 +1,44 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.shiro;
+
+/**
+ * Statistics for the {@link PrincipalCache}.
+ */
+public interface PrincipalCacheMXBean {
+
+  long getSize();
+
+  long getHits();
+
+  long getMisses();
+
+  double getHitRate();
+
+  long getEvictions();
+
+  /**
+   * @return the number of writes to users, roles or permissions that caused cached users to be dropped.
+   */
+  long getInvalidations();
+
+  /**
+   * @return the number of cached users reloaded because they were changed by something other than the
+   * ObjectService.
+   */
+  long getChangesDetected();
+}
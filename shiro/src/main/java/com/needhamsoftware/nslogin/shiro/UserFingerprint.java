@@ -0,0 +1,109 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.shiro;
+
+import com.needhamsoftware.nslogin.model.Permission;
+import com.needhamsoftware.nslogin.model.Role;
+import org.hibernate.SessionFactory;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The ids and versions of a user and of everything their authorization is built from: the user's roles,
+ * the grants of those roles, and the user's intrinsic permissions. Each write through hibernate increments
+ * the version of the row it changes, and adding, removing or swapping a role or permission changes the
+ * list of ids, so two fingerprints are equal only if none of these has been written in between. (An
+ * update made with plain SQL that leaves the version alone is not seen.)
+ * <p>
+ * The roles with their grants, and the intrinsic permissions, are read by separate queries so that the
+ * rows of one never multiply those of the other.
+ */
+final class UserFingerprint {
+
+  private static final String USER_AND_PERMISSIONS = "select a.id, a.version, p.id, p.version " +
+      "from AppUser a left join a.intrinsicPermissions p where a.userEmail = :email order by p.id";
+  private static final String ROLES_AND_GRANTS = "select r.id, r.version, g.id, g.version " +
+      "from AppUser a join a.roles r left join r.grants g where a.userEmail = :email order by r.id, g.id";
+
+  private final List<List<Object>> user;
+  private final List<List<Object>> roles;
+
+  private UserFingerprint(List<List<Object>> user, List<List<Object>> roles) {
+    this.user = user;
+    this.roles = roles;
+  }
+
+  static UserFingerprint load(EntityManager entityManager, String email) {
+    return new UserFingerprint(rows(entityManager, USER_AND_PERMISSIONS, email),
+        rows(entityManager, ROLES_AND_GRANTS, email));
+  }
+
+  private static List<List<Object>> rows(EntityManager entityManager, String ql, String email) {
+    List<List<Object>> rows = new ArrayList<>();
+    for (Object[] row : entityManager.createQuery(ql, Object[].class).setParameter("email", email).getResultList()) {
+      rows.add(Arrays.asList(row));
+    }
+    return rows;
+  }
+
+  /**
+   * Drop the roles, grants and permissions named by either fingerprint from the second level cache. When
+   * a change was made elsewhere (with SQL, or by another node, each of which has its own cache) the copies
+   * cached here are stale, and the user is about to be reloaded from them.
+   */
+  void evictFromSecondLevelCache(EntityManager entityManager, UserFingerprint previous) {
+    Cache cache = entityManager.getEntityManagerFactory().getCache();
+    org.hibernate.Cache hibernateCache = entityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getCache();
+    for (UserFingerprint fingerprint : Arrays.asList(this, previous)) {
+      for (List<Object> row : fingerprint.user) {
+        evict(cache, Permission.class, row.get(2));
+      }
+      for (List<Object> row : fingerprint.roles) {
+        evict(cache, Role.class, row.get(0));
+        hibernateCache.evictCollectionData(Role.class.getName() + ".grants", (Long) row.get(0));
+        evict(cache, Permission.class, row.get(2));
+      }
+    }
+  }
+
+  private static void evict(Cache cache, Class<?> type, Object id) {
+    if (id != null) {
+      cache.evict(type, id);
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof UserFingerprint)) {
+      return false;
+    }
+    UserFingerprint that = (UserFingerprint) o;
+    return user.equals(that.user) && roles.equals(that.roles);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * user.hashCode() + roles.hashCode();
+  }
+}
@@ -22,26 +22,35 @@ import com.needhamsoftware.nslogin.model.Permission;
 import com.needhamsoftware.nslogin.model.Persisted;
 import com.needhamsoftware.nslogin.model.Role;
 import com.needhamsoftware.nslogin.service.*;
-import com.needhamsoftware.nslogin.shiro.DoubleWildcardPermission;
+import com.needhamsoftware.nslogin.servlet.JwtAuthenticationFilter;
+import com.needhamsoftware.nslogin.shiro.PermissionQuery;
+import com.needhamsoftware.nslogin.shiro.PrincipalCache;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.authz.UnauthenticatedException;
 import org.apache.shiro.authz.UnauthorizedException;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.apache.shiro.subject.Subject;
 
+import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import static com.needhamsoftware.nslogin.servlet.LoginConstants.PRINCIPAL;
 
 public class ShiroPermissionServiceImpl implements PermissionService {
+
+  private static final Pattern NUMERIC = Pattern.compile("\\d{1,18}");
+
+  @Inject
+  private PrincipalCache principalCache;
+
   @Override
   public AppUser lookUpPrincipal(HttpServletRequest req, ObjectService objectService) throws AuthzException {
-    String userEmail = (String) req.getSession().getAttribute(PRINCIPAL);
+    String userEmail = JwtAuthenticationFilter.principal(req);
     return lookUpUserByEmail(objectService, userEmail);
   }
 
@@ -55,7 +64,7 @@ public class ShiroPermissionServiceImpl implements PermissionService {
   public void checkPerms(List<Permission> permissions) throws NotPermittedException {
     Subject currentUser = SecurityUtils.getSubject();
     for (Permission permission : permissions) {
-      if (!currentUser.isPermitted(new DoubleWildcardPermission(permission.shiroString()))) {
+      if (!currentUser.isPermitted(PermissionQuery.of(permission))) {
         throw new NotPermittedException(permission);
       }
     }
@@ -81,10 +90,10 @@ public class ShiroPermissionServiceImpl implements PermissionService {
   }
 
   @Override
-  public <T extends Persisted> String checkPermsAndFilter(Class<T> clazz, String action) throws AuthzException {
+  public <T extends Persisted> PermittedIds checkPermsAndFilter(Class<T> clazz, String action) throws AuthzException {
     {
       try {
-        SecurityUtils.getSubject().checkPermission(new DoubleWildcardPermission(clazz.getSimpleName() + ":" + action + ":*:*"));
+        SecurityUtils.getSubject().checkPermission(new PermissionQuery(clazz.getSimpleName(), action, "*", "*"));
       } catch (UnauthorizedException e) {
         throw new AuthzException(e);
       }
@@ -104,7 +113,24 @@ public class ShiroPermissionServiceImpl implements PermissionService {
                   p.getObjId() != null)
           .map(Permission::getObjId)
           .collect(Collectors.toList());
-      return String.join(",", objIds);
+      long[] ids = new long[objIds.size()];
+      int count = 0;
+      for (String objId : objIds) {
+        for (String id : objId.split(",")) {
+          id = id.trim();
+          if ("*".equals(id)) {
+            return PermittedIds.ALL;
+          }
+          if (NUMERIC.matcher(id).matches()) {
+            if (count == ids.length) {
+              ids = Arrays.copyOf(ids, Math.max(4, count * 2));
+            }
+            ids[count++] = Long.parseLong(id);
+          }
+          // other qualifiers (e.g. domain names) don't name individual objects
+        }
+      }
+      return PermittedIds.of(Arrays.copyOf(ids, count));
     }
   }
 
@@ -120,4 +146,9 @@ public class ShiroPermissionServiceImpl implements PermissionService {
     }
     return null;
   }
+
+  @Override
+  public void objectWritten(Persisted written) {
+    principalCache.objectWritten(written);
+  }
 }
@@ -17,10 +17,12 @@
 package com.needhamsoftware.nslogin.shiro.servlet;
 
 import com.needhamsoftware.nslogin.AuthzException;
-import com.needhamsoftware.nslogin.model.AppUser;
+import com.needhamsoftware.nslogin.metrics.MBeans;
 import com.needhamsoftware.nslogin.service.ObjectService;
 import com.needhamsoftware.nslogin.service.PermissionService;
 import com.needhamsoftware.nslogin.servlet.JwtAuthenticationFilter;
+import com.needhamsoftware.nslogin.shiro.CachedPrincipal;
+import com.needhamsoftware.nslogin.shiro.PrincipalCache;
 import io.jsonwebtoken.Claims;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.subject.ExecutionException;
@@ -30,15 +32,16 @@ import org.apache.shiro.subject.Subject;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.management.ObjectName;
 import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.util.Arrays;
 
-import static com.needhamsoftware.nslogin.servlet.ServletUtils.NSLOGIN_ROLES;
-import static com.needhamsoftware.nslogin.servlet.ServletUtils.lookUpRolesByIdList;
 
 @SuppressWarnings("CdiInjectionPointsInspection")
 @Singleton
@@ -48,15 +51,33 @@ public class ShiroJWTAuthenticationFilter extends JwtAuthenticationFilter {
   private ObjectService objectService;
   @Inject
   private PermissionService permissionService;
+  @Inject
+  private PrincipalCache principalCache;
+
+  private ObjectName principalCacheName;
 
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+    super.init(filterConfig);
+    principalCacheName = MBeans.register("PrincipalCache", filterConfig.getServletContext().getContextPath(), principalCache);
+  }
+
+  @Override
+  public void destroy() {
+    MBeans.unregister(principalCacheName);
+    super.destroy();
+  }
 
   @Override
   protected void proceed(ServletRequest request, ServletResponse response, FilterChain chain, Object principal) throws IOException, ServletException, AuthzException {
-    // the subject in the JWT token is the email, we need need to look up the user by email.
+    // the subject in the JWT token is the email, we need need to look up the user by email. The roles come
+    // from the database, not the token, see PrincipalCache.
     Claims claims = (Claims) principal;
-    AppUser user = permissionService.lookUpUserByEmail(objectService,claims.getSubject());
-    user.setRoles(lookUpRolesByIdList(objectService, (String) claims.get(NSLOGIN_ROLES)));
-    PrincipalCollection principals = new SimplePrincipalCollection(user, "rest");
+    CachedPrincipal cached = principalCache.get(claims.getSubject(),
+        () -> CachedPrincipal.of(permissionService.lookUpUserByEmail(objectService, claims.getSubject())));
+    // a user of our own, neither managed nor seen by any other request, and the snapshot it was copied
+    // from, from which HibernateRealm builds (and caches) authorization
+    PrincipalCollection principals = new SimplePrincipalCollection(Arrays.asList(cached.toUser(), cached), "rest");
     Subject subject = new Subject.Builder().principals(principals).buildSubject();
     try {
       subject.execute(() -> {
@@ -0,0 +1,104 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.shiro;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionIndexTest {
+
+  // few enough values that random grants and queries often overlap
+  private static final String[] VALUES = {"a", "B", "c", "*"};
+
+  @Test
+  public void testMatchesLinearScan() {
+    long seed = System.nanoTime();
+    Random random = new Random(seed);
+    for (int round = 0; round < 20000; round++) {
+      List<DoubleWildcardPermission> grants = new ArrayList<>();
+      int grantCount = random.nextInt(8);
+      for (int g = 0; g < grantCount; g++) {
+        grants.add(new DoubleWildcardPermission(randomPermission(random, true)));
+      }
+      PermissionIndex index = new PermissionIndex(grants);
+      for (int q = 0; q < 10; q++) {
+        PermissionQuery query = new PermissionQuery(randomPermission(random, random.nextInt(10) == 0).split(":"));
+        assertEquals("seed " + seed + ", grants " + grants + ", query " + query,
+            linearImplies(grants, query), index.implies(query));
+      }
+    }
+  }
+
+  @Test
+  public void testWildcards() {
+    PermissionIndex index = new PermissionIndex(Arrays.asList(
+        new DoubleWildcardPermission("thing:read"),
+        new DoubleWildcardPermission("user:*:42:*")));
+    assertTrue(index.implies(new PermissionQuery("thing", "read", "7", "name")));
+    assertTrue(index.implies(new PermissionQuery("THING", "*")));
+    assertFalse(index.implies(new PermissionQuery("thing", "edit")));
+    assertTrue(index.implies(new PermissionQuery("user", "edit", "42")));
+    assertTrue(index.implies(new PermissionQuery("user", "*", "*", "*")));
+    assertFalse(index.implies(new PermissionQuery("user", "edit", "41")));
+    assertTrue(index.implies(new PermissionQuery("user", "edit,read", "42")));
+    assertFalse(index.implies(new PermissionQuery("user", "edit", "42,41")));
+  }
+
+  @Test
+  public void testNoGrants() {
+    PermissionIndex index = new PermissionIndex(new ArrayList<>());
+    assertFalse(index.implies(new PermissionQuery("thing", "read")));
+    assertFalse(index.implies(new PermissionQuery("*")));
+  }
+
+  /**
+   * The answer before there was an index: compare the query with every grant in turn.
+   */
+  private static boolean linearImplies(List<DoubleWildcardPermission> grants, PermissionQuery query) {
+    DoubleWildcardPermission p = new DoubleWildcardPermission(query.toString());
+    boolean implied = false;
+    for (DoubleWildcardPermission grant : grants) {
+      // the query shortcut on the permission itself must agree with the parsed comparison too
+      assertEquals(grant + " implies " + query, grant.implies(p), grant.implies(query));
+      implied |= grant.implies(p);
+    }
+    return implied;
+  }
+
+  private static String randomPermission(Random random, boolean multiValued) {
+    int partCount = 1 + random.nextInt(5);
+    StringBuilder permission = new StringBuilder();
+    for (int i = 0; i < partCount; i++) {
+      if (i > 0) {
+        permission.append(':');
+      }
+      permission.append(VALUES[random.nextInt(VALUES.length)]);
+      if (multiValued && random.nextInt(4) == 0) {
+        permission.append(',').append(VALUES[random.nextInt(VALUES.length)]);
+      }
+    }
+    return permission.toString();
+  }
+}
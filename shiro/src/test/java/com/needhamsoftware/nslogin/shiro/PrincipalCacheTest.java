@@ -0,0 +1,237 @@
+/*
+ *    Copyright (c) 2020, Needham Software LLC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.needhamsoftware.nslogin.shiro;
+
+import com.needhamsoftware.nslogin.model.AccountRequest;
+import com.needhamsoftware.nslogin.model.Action;
+import com.needhamsoftware.nslogin.model.AppUser;
+import com.needhamsoftware.nslogin.model.AppUserRef;
+import com.needhamsoftware.nslogin.model.Notification;
+import com.needhamsoftware.nslogin.model.NotificationType;
+import com.needhamsoftware.nslogin.model.Permission;
+import com.needhamsoftware.nslogin.model.Role;
+import com.needhamsoftware.nslogin.model.TestThing;
+import com.needhamsoftware.nslogin.model.UserSecurity;
+import com.needhamsoftware.nslogin.model.action.ReverseThings;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PrincipalCacheTest {
+
+  private static final String EMAIL = "user@example.com";
+  private static final AtomicInteger DATABASES = new AtomicInteger();
+
+  private SessionFactory sessionFactory;
+  private Session request; // stands in for the EntityManager of the current request
+  private PrincipalCache cache;
+  private final AtomicInteger loads = new AtomicInteger();
+  private final PrincipalCache.Loader loader = () -> {
+    loads.incrementAndGet();
+    return CachedPrincipal.of(request.createQuery("select a from AppUser a where a.userEmail = :email", AppUser.class)
+        .setParameter("email", EMAIL)
+        .getSingleResult());
+  };
+  private long userId;
+  private long editorId;
+  private long viewerId;
+
+  @Before
+  public void setUp() {
+    StandardServiceRegistryBuilder registry = new StandardServiceRegistryBuilder()
+        // a fresh database for each test, gone when the session factory closes
+        .applySetting("hibernate.connection.url", "jdbc:h2:mem:principals" + DATABASES.incrementAndGet())
+        .applySetting("hibernate.hbm2ddl.auto", "create");
+    MetadataSources sources = new MetadataSources(registry.build());
+    for (Class<?> c : Arrays.asList(AppUser.class, AppUserRef.class, Role.class, Permission.class, Action.class,
+        UserSecurity.class, AccountRequest.class, Notification.class, NotificationType.class, TestThing.class,
+        ReverseThings.class)) {
+      sources.addAnnotatedClass(c);
+    }
+    sessionFactory = sources.buildMetadata().buildSessionFactory();
+    write(s -> {
+      Role editor = role("editor", permission("TestThing", "update", null));
+      Role viewer = role("viewer", permission("TestThing", "read", null));
+      editor.getGrants().forEach(s::persist);
+      viewer.getGrants().forEach(s::persist);
+      s.persist(editor);
+      s.persist(viewer);
+      Permission self = permission("AppUser", "update", null);
+      s.persist(self);
+      AppUser user = new AppUser();
+      user.setUserEmail(EMAIL);
+      user.setRoles(new ArrayList<>(Collections.singletonList(editor)));
+      user.setIntrinsicPermissions(new ArrayList<>(Collections.singletonList(self)));
+      s.persist(user);
+      s.flush();
+      self.setObjId(String.valueOf(user.getId()));
+      userId = user.getId();
+      editorId = editor.getId();
+      viewerId = viewer.getId();
+    });
+    cache = new PrincipalCache(() -> request, 0); // revalidate on every request
+    newRequest();
+  }
+
+  @After
+  public void tearDown() {
+    if (request != null) {
+      request.close();
+    }
+    sessionFactory.close();
+  }
+
+  private static Permission permission(String type, String action, String objId) {
+    Permission permission = new Permission();
+    permission.setType(type);
+    permission.setAction(action);
+    permission.setObjId(objId);
+    return permission;
+  }
+
+  private static Role role(String key, Permission grant) {
+    Role role = new Role();
+    role.setKey(key);
+    role.setGrants(new ArrayList<>(Collections.singletonList(grant)));
+    return role;
+  }
+
+  private void write(Consumer<Session> work) {
+    try (Session session = sessionFactory.openSession()) {
+      session.beginTransaction();
+      work.accept(session);
+      session.getTransaction().commit();
+    }
+  }
+
+  private void newRequest() {
+    if (request != null) {
+      request.close();
+    }
+    request = sessionFactory.openSession();
+  }
+
+  @Test
+  public void testUnchangedUserIsNotReloaded() throws Exception {
+    CachedPrincipal first = cache.get(EMAIL, loader);
+    newRequest();
+    assertSame(first, cache.get(EMAIL, loader));
+    assertEquals(1, loads.get());
+    assertEquals(Arrays.asList("TestThing:update:*:*", "AppUser:update:" + userId + ":*"), first.permissionStrings());
+  }
+
+  @Test
+  public void testIntrinsicPermissionChangeIsSeen() throws Exception {
+    CachedPrincipal first = cache.get(EMAIL, loader);
+    // not via the ObjectService, so nothing tells the cache
+    write(s -> s.get(AppUser.class, userId).getIntrinsicPermissions().get(0).setAction("delete"));
+    newRequest();
+    CachedPrincipal second = cache.get(EMAIL, loader);
+    assertNotSame(first, second);
+    assertEquals("AppUser:delete:" + userId + ":*", second.permissionStrings().get(1));
+    assertEquals(1, cache.getChangesDetected());
+  }
+
+  @Test
+  public void testGrantChangeIsSeen() throws Exception {
+    cache.get(EMAIL, loader);
+    write(s -> s.get(Role.class, editorId).getGrants().get(0).setAction("delete"));
+    newRequest();
+    assertEquals("TestThing:delete:*:*", cache.get(EMAIL, loader).permissionStrings().get(0));
+  }
+
+  @Test
+  public void testSwapForRoleOfSameVersionIsSeen() throws Exception {
+    CachedPrincipal first = cache.get(EMAIL, loader);
+    assertEquals(Collections.singletonList("editor"), first.roleKeys());
+    // both roles are at version 0, and SQL leaves the user's version alone, only the ids differ
+    write(s -> s.createNativeQuery("update AppUser_Role set roles_id = :viewer where AppUser_id = :user")
+        .setParameter("viewer", viewerId)
+        .setParameter("user", userId)
+        .executeUpdate());
+    newRequest();
+    assertEquals(Collections.singletonList("viewer"), cache.get(EMAIL, loader).roleKeys());
+  }
+
+  @Test
+  public void testWriteInvalidates() throws Exception {
+    PrincipalCache slow = new PrincipalCache(() -> request, 60000);
+    CachedPrincipal first = slow.get(EMAIL, loader);
+    assertSame(first, slow.get(EMAIL, loader));
+    assertEquals(1, loads.get());
+
+    AppUser written = new AppUser();
+    written.setId(userId);
+    slow.objectWritten(written);
+    assertNotSame(first, slow.get(EMAIL, loader));
+    assertEquals(2, loads.get());
+
+    slow.objectWritten(new Role());
+    slow.get(EMAIL, loader);
+    assertEquals(3, loads.get());
+  }
+
+  @Test
+  public void testLoadOverlappingWriteIsNotCached() throws Exception {
+    PrincipalCache slow = new PrincipalCache(() -> request, 60000);
+    PrincipalCache.Loader overlapping = () -> {
+      CachedPrincipal loaded = loader.load();
+      if (loads.get() == 1) {
+        // a write lands while we are loading, what we read may predate it
+        slow.objectWritten(new Permission());
+      }
+      return loaded;
+    };
+    slow.get(EMAIL, overlapping);
+    slow.get(EMAIL, overlapping);
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testSnapshotIsIndependentOfEntities() throws Exception {
+    AppUser user = request.get(AppUser.class, userId);
+    CachedPrincipal cached = CachedPrincipal.of(user);
+    user.getRoles().get(0).getGrants().clear();
+    user.getIntrinsicPermissions().clear();
+    assertEquals(2, cached.permissionStrings().size());
+
+    AppUser copy = cached.toUser();
+    assertEquals(Long.valueOf(userId), copy.getId());
+    assertEquals(EMAIL, copy.getUserEmail());
+    assertEquals("TestThing", copy.getRoles().get(0).getGrants().get(0).getType());
+
+    // each request gets its own copy, changes to one are seen by nobody else
+    copy.getRoles().clear();
+    AppUser another = cached.toUser();
+    assertNotSame(copy, another);
+    assertEquals(1, another.getRoles().size());
+  }
+}